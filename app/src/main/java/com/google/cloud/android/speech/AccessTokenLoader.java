@@ -21,17 +21,22 @@ import com.google.auth.oauth2.GoogleCredentials;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
 import android.support.v4.content.AsyncTaskLoader;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
  * Retrieves an access token needed to call the Cloud Speech API.
+ *
+ * <p>The token comes from the {@link AccessTokenManager} of the process, which keeps it in memory
+ * and renews it in the background; see {@link #getManager(Context)}.</p>
  */
 public class AccessTokenLoader extends AsyncTaskLoader<AccessToken> {
 
@@ -41,10 +46,30 @@ public class AccessTokenLoader extends AsyncTaskLoader<AccessToken> {
     private static final String PREF_ACCESS_TOKEN_VALUE = "access_token_value";
     private static final String PREF_ACCESS_TOKEN_EXPIRATION_TIME = "access_token_expiration_time";
 
+    private static AccessTokenManager sManager;
+
     public AccessTokenLoader(Context context) {
         super(context);
     }
 
+    /**
+     * @return The token manager of the process. Tokens are stored in the shared preferences.
+     */
+    static synchronized AccessTokenManager getManager(Context context) {
+        if (sManager == null) {
+            sManager = new AccessTokenManager(new StoredSource(context.getApplicationContext()),
+                    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "AccessTokenManager");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }));
+        }
+        return sManager;
+    }
+
     @Override
     protected void onStartLoading() {
         forceLoad();
@@ -52,45 +77,63 @@ public class AccessTokenLoader extends AsyncTaskLoader<AccessToken> {
 
     @Override
     public AccessToken loadInBackground() {
-        final SharedPreferences prefs =
-                getContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
-        String tokenValue = prefs.getString(PREF_ACCESS_TOKEN_VALUE, null);
-        long expirationTimeMillis = prefs.getLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME, -1);
-
-        // Check if the current token is still valid for a while
-        if (tokenValue != null && expirationTimeMillis > 0) {
-            Date expirationTime = new Date(expirationTimeMillis);
-            if (expirationTime.after(aWhileFromNow())) {
-                return new AccessToken(tokenValue, expirationTime);
-            }
-        }
-
-        // ***** WARNING *****
-        // In this sample, we load the credential from a JSON file stored in a raw resource folder
-        // of this client app. You should never do this in your app. Instead, store the file in your
-        // server and obtain an access token from there.
-        // *******************
-        final InputStream stream = getContext().getResources().openRawResource(R.raw.credential);
+        // Only waits for the network if there is no token that is still valid for a while.
         try {
-            final GoogleCredentials credentials = GoogleCredentials.fromStream(stream)
-                    .createScoped(ApiFragment.SCOPE);
-            final AccessToken token = credentials.refreshAccessToken();
-            prefs.edit()
-                    .putString(PREF_ACCESS_TOKEN_VALUE, token.getTokenValue())
-                    .putLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME, token.getExpirationTime().getTime())
-                    .apply();
-            return token;
+            return getManager(getContext()).get();
         } catch (IOException e) {
             Log.e(TAG, "Failed to obtain access token.", e);
         }
         return null;
     }
 
-    private static Date aWhileFromNow() {
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(new Date());
-        calendar.add(Calendar.MINUTE, 30);
-        return calendar.getTime();
+    /**
+     * Keeps the token in the shared preferences, and obtains new ones with the credential in the
+     * raw resources.
+     */
+    private static class StoredSource implements AccessTokenManager.Source {
+
+        private final Context mContext;
+
+        private final SharedPreferences mPrefs;
+
+        StoredSource(Context context) {
+            mContext = context;
+            mPrefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        }
+
+        @Override
+        public AccessToken stored() {
+            final String tokenValue = mPrefs.getString(PREF_ACCESS_TOKEN_VALUE, null);
+            final long expirationTimeMillis = mPrefs.getLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME, -1);
+            if (tokenValue == null || expirationTimeMillis <= 0) {
+                return null;
+            }
+            return new AccessToken(tokenValue, new Date(expirationTimeMillis));
+        }
+
+        @Override
+        public AccessToken fetch() throws IOException {
+            // ***** WARNING *****
+            // In this sample, we load the credential from a JSON file stored in a raw resource
+            // folder of this client app. You should never do this in your app. Instead, store
+            // the file in your server and obtain an access token from there.
+            // *******************
+            final InputStream stream = mContext.getResources().openRawResource(R.raw.credential);
+            try {
+                final GoogleCredentials credentials = GoogleCredentials.fromStream(stream)
+                        .createScoped(ApiFragment.SCOPE);
+                final AccessToken token = credentials.refreshAccessToken();
+                mPrefs.edit()
+                        .putString(PREF_ACCESS_TOKEN_VALUE, token.getTokenValue())
+                        .putLong(PREF_ACCESS_TOKEN_EXPIRATION_TIME,
+                                token.getExpirationTime().getTime())
+                        .apply();
+                return token;
+            } finally {
+                stream.close();
+            }
+        }
+
     }
 
 }
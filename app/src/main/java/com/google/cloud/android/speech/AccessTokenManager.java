@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.auth.oauth2.AccessToken;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Keeps the current {@link AccessToken} in memory and renews it in the background before it runs
+ * out, so that neither a cold start nor a long session waits for the network because of it.
+ *
+ * <p>A token is only handed out while it is valid for at least another 30 minutes. A renewal is
+ * scheduled a few minutes before that margin is reached, and retried with a growing delay if it
+ * fails. Every new token goes to the {@link Listener}s, e.g. to be swapped into a live channel.</p>
+ */
+class AccessTokenManager {
+
+    /** How long a token handed out stays valid at least. */
+    static final long MIN_VALIDITY_MILLIS = 30 * 60 * 1000;
+
+    /** How long before the validity margin is reached the token is renewed. */
+    private static final long REFRESH_LEAD_MILLIS = 5 * 60 * 1000;
+
+    private static final long RETRY_MILLIS = 30 * 1000;
+
+    private static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Where tokens come from.
+     */
+    interface Source {
+
+        /**
+         * @return The token that was stored last, or {@code null}. May be expired. Called on a
+         * background thread.
+         */
+        AccessToken stored();
+
+        /**
+         * Obtains a new token from the network, and stores it. Called on a background thread.
+         */
+        AccessToken fetch() throws IOException;
+
+    }
+
+    /**
+     * Receives the tokens.
+     */
+    interface Listener {
+
+        /**
+         * Called with each new token, on the thread that obtained it, and with the current token
+         * when the listener is added.
+         */
+        void onAccessToken(AccessToken token);
+
+    }
+
+    private final Source mSource;
+
+    private final ScheduledExecutorService mExecutor;
+
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    /** Guards the source; only one token is obtained at a time. */
+    private final Object mLock = new Object();
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    private volatile AccessToken mToken;
+
+    private ScheduledFuture<?> mScheduled;
+
+    private long mRetryMillis = RETRY_MILLIS;
+
+    private volatile long mRefreshes;
+
+    private volatile long mFailures;
+
+    /**
+     * @param source   Where tokens come from.
+     * @param executor Runs the renewals. They block on the network.
+     */
+    AccessTokenManager(Source source, ScheduledExecutorService executor) {
+        mSource = source;
+        mExecutor = executor;
+    }
+
+    /**
+     * Adds a listener. It gets the current token right away, if there is one.
+     */
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+        final AccessToken token = mToken;
+        if (token != null) {
+            listener.onAccessToken(token);
+        }
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Gets a token that is valid for at least {@link #MIN_VALIDITY_MILLIS}: the one in memory if
+     * there is one, else the stored one if it is still good, else a new one from the network.
+     * Renewals are scheduled from then on. Blocks; call on a background thread.
+     */
+    AccessToken get() throws IOException {
+        AccessToken token = mToken;
+        if (isValid(token)) {
+            return token;
+        }
+        synchronized (mLock) {
+            token = mToken;
+            if (isValid(token)) {
+                return token;
+            }
+            token = mSource.stored();
+            if (!isValid(token)) {
+                token = mSource.fetch();
+                mRefreshes++;
+            }
+            use(token);
+            return token;
+        }
+    }
+
+    /**
+     * @return The current token, or {@code null} if there is none yet. Valid for at least
+     * {@link #MIN_VALIDITY_MILLIS}.
+     */
+    AccessToken getAccessToken() {
+        final AccessToken token = mToken;
+        return isValid(token) ? token : null;
+    }
+
+    @Override
+    public String toString() {
+        final AccessToken token = mToken;
+        return "AccessTokenManager{expires=" + (token == null ? null : token.getExpirationTime())
+                + ", refreshes=" + mRefreshes
+                + ", failures=" + mFailures
+                + "}";
+    }
+
+    private static boolean isValid(AccessToken token) {
+        return token != null && token.getExpirationTime() != null
+                && token.getExpirationTime().getTime()
+                > System.currentTimeMillis() + MIN_VALIDITY_MILLIS;
+    }
+
+    private void refresh() {
+        synchronized (mLock) {
+            final AccessToken token;
+            try {
+                token = mSource.fetch();
+            } catch (IOException e) {
+                // The current token, if any, stays in use until it runs out.
+                mFailures++;
+                schedule(mRetryMillis);
+                mRetryMillis = Math.min(mRetryMillis * 2, MAX_RETRY_MILLIS);
+                return;
+            }
+            mRefreshes++;
+            mRetryMillis = RETRY_MILLIS;
+            use(token);
+        }
+    }
+
+    /**
+     * Makes {@code token} the current one, and schedules its renewal.
+     */
+    private void use(AccessToken token) {
+        mToken = token;
+        for (Listener listener : mListeners) {
+            listener.onAccessToken(token);
+        }
+        final long expiration = token.getExpirationTime() == null
+                ? System.currentTimeMillis() : token.getExpirationTime().getTime();
+        // Not right away even for a short-lived token, so that it cannot spin.
+        schedule(Math.max(expiration - MIN_VALIDITY_MILLIS - REFRESH_LEAD_MILLIS
+                - System.currentTimeMillis(), RETRY_MILLIS));
+    }
+
+    private void schedule(long delayMillis) {
+        if (mScheduled != null) {
+            mScheduled.cancel(false);
+        }
+        mScheduled = mExecutor.schedule(mRefresh, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -16,52 +16,30 @@
 
 package com.google.cloud.android.speech;
 
-import com.google.auth.Credentials;
 import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.speech.v1beta1.RecognitionConfig;
-import com.google.cloud.speech.v1beta1.SpeechGrpc;
-import com.google.cloud.speech.v1beta1.SpeechRecognitionAlternative;
-import com.google.cloud.speech.v1beta1.StreamingRecognitionConfig;
-import com.google.cloud.speech.v1beta1.StreamingRecognitionResult;
-import com.google.cloud.speech.v1beta1.StreamingRecognizeRequest;
-import com.google.cloud.speech.v1beta1.StreamingRecognizeResponse;
-import com.google.protobuf.ByteString;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
-import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
-import io.grpc.CallOptions;
-import io.grpc.Channel;
-import io.grpc.ClientCall;
-import io.grpc.ClientInterceptor;
-import io.grpc.ClientInterceptors;
-import io.grpc.ManagedChannel;
-import io.grpc.Metadata;
-import io.grpc.MethodDescriptor;
-import io.grpc.Status;
-import io.grpc.StatusException;
-import io.grpc.internal.DnsNameResolverProvider;
-import io.grpc.okhttp.OkHttpChannelProvider;
-import io.grpc.stub.StreamObserver;
-
 
 /**
  * Handles all the API requests of Cloud Speech API.
  *
+ * <p>It holds the channel and the credentials; the streams themselves are up to a
+ * {@link StreamingRecognizer}.</p>
+ *
  * <p>The calling {@link android.app.Activity} needs to implement
  * {@link ApiFragment.Listener}.</p>
  *
@@ -74,12 +52,19 @@ public class ApiFragment extends Fragment {
         /**
          * Called when a new piece of text was recognized by the Speech API.
          *
-         * @param text    The text.
-         * @param isFinal {@code true} when the API finished processing audio.
+         * @param text      The text.
+         * @param isFinal   {@code true} when the API finished processing audio.
+         * @param utterance The utterance the stream was started for; a late result of an earlier
+         *                  utterance may come in after the next one has started.
          */
-        void onSpeechRecognized(String text, boolean isFinal);
+        void onSpeechRecognized(String text, boolean isFinal, int utterance);
 
-        void stopVoiceRecorder();
+        /**
+         * Called when the API has finished with an utterance.
+         *
+         * @param utterance The utterance the stream was started for, which may be over already.
+         */
+        void stopVoiceRecorder(int utterance);
 
     }
 
@@ -92,44 +77,84 @@ public class ApiFragment extends Fragment {
 
     private static final String TAG = "ApiFragment";
 
-    private SpeechGrpc.SpeechStub mApi;
+    /** How often the idle connection is used to keep it open. */
+    private static final long KEEPALIVE_MILLIS = 60 * 1000;
 
-    private final StreamObserver<StreamingRecognizeResponse> mResponseObserver
-            = new StreamObserver<StreamingRecognizeResponse>() {
-        @Override
-        public void onNext(StreamingRecognizeResponse response) {
-            String text = null;
-            boolean isFinal = false;
-            if (response.getResultsCount() > 0) {
-                final StreamingRecognitionResult result = response.getResults(0);
-                isFinal = result.getIsFinal();
-                if (result.getAlternativesCount() > 0) {
-                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
-                    text = alternative.getTranscript();
+    /** How long the connection is kept open after the last utterance. */
+    private static final long IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private GoogleCredentialsInterceptor mCredentials;
+
+    private WarmChannel mChannel;
+
+    /** Runs the flush deadlines of the recognizer and the keepalive of {@link #mChannel}. */
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "ApiFragment-timer");
                 }
-            }
-            if (text != null && mListener != null) {
-                mListener.onSpeechRecognized(text, isFinal);
+            });
+
+    private ConnectivityManager mConnectivity;
+
+    private Listener mListener;
+
+    /** Logs what the recognizer reports, and passes it on to {@link #mListener}. */
+    private final StreamingRecognizer.Listener mRecognizerListener
+            = new StreamingRecognizer.Listener() {
+        @Override
+        public void onSpeechRecognized(String text, boolean isFinal, int utterance) {
+            final Listener listener = mListener;
+            if (listener != null) {
+                listener.onSpeechRecognized(text, isFinal, utterance);
             }
         }
 
         @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "Error calling the API.", t);
+        public void stopVoiceRecorder(int utterance) {
+            Log.d(TAG, "Ending utterance " + utterance + "; " + mRecognizer);
+            final Listener listener = mListener;
+            if (listener != null) {
+                listener.stopVoiceRecorder(utterance);
+            }
         }
 
         @Override
-        public void onCompleted() {
+        public void onStreamEnded(int utterance, Throwable error) {
+            if (error != null) {
+                Log.e(TAG, "Error calling the API.", error);
+            } else {
+                Log.i(TAG, "API completed.");
+            }
+        }
+    };
 
-            Log.i(TAG, "API completed.");
-            mListener.stopVoiceRecorder();
+    /** How the last stream went is up to the recognizer; the rest is known here. */
+    private final StreamingRecognizer.Uplink mUplink = new StreamingRecognizer.Uplink() {
+        @Override
+        public boolean isMetered() {
+            return mConnectivity != null && mConnectivity.isActiveNetworkMetered();
         }
 
+        @Override
+        public long getPingMillis() {
+            return mChannel.getPingMillis();
+        }
     };
 
-    private StreamObserver<StreamingRecognizeRequest> mRequestObserver;
+    private final StreamingRecognizer mRecognizer = new StreamingRecognizer(mTimer,
+            mRecognizerListener, mUplink);
 
-    private Listener mListener;
+    /** Swaps renewed tokens into the channel, without interrupting the current stream. */
+    private final AccessTokenManager.Listener mTokenListener = new AccessTokenManager.Listener() {
+        @Override
+        public void onAccessToken(AccessToken token) {
+            setAccessToken(token);
+        }
+    };
+
+    private AccessTokenManager mTokens;
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
@@ -140,11 +165,15 @@ public class ApiFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mTokens != null) {
+            mTokens.removeListener(mTokenListener);
+        }
+        mTimer.shutdownNow();
         // Release the gRPC channel.
-        final ManagedChannel channel = (ManagedChannel) mApi.getChannel();
-        if (channel != null && !channel.isShutdown()) {
+        if (mChannel != null) {
+            Log.d(TAG, mChannel.toString());
             try {
-                channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+                mChannel.shutdown(5, TimeUnit.SECONDS);
             } catch (InterruptedException e) {
                 Log.e(TAG, "Error shutting down the gRPC channel.", e);
             }
@@ -155,6 +184,12 @@ public class ApiFragment extends Fragment {
     public void onAttach(Context context) {
         super.onAttach(context);
         mListener = (Listener) context;
+        mConnectivity = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (mTokens == null) {
+            mTokens = AccessTokenLoader.getManager(context);
+            mTokens.addListener(mTokenListener);
+        }
     }
 
     @Override
@@ -166,187 +201,96 @@ public class ApiFragment extends Fragment {
     /**
      * Sets the {@link AccessToken} to be used to call the API.
      *
+     * <p>The first token creates the channel and connects it right away, so that the first
+     * utterance does not wait for the connection. Later tokens are swapped into the same
+     * channel. Renewed tokens come in by themselves once the fragment is attached.</p>
+     *
      * @param accessToken The {@link AccessToken}.
      */
-    public void setAccessToken(AccessToken accessToken) {
-        final ManagedChannel channel = new OkHttpChannelProvider()
-                .builderForAddress(HOSTNAME, PORT)
-                .nameResolverFactory(new DnsNameResolverProvider())
-                .intercept(new GoogleCredentialsInterceptor(new GoogleCredentials(accessToken)
-                        .createScoped(SCOPE)))
-                .build();
-        mApi = SpeechGrpc.newStub(channel);
+    public synchronized void setAccessToken(AccessToken accessToken) {
+        final GoogleCredentials credentials = new GoogleCredentials(accessToken)
+                .createScoped(SCOPE);
+        if (mChannel != null) {
+            mCredentials.setCredentials(credentials);
+            return;
+        }
+        mCredentials = new GoogleCredentialsInterceptor(credentials);
+        mChannel = new WarmChannel(HOSTNAME, PORT, mCredentials, mTimer, KEEPALIVE_MILLIS,
+                IDLE_TIMEOUT_MILLIS);
+        mRecognizer.setChannel(mChannel.getChannel());
+        mChannel.warmUp();
     }
 
     /**
      * Starts recognizing speech audio.
      *
+     * <p>Unless an encoding is set with {@link #setUpstreamEncoding}, the encoding and sample
+     * rate of the stream adapt to the uplink; see {@link UpstreamController}.</p>
+     *
      * @param sampleRate The sample rate of the audio.
+     * @param utterance  The number of the utterance in the {@link UtteranceTracer}.
      */
-    public void startRecognizing(int sampleRate) {
-        if (mApi == null) {
+    public void startRecognizing(int sampleRate, int utterance) {
+        if (!mRecognizer.isReady()) {
             Log.w(TAG, "API not ready. Ignoring the request.");
             return;
         }
-        // Configure the API
-        mRequestObserver = mApi.streamingRecognize(mResponseObserver);
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-                .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
-                        .setConfig(RecognitionConfig.newBuilder()
-                                .setLanguageCode(getDefaultLanguageCode())
-                                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                                .setSampleRate(sampleRate)
-                                .build())
-                        .setInterimResults(true)
-                        .setSingleUtterance(true)
-                        .build())
-                .build());
+        mChannel.touch();
+        mRecognizer.startRecognizing(sampleRate, utterance);
     }
 
     /**
      * Recognizes the speech audio. This method should be called every time a chunk of byte buffer
      * is ready.
      *
+     * <p>Small buffers are batched into messages of about 100 milliseconds; see
+     * {@link #setChunkTargets(int, int, int)}. The audio is sent straight out of {@code data}
+     * whenever possible, so {@code data} must not change until this method returns.</p>
+     *
      * @param data The audio data.
      * @param size The number of elements that are actually relevant in the {@code data}.
      */
     public void recognize(byte[] data, int size) {
-        if (mRequestObserver == null) {
-            return;
-        }
-        // Call the streaming recognition API
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-                .setAudioContent(ByteString.copyFrom(data, 0, size))
-                .build());
+        mRecognizer.recognize(data, size);
     }
 
     /**
-     * Finishes recognizing speech audio.
+     * Tunes how the audio is batched into messages. Takes effect on the next
+     * {@link #startRecognizing(int, int)}.
+     *
+     * @param targetMillis The duration of audio in a message.
+     * @param maxBytes     The size of the audio in a message at most, whatever its duration.
+     * @param deadline     The time in milliseconds that audio may wait for a message to fill up.
      */
-    public void finishRecognizing() {
-        if (mRequestObserver == null) {
-            return;
-        }
-        mRequestObserver.onCompleted();
-        mRequestObserver = null;
+    public void setChunkTargets(int targetMillis, int maxBytes, int deadline) {
+        mRecognizer.setChunkTargets(targetMillis, maxBytes, deadline);
     }
 
-    private String getDefaultLanguageCode() {
-        final Locale locale = Locale.getDefault();
-        final StringBuilder language = new StringBuilder(locale.getLanguage());
-        final String country = locale.getCountry();
-        if (!TextUtils.isEmpty(country)) {
-            language.append("-");
-            language.append(country);
-        }
-        return language.toString();
+    /**
+     * Sets how the audio is encoded for the API, at the capture rate. By default, or with
+     * {@code null}, the encoding and the sample rate adapt to the uplink, from LINEAR16 on a good
+     * unmetered link down to half-rate FLAC. {@link UpstreamEncoding#FLAC} halves the upload or
+     * better without losing anything. Takes effect on the next {@link #startRecognizing(int, int)}.
+     */
+    public void setUpstreamEncoding(UpstreamEncoding encoding) {
+        mRecognizer.setUpstreamEncoding(encoding);
     }
 
     /**
-     * Authenticates the gRPC channel using the specified {@link GoogleCredentials}.
+     * Sets what happens when the uplink is so slow that two seconds of audio are waiting to be
+     * sent. The default is {@link OutboundAudioQueue.Overload#DROP_OLDEST}.
      */
-    private static class GoogleCredentialsInterceptor implements ClientInterceptor {
-
-        private final Credentials mCredentials;
-
-        private Metadata mCached;
-
-        private Map<String, List<String>> mLastMetadata;
-
-        public GoogleCredentialsInterceptor(Credentials credentials) {
-            mCredentials = credentials;
-        }
-
-        @Override
-        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
-                final MethodDescriptor<ReqT, RespT> method, CallOptions callOptions,
-                final Channel next) {
-            return new ClientInterceptors.CheckedForwardingClientCall<ReqT, RespT>(
-                    next.newCall(method, callOptions)) {
-                @Override
-                protected void checkedStart(Listener<RespT> responseListener, Metadata headers)
-                        throws StatusException {
-                    Metadata cachedSaved;
-                    URI uri = serviceUri(next, method);
-                    synchronized (GoogleCredentialsInterceptor.this) {
-                        Map<String, List<String>> latestMetadata = getRequestMetadata(uri);
-                        if (mLastMetadata == null || mLastMetadata != latestMetadata) {
-                            mLastMetadata = latestMetadata;
-                            mCached = toHeaders(mLastMetadata);
-                        }
-                        cachedSaved = mCached;
-                    }
-                    headers.merge(cachedSaved);
-                    delegate().start(responseListener, headers);
-                }
-            };
-        }
-
-        /**
-         * Generate a JWT-specific service URI. The URI is simply an identifier with enough
-         * information for a service to know that the JWT was intended for it. The URI will
-         * commonly be verified with a simple string equality check.
-         */
-        private URI serviceUri(Channel channel, MethodDescriptor<?, ?> method)
-                throws StatusException {
-            String authority = channel.authority();
-            if (authority == null) {
-                throw Status.UNAUTHENTICATED
-                        .withDescription("Channel has no authority")
-                        .asException();
-            }
-            // Always use HTTPS, by definition.
-            final String scheme = "https";
-            final int defaultPort = 443;
-            String path = "/" + MethodDescriptor.extractFullServiceName(method.getFullMethodName());
-            URI uri;
-            try {
-                uri = new URI(scheme, authority, path, null, null);
-            } catch (URISyntaxException e) {
-                throw Status.UNAUTHENTICATED
-                        .withDescription("Unable to construct service URI for auth")
-                        .withCause(e).asException();
-            }
-            // The default port must not be present. Alternative ports should be present.
-            if (uri.getPort() == defaultPort) {
-                uri = removePort(uri);
-            }
-            return uri;
-        }
-
-        private URI removePort(URI uri) throws StatusException {
-            try {
-                return new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), -1 /* port */,
-                        uri.getPath(), uri.getQuery(), uri.getFragment());
-            } catch (URISyntaxException e) {
-                throw Status.UNAUTHENTICATED
-                        .withDescription("Unable to construct service URI after removing port")
-                        .withCause(e).asException();
-            }
-        }
-
-        private Map<String, List<String>> getRequestMetadata(URI uri) throws StatusException {
-            try {
-                return mCredentials.getRequestMetadata(uri);
-            } catch (IOException e) {
-                throw Status.UNAUTHENTICATED.withCause(e).asException();
-            }
-        }
+    public void setOverloadPolicy(OutboundAudioQueue.Overload policy) {
+        mRecognizer.setOverloadPolicy(policy);
+    }
 
-        private static Metadata toHeaders(Map<String, List<String>> metadata) {
-            Metadata headers = new Metadata();
-            if (metadata != null) {
-                for (String key : metadata.keySet()) {
-                    Metadata.Key<String> headerKey = Metadata.Key.of(
-                            key, Metadata.ASCII_STRING_MARSHALLER);
-                    for (String value : metadata.get(key)) {
-                        headers.put(headerKey, value);
-                    }
-                }
-            }
-            return headers;
+    /**
+     * Finishes recognizing speech audio.
+     */
+    public void finishRecognizing() {
+        if (mRecognizer.finishRecognizing()) {
+            Log.d(TAG, mRecognizer.toString());
         }
-
     }
 
 }
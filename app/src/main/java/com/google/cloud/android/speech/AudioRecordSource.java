@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A {@link PcmSource} that records from the microphone with {@link AudioRecord}.
+ *
+ * <p>The recorded audio format is always {@link AudioFormat#ENCODING_PCM_16BIT} and
+ * {@link AudioFormat#CHANNEL_IN_MONO}. The first of the sample rate candidates that the device
+ * supports is used.</p>
+ */
+public class AudioRecordSource implements PcmSource {
+
+    private static final int CHANNEL = AudioFormat.CHANNEL_IN_MONO;
+    private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+
+    private final int[] mSampleRateCandidates;
+
+    private final int mFrameSize;
+
+    private AudioRecord mAudioRecord;
+
+    private int mBufferSize;
+
+    /**
+     * @param sampleRateCandidates The sample rates to try, in order of preference.
+     * @param frameSize            If positive, the buffer size is rounded up to a multiple of
+     *                             this many bytes. Otherwise the minimum buffer size is used.
+     */
+    public AudioRecordSource(@NonNull int[] sampleRateCandidates, int frameSize) {
+        mSampleRateCandidates = sampleRateCandidates;
+        mFrameSize = frameSize;
+    }
+
+    @Override
+    public boolean open() {
+        close();
+        mAudioRecord = createAudioRecord();
+        if (mAudioRecord == null) {
+            return false;
+        }
+        mAudioRecord.startRecording();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (mAudioRecord != null) {
+            mAudioRecord.stop();
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        mBufferSize = 0;
+    }
+
+    @Override
+    public int getSampleRate() {
+        if (mAudioRecord != null) {
+            return mAudioRecord.getSampleRate();
+        }
+        return 0;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int size) {
+        return mAudioRecord.read(data, offset, size);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        return mAudioRecord.read(buffer, size);
+    }
+
+    /**
+     * Creates a new {@link AudioRecord}.
+     *
+     * @return A newly created {@link AudioRecord}, or null if it cannot be created (missing
+     * permissions?).
+     */
+    private AudioRecord createAudioRecord() {
+        for (int sampleRate : mSampleRateCandidates) {
+            final int sizeInBytes = AudioRecord.getMinBufferSize(sampleRate, CHANNEL, ENCODING);
+            if (sizeInBytes == AudioRecord.ERROR_BAD_VALUE) {
+                continue;
+            }
+            final int bufferSize = mFrameSize > 0
+                    ? (sizeInBytes / mFrameSize + 1) * mFrameSize
+                    : sizeInBytes;
+            final AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
+                    sampleRate, CHANNEL, ENCODING, bufferSize);
+            if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
+                mBufferSize = bufferSize;
+                return audioRecord;
+            } else {
+                audioRecord.release();
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A preallocated, lock-free ring of audio buffers between the capture thread and the threads that
+ * consume the audio.
+ *
+ * <p>There is exactly one producer. Each consumer has its own {@link Reader} with its own cursor,
+ * so every consumer sees every buffer, in order, on its own thread; each cursor has a single
+ * reader. A slot is reused only after every reader has released it. When a reader falls so far
+ * behind that no slot is free, {@link #claim()} returns {@code null} and the producer is expected
+ * to drop the audio it reads next; such overruns are counted. A reader can instead ask the
+ * producer to wait for it with {@link Reader#block(int)}.</p>
+ *
+ * <p>A consumer either waits on its own thread with {@link Reader#await()}, or polls with
+ * {@link Reader#poll()} from whichever thread its {@link Reader#setWakeUp(Runnable) wake-up}
+ * hands it to, one thread at a time.</p>
+ *
+ * <p>All slots live in one direct buffer, slot {@code i} starting at byte
+ * {@code i * getSlotSize()}, so a consumer can slice it once and reuse the slices.</p>
+ */
+class AudioRing {
+
+    /** How long the producer parks at a time while it waits for a blocking reader. */
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final int mSlotSize;
+
+    private final ByteBuffer mMemory;
+
+    /** Producer views of the slots; slot i starts at index 0 of mSlots[i]. */
+    private final ByteBuffer[] mSlots;
+
+    private final int[] mSizes;
+
+    private final Reader[] mReaders;
+
+    /** The sequence number of the next buffer to publish. Written by the producer only. */
+    private volatile long mHead;
+
+    private volatile boolean mClosed;
+
+    private volatile long mOverruns;
+
+    private volatile Thread mBlockedProducer;
+
+    /**
+     * @param slots    The number of buffers in the ring.
+     * @param slotSize The size of each buffer in bytes.
+     * @param readers  The number of consumers.
+     */
+    AudioRing(int slots, int slotSize, int readers) {
+        mSlotSize = slotSize;
+        mMemory = ByteBuffer.allocateDirect(slots * slotSize);
+        mSlots = new ByteBuffer[slots];
+        for (int i = 0; i < slots; i++) {
+            mMemory.limit((i + 1) * slotSize);
+            mMemory.position(i * slotSize);
+            mSlots[i] = mMemory.slice();
+        }
+        mMemory.clear();
+        mSizes = new int[slots];
+        mReaders = new Reader[readers];
+        for (int i = 0; i < readers; i++) {
+            mReaders[i] = new Reader();
+        }
+    }
+
+    /**
+     * @return The size of each buffer in bytes.
+     */
+    int getSlotSize() {
+        return mSlotSize;
+    }
+
+    /**
+     * @return The reader for consumer {@code index}.
+     */
+    Reader getReader(int index) {
+        return mReaders[index];
+    }
+
+    /**
+     * @return The number of slots in the ring.
+     */
+    int getSlots() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return The number of times the producer found no free slot.
+     */
+    long getOverruns() {
+        return mOverruns;
+    }
+
+    /**
+     * Producer only. Returns the buffer to fill next; call {@link #publish(int)} once it is
+     * filled. Waits while a {@link Reader#block(int) blocking} reader is at its capacity.
+     *
+     * @return A buffer whose index 0 is the start of the slot, or {@code null} if a reader still
+     * holds every slot. The overrun is counted.
+     */
+    ByteBuffer claim() {
+        final long head = mHead;
+        for (Reader reader : mReaders) {
+            while (head - reader.mTail >= reader.mCapacity) {
+                if (!reader.mBlocking || mClosed || Thread.currentThread().isInterrupted()) {
+                    mOverruns++;
+                    return null;
+                }
+                mBlockedProducer = Thread.currentThread();
+                if (head - reader.mTail >= reader.mCapacity) {
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                }
+                mBlockedProducer = null;
+            }
+        }
+        return mSlots[(int) (head % mSlots.length)];
+    }
+
+    /**
+     * Producer only. Publishes the buffer returned by the last {@link #claim()} to all readers.
+     *
+     * @param size The number of bytes of audio in the buffer.
+     */
+    void publish(int size) {
+        final long head = mHead;
+        mSizes[(int) (head % mSlots.length)] = size;
+        mHead = head + 1;
+        for (Reader reader : mReaders) {
+            reader.wake();
+        }
+    }
+
+    /**
+     * Tells the readers that nothing more will be published. They still drain what is left.
+     */
+    void close() {
+        mClosed = true;
+        for (Reader reader : mReaders) {
+            reader.wake();
+        }
+    }
+
+    /**
+     * One consumer's cursor into the ring. Must only be used from one thread at a time.
+     */
+    class Reader {
+
+        private final ByteBuffer mView = mMemory.duplicate();
+
+        private ShortBuffer mSamples;
+
+        /** The sequence number of the next buffer to read. Written by this reader only. */
+        private volatile long mTail;
+
+        private volatile Thread mWaiter;
+
+        private volatile int mCapacity = mSlots.length;
+
+        private volatile boolean mBlocking;
+
+        private volatile Runnable mWakeUp;
+
+        /**
+         * Makes the producer wait, instead of dropping audio, whenever this reader has
+         * {@code capacity} buffers outstanding.
+         *
+         * @param capacity At most the number of slots in the ring.
+         */
+        void block(int capacity) {
+            mCapacity = Math.min(capacity, mSlots.length);
+            mBlocking = true;
+        }
+
+        /**
+         * Stops making the producer wait for this reader, e.g. once nothing reads from it any
+         * more.
+         */
+        void unblock() {
+            mBlocking = false;
+        }
+
+        /**
+         * Runs {@code wakeUp} whenever a buffer is published, on the producer thread, and when
+         * the ring is closed, e.g. to schedule the consumer on a pool rather than have it wait in
+         * {@link #await()}. It must return quickly and must not allocate. Set it before the
+         * producer starts.
+         */
+        void setWakeUp(Runnable wakeUp) {
+            mWakeUp = wakeUp;
+        }
+
+        /**
+         * @return {@code true} if a buffer is available, without waiting for one.
+         */
+        boolean poll() {
+            return mTail != mHead;
+        }
+
+        /**
+         * @return {@code true} if the ring is closed and this reader has released all of it.
+         */
+        boolean isDrained() {
+            // Closed after the last publish, so the head is final once it reads as closed.
+            return mClosed && mTail == mHead;
+        }
+
+        /**
+         * Blocks until a buffer is available.
+         *
+         * @return {@code true} if a buffer is available; {@code false} if the ring is closed and
+         * drained, or the thread was interrupted.
+         */
+        boolean await() {
+            while (mTail == mHead) {
+                if (mClosed) {
+                    return mTail != mHead;
+                }
+                mWaiter = Thread.currentThread();
+                if (mTail == mHead && !mClosed) {
+                    LockSupport.park(this);
+                }
+                mWaiter = null;
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The sequence number of the current buffer; the first buffer published is 0.
+         */
+        long sequence() {
+            return mTail;
+        }
+
+        /**
+         * @return The number of published buffers this reader has not released yet.
+         */
+        int backlog() {
+            return (int) (mHead - mTail);
+        }
+
+        /**
+         * @return A view of the whole ring, shared by all calls on this reader. The current
+         * buffer starts at {@link #offset()}.
+         */
+        ByteBuffer buffer() {
+            return mView;
+        }
+
+        /**
+         * @return A little endian LINEAR16 view of the whole ring, shared by all calls on this
+         * reader. The current buffer starts at sample {@code offset() / 2}.
+         */
+        ShortBuffer samples() {
+            if (mSamples == null) {
+                mSamples = mMemory.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            }
+            return mSamples;
+        }
+
+        /**
+         * @return The offset of the current buffer in {@link #buffer()}.
+         */
+        int offset() {
+            return (int) (mTail % mSlots.length) * mSlotSize;
+        }
+
+        /**
+         * @return The number of bytes of audio in the current buffer.
+         */
+        int size() {
+            return mSizes[(int) (mTail % mSlots.length)];
+        }
+
+        /**
+         * Copies the current buffer into {@code data}.
+         *
+         * @return The number of bytes copied.
+         */
+        int copyTo(byte[] data) {
+            final int offset = offset();
+            final int size = size();
+            mView.limit(offset + size);
+            mView.position(offset);
+            mView.get(data, 0, size);
+            return size;
+        }
+
+        /**
+         * Hands the current buffer back to the producer and moves on to the next.
+         */
+        void release() {
+            mTail = mTail + 1;
+            final Thread producer = mBlockedProducer;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+
+        private void wake() {
+            final Thread waiter = mWaiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+            final Runnable wakeUp = mWakeUp;
+            if (wakeUp != null) {
+                wakeUp.run();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,712 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A long-lived capture pipeline: a {@link PcmSource}, the {@link AudioRing} behind it, voice
+ * detection and, optionally, an {@link EncoderStage} writing a {@link Recording}.
+ *
+ * <p>The source and the threads stay up from {@link #start()} to {@link #close()}, across any
+ * number of utterances. Only the per-utterance pieces are rotated when an utterance ends: the
+ * {@link Listener} sees {@link Listener#onVoiceEnd()} and, if enabled, the recording moves on to
+ * a new file at exactly the point in the audio where the utterance ended.</p>
+ *
+ * <p>Time within the session is measured in captured samples, not on the wall clock, so that
+ * the speech timeouts mean the same thing for a paced microphone and an unpaced replay.</p>
+ *
+ * <p>The capture has a thread of its own, as reading the source blocks. Voice detection and the
+ * encoder get a thread each too, unless a {@link WorkerPool} is set with
+ * {@link #setWorkerPool(WorkerPool)}: then they run in turns on its workers, which many sessions
+ * can share.</p>
+ *
+ * <p>This class has no Android dependencies; the platform specifics come in through the
+ * {@link PcmSource}, the {@link Recording} and the capture {@link ThreadFactory}.</p>
+ */
+class CaptureSession {
+
+    private static final int FRAME_SIZE = OpusFrameWriter.FRAME_SIZE;
+    private static final int RING_MILLIS = 2000;
+    private static final int ENCODER_QUEUE_MILLIS = 1000;
+    private static final int ENCODER_SPILL_MILLIS = 30 * 1000;
+    private static final int SPEECH_TIMEOUT_MILLIS = 1400;
+    private static final int MAX_SPEECH_LENGTH_MILLIS = 12 * 1000;
+    private static final int PRE_ROLL_MILLIS = 400;
+    private static final int TRAILING_SILENCE_MILLIS = 300;
+
+    private static final int READER_VOICE = 0;
+    private static final int READER_ENCODER = 1;
+
+    /**
+     * Receives the voice events of the session, on the voice thread or on one worker at a time.
+     */
+    interface Listener {
+
+        /**
+         * Called when an utterance starts. Followed by a single {@link #onVoice(byte[], int)} with
+         * the audio that preceded the voice, if any, and then by the voice itself.
+         *
+         * @param utterance The number of the utterance in the {@link UtteranceTracer}.
+         */
+        void onVoiceStart(int utterance);
+
+        /**
+         * Called with the audio of the utterance, in {@code ENCODING_PCM_16BIT}.
+         *
+         * <p>Only the first 300 milliseconds of a pause are passed on. If voice resumes after a
+         * longer pause, the last 400 milliseconds of the pause come in one piece right before
+         * it.</p>
+         *
+         * @param data The audio data. Only valid during the call, and not modified until it
+         *             returns, so it can be sent on without a copy.
+         * @param size The size of the actual data in {@code data}.
+         */
+        void onVoice(byte[] data, int size);
+
+        /**
+         * Called when the utterance ends.
+         */
+        void onVoiceEnd();
+
+    }
+
+    /**
+     * Where the encoded audio goes. Called where the encoder runs while the session runs, and
+     * never concurrently.
+     */
+    interface Recording extends FrameEncoder {
+
+        /**
+         * Starts a new output, e.g. a new file.
+         */
+        void begin();
+
+        /**
+         * Finishes the current output.
+         *
+         * @param utterance The number in the {@link UtteranceTracer} of the last utterance in
+         *                  the output, or 0 if there is none.
+         */
+        void finish(int utterance);
+
+    }
+
+    private final PcmSource mSource;
+
+    private final Listener mListener;
+
+    private final Recording mRecording;
+
+    private final VoiceDetector mVoiceDetector;
+
+    private final ThreadFactory mCaptureThreads;
+
+    private final OpusFrameWriter mFrameWriter;
+
+    private final Object mLock = new Object();
+
+    private EncoderStage.Policy mEncoderPolicy = EncoderStage.Policy.SPILL;
+
+    private volatile boolean mRotateRecording = true;
+
+    private volatile boolean mLossless;
+
+    private volatile WorkerPool mWorkers;
+
+    private volatile boolean mStarted;
+
+    /** The utterance to end as soon as the voice thread gets to it, or 0. */
+    private volatile int mDismissedUtterance;
+
+    /** The utterance started last in this session, or 0; written by the voice thread. */
+    private volatile int mLastUtterance;
+
+    /** The utterance the last rotated output ended with, or 0; written by the encoder. */
+    private volatile int mRotatedUtterance;
+
+    /**
+     * The tasks still to end before the last output is finished, on a {@link WorkerPool}; the
+     * voice task may start an utterance whose audio the encoder has already written.
+     */
+    private final AtomicInteger mTasksRunning = new AtomicInteger();
+
+    private AudioRing mRing;
+
+    private EncoderStage mEncoderStage;
+
+    private Thread mCaptureThread;
+
+    private Thread mVoiceThread;
+
+    private Thread mEncoderThread;
+
+    private WorkerPool.Task mVoiceTask;
+
+    private WorkerPool.Task mEncoderTask;
+
+    /**
+     * @param source         The audio to capture.
+     * @param listener       Receives the voice events.
+     * @param recording      Where to write the encoded audio, or {@code null} not to encode.
+     * @param voiceDetector  Decides which audio is voice.
+     * @param captureThreads Creates the thread that reads {@code source}, e.g. to raise its
+     *                       priority.
+     */
+    CaptureSession(PcmSource source, Listener listener, Recording recording,
+            VoiceDetector voiceDetector, ThreadFactory captureThreads) {
+        mSource = source;
+        mListener = listener;
+        mRecording = recording;
+        mVoiceDetector = voiceDetector;
+        mCaptureThreads = captureThreads;
+        mFrameWriter = recording == null ? null : new OpusFrameWriter(recording);
+    }
+
+    /**
+     * Sets what the encoder does when it falls more than a second behind the capture. Takes effect
+     * on the next {@link #start()}.
+     */
+    void setEncoderPolicy(EncoderStage.Policy policy) {
+        mEncoderPolicy = policy;
+    }
+
+    /**
+     * Sets whether the recording moves on to a new output whenever an utterance ends. Enabled by
+     * default.
+     */
+    void setRotateRecording(boolean rotate) {
+        mRotateRecording = rotate;
+    }
+
+    /**
+     * Sets whether the capture waits for the voice thread rather than drop audio when the voice
+     * thread falls a whole ring behind, e.g. to replay a file faster than real time. Off by
+     * default, as a microphone cannot wait. Takes effect on the next {@link #start()}.
+     */
+    void setLossless(boolean lossless) {
+        mLossless = lossless;
+    }
+
+    /**
+     * Runs voice detection and the encoder in turns on {@code workers} rather than on threads of
+     * their own, or on their own threads again with {@code null}. Takes effect on the next
+     * {@link #start()}, which takes two tasks of the pool.
+     */
+    void setWorkerPool(WorkerPool workers) {
+        mWorkers = workers;
+    }
+
+    /**
+     * Opens the source and starts the threads.
+     *
+     * @return {@code false} if the source cannot be opened.
+     * @throws IllegalStateException If the {@link WorkerPool} has no room for the session.
+     */
+    boolean start() {
+        synchronized (mLock) {
+            close();
+            if (!mSource.open()) {
+                return false;
+            }
+            final int bufferSize = mSource.getBufferSize();
+            // Whole frames per slot, so that frames go to the encoder straight from the ring.
+            final int slotSize = (bufferSize + FRAME_SIZE - 1) / FRAME_SIZE * FRAME_SIZE;
+            final int bytesPerSecond = mSource.getSampleRate() * 2;
+            final int slots = bytesPerSecond * RING_MILLIS / 1000 / slotSize + 1;
+            mRing = new AudioRing(Math.max(slots, 4), slotSize, mRecording != null ? 2 : 1);
+            mStarted = true;
+            mDismissedUtterance = 0;
+            mLastUtterance = 0;
+            mRotatedUtterance = 0;
+            mVoiceDetector.reset(mSource.getSampleRate());
+            if (mLossless) {
+                mRing.getReader(READER_VOICE).block(mRing.getSlots());
+            }
+            final ProcessVoice voice = new ProcessVoice(mRing.getReader(READER_VOICE), bufferSize,
+                    mSource.getSampleRate(), bytesPerSecond * PRE_ROLL_MILLIS / 1000);
+            if (mRecording != null) {
+                mFrameWriter.reset();
+                mRecording.begin();
+                mEncoderStage = new EncoderStage(mRing.getReader(READER_ENCODER), slotSize,
+                        mFrameWriter, mEncoderPolicy,
+                        Math.min(bytesPerSecond * ENCODER_QUEUE_MILLIS / 1000 / slotSize + 1,
+                                mRing.getSlots() - 1),
+                        bytesPerSecond * ENCODER_SPILL_MILLIS / 1000 / slotSize + 1,
+                        new EncoderStage.Rotation() {
+                            @Override
+                            public void rotate(int utterance) {
+                                mRotatedUtterance = utterance;
+                                mRecording.finish(utterance);
+                                mRecording.begin();
+                            }
+                        });
+            } else {
+                mEncoderStage = null;
+            }
+            final WorkerPool workers = mWorkers;
+            if (workers != null) {
+                final WorkerPool.Task[] tasks;
+                try {
+                    tasks = mEncoderStage != null
+                            ? workers.newTasks(voice, new EncodeTurns(mEncoderStage))
+                            : workers.newTasks(voice);
+                } catch (IllegalStateException e) {
+                    mStarted = false;
+                    if (mRecording != null) {
+                        mRecording.finish(0);
+                    }
+                    mSource.close();
+                    throw e;
+                }
+                mTasksRunning.set(tasks.length);
+                mVoiceTask = tasks[0];
+                wakeUp(mRing.getReader(READER_VOICE), mVoiceTask);
+                if (mEncoderStage != null) {
+                    mEncoderTask = tasks[1];
+                    wakeUp(mRing.getReader(READER_ENCODER), mEncoderTask);
+                }
+            } else {
+                mVoiceThread = new Thread(voice, "CaptureSession-voice");
+                mVoiceThread.start();
+                if (mEncoderStage != null) {
+                    mEncoderThread = new Thread(mEncoderStage, "CaptureSession-encoder");
+                    mEncoderThread.start();
+                }
+            }
+            mCaptureThread = mCaptureThreads.newThread(new CaptureAudio(mRing, bufferSize));
+            mCaptureThread.start();
+            return true;
+        }
+    }
+
+    /**
+     * Ends {@code utterance}, if it is still going on, as soon as the voice thread gets to it. Once
+     * it is over, e.g. on its own timeout, this does nothing, so that a dismiss that comes in late
+     * cannot cut the next utterance short. May be called from any thread.
+     *
+     * @param utterance The number of the utterance in the {@link UtteranceTracer}.
+     */
+    void dismiss(int utterance) {
+        mDismissedUtterance = utterance;
+    }
+
+    /**
+     * Waits until a source that ends, e.g. a replayed file, has run out and all of its audio has
+     * been through voice detection and the encoder. Returns right away if the session is not
+     * started, or on a worker of its {@link WorkerPool}. {@link #close()} is still to be called
+     * afterwards.
+     */
+    void awaitEnd() throws InterruptedException {
+        final Thread capture;
+        final Thread voice;
+        final Thread encoder;
+        final WorkerPool.Task voiceTask;
+        final WorkerPool.Task encoderTask;
+        synchronized (mLock) {
+            capture = mCaptureThread;
+            voice = mVoiceThread;
+            encoder = mEncoderThread;
+            voiceTask = mVoiceTask;
+            encoderTask = mEncoderTask;
+        }
+        // The capture thread closes the ring at the end of the source, which the others drain.
+        for (Thread thread : new Thread[]{capture, voice, encoder}) {
+            if (thread != null && thread != Thread.currentThread()) {
+                thread.join();
+            }
+        }
+        for (WorkerPool.Task task : new WorkerPool.Task[]{voiceTask, encoderTask}) {
+            if (task != null) {
+                task.await();
+            }
+        }
+    }
+
+    /**
+     * Stops capturing. The encoder drains what was captured and the recording is finished; an
+     * ongoing utterance ends. Safe to call from a {@link Listener} callback; on a worker of the
+     * {@link WorkerPool} it does not wait for the encoder to drain.
+     */
+    void close() {
+        synchronized (mLock) {
+            mStarted = false;
+            // The capture thread finishes its read and closes the ring; the encoder drains what
+            // is left of it before the recording is finished.
+            join(mCaptureThread);
+            mCaptureThread = null;
+            if (mRing != null) {
+                mRing.close();
+            }
+            join(mEncoderThread);
+            // The tasks finish the recording themselves.
+            await(mEncoderTask);
+            mEncoderTask = null;
+            join(mVoiceThread);
+            mVoiceThread = null;
+            if (mEncoderThread != null) {
+                mEncoderThread = null;
+                finishRecording();
+            }
+            await(mVoiceTask);
+            mVoiceTask = null;
+            mSource.close();
+        }
+    }
+
+    /**
+     * @return The sample rate of the captured audio, or 0 if the session is not started.
+     */
+    int getSampleRate() {
+        return mSource.getSampleRate();
+    }
+
+    /**
+     * @return The encoder stage of the last {@link #start()}, or {@code null} if there is no
+     * recording.
+     */
+    EncoderStage getEncoderStage() {
+        return mEncoderStage;
+    }
+
+    /**
+     * @return The number of buffers the capture thread had to drop since the last
+     * {@link #start()}.
+     */
+    long getOverruns() {
+        final AudioRing ring = mRing;
+        return ring == null ? 0 : ring.getOverruns();
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureSession{overruns=" + getOverruns()
+                + ", encoder=" + mEncoderStage
+                + "}";
+    }
+
+    /**
+     * Called as each task on the {@link WorkerPool} ends; the last one finishes the recording.
+     */
+    private void taskEnded() {
+        if (mTasksRunning.decrementAndGet() == 0 && mRecording != null) {
+            finishRecording();
+        }
+    }
+
+    /**
+     * Finishes the last output, once the encoder has drained and voice detection has seen all
+     * of its audio. It ends with the utterance started last, unless that one already went out
+     * with a rotation.
+     */
+    private void finishRecording() {
+        final int utterance = mLastUtterance;
+        mRecording.finish(utterance != mRotatedUtterance ? utterance : 0);
+    }
+
+    /**
+     * Waits for {@code thread} to finish, unless it is the calling thread.
+     */
+    private static void join(Thread thread) {
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for {@code task} to be over, if there is one; see {@link WorkerPool.Task#await()}.
+     */
+    private static void await(WorkerPool.Task task) {
+        if (task == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                task.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Has the capture thread schedule {@code task} whenever {@code reader} has audio.
+     */
+    private static void wakeUp(AudioRing.Reader reader, final WorkerPool.Task task) {
+        reader.setWakeUp(new Runnable() {
+            @Override
+            public void run() {
+                task.schedule();
+            }
+        });
+    }
+
+    /**
+     * Reads the source into the ring and does nothing else, so that it keeps up with the hardware
+     * no matter what the consumers are doing.
+     */
+    private class CaptureAudio implements Runnable {
+
+        private final AudioRing mCaptureRing;
+
+        private final int mBufferSize;
+
+        CaptureAudio(AudioRing ring, int bufferSize) {
+            mCaptureRing = ring;
+            mBufferSize = bufferSize;
+        }
+
+        @Override
+        public void run() {
+            // Audio read while every slot is taken lands here and is dropped.
+            final ByteBuffer overrun = ByteBuffer.allocateDirect(mCaptureRing.getSlotSize());
+            while (mStarted) {
+                ByteBuffer slot = mCaptureRing.claim();
+                final boolean dropped = slot == null;
+                if (dropped) {
+                    slot = overrun;
+                    PipelineMetrics.CAPTURE_OVERRUNS.increment();
+                }
+                final long started = System.nanoTime();
+                final int size = mSource.read(slot, mBufferSize);
+                if (size == PcmSource.END_OF_STREAM) {
+                    break;
+                }
+                PipelineMetrics.CAPTURE_READ.recordSince(started);
+                if (size < 0) {
+                    PipelineMetrics.CAPTURE_READ_ERRORS.increment();
+                }
+                if (size > 0 && !dropped) {
+                    mCaptureRing.publish(size);
+                }
+            }
+            mCaptureRing.close();
+        }
+
+    }
+
+    /**
+     * Runs the {@link EncoderStage} in turns, until it has drained.
+     */
+    private class EncodeTurns implements WorkerPool.Work {
+
+        private final EncoderStage mStage;
+
+        EncodeTurns(EncoderStage stage) {
+            mStage = stage;
+        }
+
+        @Override
+        public boolean process(int max) {
+            boolean more = false;
+            try {
+                more = mStage.process(max);
+            } finally {
+                // A throw ends the task too; see WorkerPool.Task#run().
+                if (!more) {
+                    taskEnded();
+                }
+            }
+            return more;
+        }
+
+        @Override
+        public boolean isPending() {
+            return mStage.isPending();
+        }
+
+    }
+
+    /**
+     * Runs voice detection on the captured audio and notifies {@link #mListener}.
+     */
+    private class ProcessVoice implements Runnable, WorkerPool.Work {
+
+        private final AudioRing.Reader mReader;
+
+        private final byte[] mBuffer;
+
+        /**
+         * The audio before the current utterance, to go out right after it starts, or the
+         * silence held back within the utterance, to go out when voice resumes.
+         */
+        private final LookbackBuffer mLookback;
+
+        private final byte[] mPreRoll;
+
+        private final int mSampleRate;
+
+        /** The number of samples processed so far; the clock of the session. */
+        private long mSamples;
+
+        /** The time, in milliseconds of audio, when voice was last heard. */
+        private long mLastVoiceHeardMillis = Long.MAX_VALUE;
+
+        /** The time, in milliseconds of audio, when the current voice started. */
+        private long mVoiceStartedMillis;
+
+        /** The number of the current utterance in the {@link UtteranceTracer}. */
+        private int mUtterance;
+
+        /** When the current utterance started, on the monotonic clock. */
+        private long mUtteranceStartedNanos;
+
+        ProcessVoice(AudioRing.Reader reader, int bufferSize, int sampleRate, int preRollSize) {
+            mReader = reader;
+            mSampleRate = sampleRate;
+            mBuffer = new byte[bufferSize];
+            mLookback = new LookbackBuffer(preRollSize);
+            mPreRoll = new byte[mLookback.capacity()];
+        }
+
+        @Override
+        public void run() {
+            while (mStarted && mReader.await()) {
+                step();
+            }
+            finish();
+        }
+
+        @Override
+        public boolean process(int max) {
+            boolean more = false;
+            try {
+                for (int i = 0; i < max && mStarted && mReader.poll(); i++) {
+                    step();
+                }
+                if (!mStarted || mReader.isDrained()) {
+                    finish();
+                } else {
+                    more = true;
+                }
+            } finally {
+                // A throw, e.g. of the listener, ends the task too; see WorkerPool.Task#run().
+                // Then the capture must not wait for this reader either.
+                if (!more) {
+                    mReader.unblock();
+                    taskEnded();
+                }
+            }
+            return more;
+        }
+
+        @Override
+        public boolean isPending() {
+            return !mStarted || mReader.poll() || mReader.isDrained();
+        }
+
+        /**
+         * Processes the current buffer of the ring.
+         */
+        private void step() {
+            // Detection reads the ring in place; the one copy of the audio is for the
+            // recognizer and the pre-roll.
+            final boolean voice = mVoiceDetector.isHearingVoice(mReader.samples(),
+                    mReader.offset() / 2, mReader.size() / 2);
+            final int size = mReader.copyTo(mBuffer);
+            mReader.release();
+
+            if (mDismissedUtterance == mUtterance && mLastVoiceHeardMillis != Long.MAX_VALUE) {
+                end();
+            }
+
+            mSamples += size / 2;
+            final long now = mSamples * 1000 / mSampleRate;
+
+            if (voice) {
+                if (mLastVoiceHeardMillis == Long.MAX_VALUE) {
+                    mVoiceStartedMillis = now;
+                    mUtteranceStartedNanos = System.nanoTime();
+                    mUtterance = UtteranceTracer.get().beginUtterance();
+                    mLastUtterance = mUtterance;
+                    mListener.onVoiceStart(mUtterance);
+                }
+                // The onset of the word, in one piece.
+                final int preRoll = mLookback.drainTo(mPreRoll);
+                if (preRoll > 0) {
+                    mListener.onVoice(mPreRoll, preRoll);
+                }
+                mListener.onVoice(mBuffer, size);
+                mLastVoiceHeardMillis = now;
+                if (now - mVoiceStartedMillis > MAX_SPEECH_LENGTH_MILLIS) {
+                    end();
+                }
+            } else if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
+                // A short tail of silence goes out; the rest is held back in case voice
+                // resumes, and dropped if the utterance ends.
+                if (now - mLastVoiceHeardMillis <= TRAILING_SILENCE_MILLIS) {
+                    mListener.onVoice(mBuffer, size);
+                } else {
+                    mLookback.write(mBuffer, size);
+                }
+                if (now - mLastVoiceHeardMillis > SPEECH_TIMEOUT_MILLIS) {
+                    end();
+                }
+            } else {
+                mLookback.write(mBuffer, size);
+            }
+        }
+
+        /**
+         * Ends what is left once the session is stopped or the ring is drained.
+         */
+        private void finish() {
+            // A lossless capture must not wait for this reader any more.
+            mReader.unblock();
+            if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
+                // Stopped, or a replayed recording has run out; close the utterance.
+                end();
+            }
+        }
+
+        /**
+         * Ends the utterance. The recording rotates right after the audio seen so far.
+         */
+        private void end() {
+            mLastVoiceHeardMillis = Long.MAX_VALUE;
+            if (mRotateRecording && mStarted && mEncoderStage != null) {
+                mEncoderStage.rotateAt(mReader.sequence(), mUtterance);
+            }
+            final UtteranceTracer tracer = UtteranceTracer.get();
+            tracer.instant(UtteranceTracer.Stage.VOICE_END, mUtterance);
+            tracer.span(UtteranceTracer.Stage.UTTERANCE, mUtterance, mUtteranceStartedNanos);
+            mListener.onVoiceEnd();
+        }
+
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Batches audio into chunks of a target size before it is sent, so that the number of messages
+ * on the stream does not depend on how small the device's capture buffers happen to be.
+ *
+ * <p>A chunk goes out as soon as it holds the target duration or the target number of bytes,
+ * whichever is less. Audio never waits longer than the flush deadline: if the audio stops coming,
+ * e.g. in a pause, whatever is pending is sent when the deadline of its first byte passes. Writes
+ * that are at least a chunk on their own are passed through without a copy. Once the timer is
+ * shut down, e.g. while its owner is destroyed, nothing could enforce the deadline, so audio is
+ * passed through as it comes.</p>
+ *
+ * <p>Thread safe. The {@link Sink} is called with the coalescer locked, and never
+ * concurrently.</p>
+ */
+class ChunkCoalescer {
+
+    /**
+     * Receives the chunks.
+     */
+    interface Sink {
+
+        /**
+         * @param data The audio data. Not modified until the call returns.
+         * @param size The size of the actual data in {@code data}.
+         */
+        void send(byte[] data, int size);
+
+    }
+
+    private final Sink mSink;
+
+    private final ScheduledExecutorService mTimer;
+
+    private final Object mLock = new Object();
+
+    /**
+     * Flushes the pending chunk if its deadline has passed, and otherwise waits for the deadline.
+     * At most one is scheduled at a time.
+     */
+    private final Runnable mDeadline = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mDeadlineScheduled = false;
+                if (mPending == 0) {
+                    return;
+                }
+                final long remaining = mPendingSince + mDeadlineNanos - System.nanoTime();
+                if (remaining <= 0 || !scheduleDeadline(remaining)) {
+                    mDeadlineFlushes++;
+                    flushLocked();
+                }
+            }
+        }
+    };
+
+    private int mTargetMillis;
+
+    private int mMaxBytes;
+
+    private long mDeadlineNanos;
+
+    /** The size at which a chunk goes out; set by {@link #start(int)}. */
+    private int mTargetBytes;
+
+    /** Holds the pending chunk; twice the target, so that a chunk never has to be split. */
+    private byte[] mBuffer = new byte[0];
+
+    private int mPending;
+
+    /** When the first byte of the pending chunk came in. */
+    private long mPendingSince;
+
+    private boolean mDeadlineScheduled;
+
+    private volatile long mStartedNanos;
+
+    private volatile long mMessages;
+
+    private volatile long mBytes;
+
+    private volatile long mDeadlineFlushes;
+
+    /**
+     * @param sink         Where the chunks go.
+     * @param timer        Runs the flush deadlines.
+     * @param targetMillis The duration of audio in a chunk.
+     * @param maxBytes     The size of a chunk at most, whatever its duration.
+     * @param deadline     The time in milliseconds that audio may wait in a pending chunk.
+     */
+    ChunkCoalescer(Sink sink, ScheduledExecutorService timer, int targetMillis, int maxBytes,
+            int deadline) {
+        mSink = sink;
+        mTimer = timer;
+        setTargets(targetMillis, maxBytes, deadline);
+    }
+
+    /**
+     * Tunes the chunk size and the flush deadline. Takes effect on the next {@link #start(int)}.
+     *
+     * @see #ChunkCoalescer(Sink, ScheduledExecutorService, int, int, int)
+     */
+    void setTargets(int targetMillis, int maxBytes, int deadline) {
+        synchronized (mLock) {
+            mTargetMillis = Math.max(targetMillis, 0);
+            mMaxBytes = Math.max(maxBytes, 2);
+            mDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(deadline, 0));
+        }
+    }
+
+    /**
+     * Drops any pending audio and starts counting anew, for a new stream.
+     *
+     * @param sampleRate The sample rate of the 16-bit mono audio to come.
+     */
+    void start(int sampleRate) {
+        synchronized (mLock) {
+            final long fromDuration = (long) sampleRate * 2 * mTargetMillis / 1000;
+            mTargetBytes = Math.max((int) Math.min(fromDuration, mMaxBytes) & ~1, 2);
+            if (mBuffer.length != mTargetBytes * 2) {
+                mBuffer = new byte[mTargetBytes * 2];
+            }
+            mPending = 0;
+            mMessages = 0;
+            mBytes = 0;
+            mDeadlineFlushes = 0;
+            mStartedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Adds audio to the pending chunk, and sends the chunk if it is full.
+     *
+     * @param data The audio data. Only read during the call.
+     * @param size The size of the actual data in {@code data}.
+     */
+    void write(byte[] data, int size) {
+        if (size <= 0) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mPending > 0 && mPending + size > mBuffer.length) {
+                flushLocked();
+            }
+            if (mPending == 0 && size >= mTargetBytes) {
+                send(data, size);
+                return;
+            }
+            if (mPending == 0) {
+                mPendingSince = System.nanoTime();
+                if (!mDeadlineScheduled && !scheduleDeadline(mDeadlineNanos)) {
+                    send(data, size);
+                    return;
+                }
+            }
+            System.arraycopy(data, 0, mBuffer, mPending, size);
+            mPending += size;
+            if (mPending >= mTargetBytes) {
+                flushLocked();
+            }
+        }
+    }
+
+    /**
+     * Sends the pending chunk right away, e.g. before the stream is closed.
+     */
+    void flush() {
+        synchronized (mLock) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * @return The size in bytes at which a chunk goes out.
+     */
+    int getTargetBytes() {
+        synchronized (mLock) {
+            return mTargetBytes;
+        }
+    }
+
+    /**
+     * @return The number of chunks sent since {@link #start(int)}.
+     */
+    long getMessages() {
+        return mMessages;
+    }
+
+    /**
+     * @return The average number of chunks sent per second since {@link #start(int)}.
+     */
+    double getMessagesPerSecond() {
+        final long elapsed = System.nanoTime() - mStartedNanos;
+        return elapsed > 0 ? mMessages * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * @return The average size of a chunk in bytes since {@link #start(int)}.
+     */
+    long getAveragePayload() {
+        final long messages = mMessages;
+        return messages > 0 ? mBytes / messages : 0;
+    }
+
+    /**
+     * @return The number of chunks that went out on their deadline rather than full.
+     */
+    long getDeadlineFlushes() {
+        return mDeadlineFlushes;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkCoalescer{targetBytes=" + getTargetBytes()
+                + ", messages=" + mMessages
+                + ", messagesPerSecond=" + Math.round(getMessagesPerSecond())
+                + ", averagePayload=" + getAveragePayload()
+                + ", deadlineFlushes=" + mDeadlineFlushes
+                + "}";
+    }
+
+    /**
+     * @return {@code false} if the timer is shut down and takes no more deadlines.
+     */
+    private boolean scheduleDeadline(long delayNanos) {
+        try {
+            mTimer.schedule(mDeadline, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        mDeadlineScheduled = true;
+        return true;
+    }
+
+    private void flushLocked() {
+        if (mPending > 0) {
+            final int size = mPending;
+            mPending = 0;
+            send(mBuffer, size);
+        }
+    }
+
+    private void send(byte[] data, int size) {
+        mMessages++;
+        mBytes += size;
+        mSink.send(data, size);
+    }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+
+/**
+ * Drains one {@link AudioRing.Reader} into an {@link OpusFrameWriter} on its own thread, or in
+ * turns on a {@link WorkerPool}, so that the encoder's CPU time never lands on the capture thread.
+ *
+ * <p>The encoder may have at most {@code capacity} captured buffers queued in the ring. What
+ * happens when it falls further behind is chosen with a {@link Policy}. Queue depth and encode
+ * time are tracked and can be read from any thread while the stage runs.</p>
+ *
+ * <p>The output can be rotated, e.g. to a new file, at a given point in the captured audio with
+ * {@link #rotateAt(long, int)}.</p>
+ */
+class EncoderStage implements Runnable, WorkerPool.Work {
+
+    /**
+     * The number of rotations that may be pending at once; more than the utterances that fit in
+     * the spill limit.
+     */
+    private static final int MAX_ROTATIONS = 32;
+
+    /**
+     * Rotates the output, where the stage runs.
+     */
+    interface Rotation {
+
+        /**
+         * @param utterance The utterance that the finished output ends with, as given to
+         *                  {@link #rotateAt(long, int)}.
+         */
+        void rotate(int utterance);
+
+    }
+
+    /**
+     * What the stage does when more than {@code capacity} buffers are waiting to be encoded.
+     */
+    enum Policy {
+
+        /** The capture thread waits for the encoder. Nothing is lost, but the capture stalls. */
+        BLOCK,
+
+        /** The oldest queued audio is skipped, so the file has gaps but stays current. */
+        DROP_OLDEST,
+
+        /**
+         * The oldest queued audio is copied to the heap and encoded first, so nothing is lost
+         * while the encoder catches up. Past the spill limit the oldest spilled audio is dropped.
+         */
+        SPILL,
+    }
+
+    private final AudioRing.Reader mReader;
+
+    private final OpusFrameWriter mWriter;
+
+    private final Policy mPolicy;
+
+    private final int mCapacity;
+
+    private final int mSpillLimit;
+
+    private final int mSlotSize;
+
+    private final Rotation mRotation;
+
+    /**
+     * Ring sequence numbers to rotate the output before, in order; a ring of primitives, so that
+     * checking them for every buffer allocates nothing.
+     */
+    private final long[] mRotations = new long[MAX_ROTATIONS];
+
+    /** The utterance of each of {@link #mRotations}. */
+    private final int[] mRotationUtterances = new int[MAX_ROTATIONS];
+
+    /** The number of rotations added so far. Written under {@link #mRotations} only. */
+    private volatile long mRotationsAdded;
+
+    /** The number of rotations done so far. Written by the stage only. */
+    private volatile long mRotationsDone;
+
+    /** Spilled audio, oldest first. */
+    private final ArrayDeque<Spilled> mSpill = new ArrayDeque<>();
+
+    /** Encoded spills, kept for reuse. */
+    private final ArrayDeque<Spilled> mSpillPool = new ArrayDeque<>();
+
+    /** Spilled audio is copied back here to be encoded. */
+    private ByteBuffer mSpillBuffer;
+
+    private volatile int mQueueDepth;
+
+    private volatile int mMaxQueueDepth;
+
+    private volatile long mEncodedBuffers;
+
+    private volatile long mEncodeNanos;
+
+    private volatile long mMaxEncodeNanos;
+
+    private volatile long mDroppedBuffers;
+
+    private volatile long mSpilledBuffers;
+
+    private volatile long mEncodeErrors;
+
+    /**
+     * @param reader     The reader to drain.
+     * @param slotSize   The slot size of the reader's ring.
+     * @param writer     The encoder to feed.
+     * @param policy     What to do when the encoder falls behind.
+     * @param capacity   The number of buffers the encoder may have queued in the ring.
+     * @param spillLimit The number of buffers that may be spilled with {@link Policy#SPILL}.
+     * @param rotation   Rotates the output; see {@link #rotateAt(long, int)}.
+     */
+    EncoderStage(AudioRing.Reader reader, int slotSize, OpusFrameWriter writer, Policy policy,
+            int capacity, int spillLimit, Rotation rotation) {
+        mReader = reader;
+        mRotation = rotation;
+        mSlotSize = slotSize;
+        mWriter = writer;
+        mPolicy = policy;
+        mCapacity = Math.max(capacity, 1);
+        mSpillLimit = Math.max(spillLimit, 1);
+        if (policy == Policy.BLOCK) {
+            reader.block(mCapacity);
+        }
+    }
+
+    @Override
+    public void run() {
+        // Drains the ring even after it is closed, so the file gets all of the captured audio.
+        while (!mSpill.isEmpty() || mReader.await()) {
+            step();
+        }
+        mQueueDepth = 0;
+    }
+
+    @Override
+    public boolean process(int max) {
+        for (int i = 0; i < max && (!mSpill.isEmpty() || mReader.poll()); i++) {
+            step();
+        }
+        if (mSpill.isEmpty() && mReader.isDrained()) {
+            mQueueDepth = 0;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isPending() {
+        return !mSpill.isEmpty() || mReader.poll() || mReader.isDrained();
+    }
+
+    /**
+     * Rotates the output before the buffer with ring sequence number {@code sequence} is encoded,
+     * dropping any partial frame. May be called from any thread.
+     *
+     * @param utterance The utterance that ends there, passed on to the {@link Rotation}.
+     */
+    void rotateAt(long sequence, int utterance) {
+        synchronized (mRotations) {
+            final long added = mRotationsAdded;
+            if (added - mRotationsDone == MAX_ROTATIONS) {
+                // Far behind; the last two outputs become one, which ends with this utterance.
+                mRotations[(int) ((added - 1) % MAX_ROTATIONS)] = sequence;
+                mRotationUtterances[(int) ((added - 1) % MAX_ROTATIONS)] = utterance;
+                return;
+            }
+            mRotations[(int) (added % MAX_ROTATIONS)] = sequence;
+            mRotationUtterances[(int) (added % MAX_ROTATIONS)] = utterance;
+            mRotationsAdded = added + 1;
+        }
+    }
+
+    /**
+     * @return The number of buffers waiting to be encoded.
+     */
+    int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * @return The largest number of buffers that were ever waiting to be encoded.
+     */
+    int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return The number of buffers encoded so far.
+     */
+    long getEncodedBuffers() {
+        return mEncodedBuffers;
+    }
+
+    /**
+     * @return The time spent encoding so far, in nanoseconds.
+     */
+    long getEncodeNanos() {
+        return mEncodeNanos;
+    }
+
+    /**
+     * @return The longest time spent encoding a single buffer, in nanoseconds.
+     */
+    long getMaxEncodeNanos() {
+        return mMaxEncodeNanos;
+    }
+
+    /**
+     * @return The number of buffers dropped because the encoder fell behind.
+     */
+    long getDroppedBuffers() {
+        return mDroppedBuffers;
+    }
+
+    /**
+     * @return The number of buffers spilled to the heap because the encoder fell behind.
+     */
+    long getSpilledBuffers() {
+        return mSpilledBuffers;
+    }
+
+    /**
+     * @return The number of frames the encoder failed to write.
+     */
+    long getEncodeErrors() {
+        return mEncodeErrors;
+    }
+
+    @Override
+    public String toString() {
+        final long encoded = mEncodedBuffers;
+        return "EncoderStage{policy=" + mPolicy
+                + ", encoded=" + encoded
+                + ", avgEncodeMicros=" + (encoded > 0 ? mEncodeNanos / encoded / 1000 : 0)
+                + ", maxEncodeMicros=" + mMaxEncodeNanos / 1000
+                + ", maxQueueDepth=" + mMaxQueueDepth
+                + ", dropped=" + mDroppedBuffers
+                + ", spilled=" + mSpilledBuffers
+                + ", errors=" + mEncodeErrors
+                + "}";
+    }
+
+    /**
+     * Encodes the next buffer, spilled or in the ring; there must be one.
+     */
+    private void step() {
+        final int depth = mReader.backlog() + mSpill.size();
+        mQueueDepth = depth;
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+        if (mReader.backlog() > mCapacity) {
+            shed();
+        }
+        if (!mSpill.isEmpty()) {
+            encodeSpilled();
+        } else {
+            rotateBefore(mReader.sequence());
+            encode(mReader.buffer(), mReader.offset(), mReader.size());
+            mReader.release();
+        }
+    }
+
+    /**
+     * Brings the backlog in the ring back down to {@link #mCapacity}. Only this reader's cursor
+     * moves, so the capture thread is never involved.
+     */
+    private void shed() {
+        while (mReader.backlog() > mCapacity) {
+            if (mPolicy == Policy.SPILL) {
+                spill();
+            } else {
+                mDroppedBuffers++;
+            }
+            mReader.release();
+        }
+    }
+
+    private void spill() {
+        if (mSpill.size() >= mSpillLimit) {
+            mSpillPool.add(mSpill.remove());
+            mDroppedBuffers++;
+        }
+        Spilled spilled = mSpillPool.poll();
+        if (spilled == null) {
+            spilled = new Spilled(mSlotSize);
+        }
+        spilled.mSequence = mReader.sequence();
+        spilled.mSize = mReader.copyTo(spilled.mData);
+        mSpill.add(spilled);
+        mSpilledBuffers++;
+    }
+
+    private void encodeSpilled() {
+        if (mSpillBuffer == null) {
+            mSpillBuffer = ByteBuffer.allocateDirect(mSlotSize);
+        }
+        final Spilled spilled = mSpill.remove();
+        rotateBefore(spilled.mSequence);
+        mSpillBuffer.clear();
+        mSpillBuffer.put(spilled.mData, 0, spilled.mSize);
+        mSpillPool.add(spilled);
+        encode(mSpillBuffer, 0, spilled.mSize);
+    }
+
+    private void rotateBefore(long sequence) {
+        long done = mRotationsDone;
+        while (done != mRotationsAdded && mRotations[(int) (done % MAX_ROTATIONS)] <= sequence) {
+            final int utterance = mRotationUtterances[(int) (done % MAX_ROTATIONS)];
+            mRotationsDone = ++done;
+            mWriter.reset();
+            mRotation.rotate(utterance);
+        }
+    }
+
+    private void encode(ByteBuffer buffer, int offset, int size) {
+        final long started = System.nanoTime();
+        try {
+            mEncodeErrors += mWriter.write(buffer, offset, size);
+        } catch (RuntimeException e) {
+            mEncodeErrors++;
+            PipelineMetrics.OPUS_WRITE_FRAME_ERRORS.increment();
+        }
+        final long elapsed = System.nanoTime() - started;
+        mEncodeNanos += elapsed;
+        if (elapsed > mMaxEncodeNanos) {
+            mMaxEncodeNanos = elapsed;
+        }
+        mEncodedBuffers++;
+    }
+
+    /**
+     * A captured buffer copied out of the ring.
+     */
+    private static class Spilled {
+
+        final byte[] mData;
+
+        long mSequence;
+
+        int mSize;
+
+        Spilled(int size) {
+            mData = new byte[size];
+        }
+
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A {@link PcmSource} that replays a WAV or raw LINEAR16 mono file through a memory mapping.
+ *
+ * <p>The replay is paced by {@code speed}: 1 replays in real time like a microphone would, 2
+ * replays twice as fast, and 0 delivers audio as fast as the caller reads it. Reads return
+ * {@link #END_OF_STREAM} once the file is exhausted; {@link #open()} rewinds to the start.</p>
+ */
+public class FilePcmSource implements PcmSource {
+
+    private static final int DEFAULT_BUFFER_MILLIS = 40;
+
+    private final File mFile;
+
+    private final float mSpeed;
+
+    private final int mRawSampleRate;
+
+    private final int mRequestedBufferSize;
+
+    /** The PCM payload of the file, positioned at the next byte to deliver. */
+    private ByteBuffer mData;
+
+    private int mSampleRate;
+
+    private int mBufferSize;
+
+    private long mStartedNanos;
+
+    private long mDeliveredBytes;
+
+    /**
+     * Replays a WAV file. The sample rate is read from the header.
+     *
+     * @param file  A 16-bit mono PCM WAV file.
+     * @param speed The replay speed relative to real time, or 0 for unpaced.
+     */
+    public FilePcmSource(File file, float speed) {
+        this(file, 0, speed, 0);
+    }
+
+    /**
+     * Replays a WAV file or a headerless raw LINEAR16 file.
+     *
+     * @param file       A 16-bit mono PCM WAV file, or a raw little endian LINEAR16 file.
+     * @param sampleRate The sample rate of a raw file, or 0 if {@code file} is a WAV file.
+     * @param speed      The replay speed relative to real time, or 0 for unpaced.
+     * @param bufferSize The buffer size to report from {@link #getBufferSize()}, or 0 to use 40
+     *                   milliseconds of audio.
+     */
+    public FilePcmSource(File file, int sampleRate, float speed, int bufferSize) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed must not be negative: " + speed);
+        }
+        mFile = file;
+        mRawSampleRate = sampleRate;
+        mSpeed = speed;
+        mRequestedBufferSize = bufferSize;
+    }
+
+    @Override
+    public boolean open() {
+        close();
+        final MappedByteBuffer mapped;
+        try {
+            final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+            try {
+                mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (mRawSampleRate > 0) {
+            mSampleRate = mRawSampleRate;
+            mData = mapped;
+        } else if (!parseWave(mapped)) {
+            return false;
+        }
+        mBufferSize = mRequestedBufferSize > 0
+                ? mRequestedBufferSize
+                : mSampleRate * 2 * DEFAULT_BUFFER_MILLIS / 1000;
+        mDeliveredBytes = 0;
+        mStartedNanos = System.nanoTime();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        mData = null;
+        mSampleRate = 0;
+        mBufferSize = 0;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int size) {
+        final int n = Math.min(size, mData.remaining()) & ~1;
+        if (n <= 0) {
+            return END_OF_STREAM;
+        }
+        mData.get(data, offset, n);
+        return deliver(n);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        final int n = Math.min(Math.min(size, buffer.capacity()), mData.remaining()) & ~1;
+        if (n <= 0) {
+            return END_OF_STREAM;
+        }
+        final int position = buffer.position();
+        final int limit = buffer.limit();
+        final int dataLimit = mData.limit();
+        buffer.clear();
+        mData.limit(mData.position() + n);
+        buffer.put(mData);
+        mData.limit(dataLimit);
+        buffer.limit(limit);
+        buffer.position(position);
+        return deliver(n);
+    }
+
+    /**
+     * Accounts for {@code n} delivered bytes and, if the replay is paced, sleeps until the audio
+     * would have been captured in real time.
+     */
+    private int deliver(int n) {
+        mDeliveredBytes += n;
+        if (mSpeed > 0) {
+            final long dueNanos = mStartedNanos + (long) (TimeUnit.SECONDS.toNanos(1)
+                    * (mDeliveredBytes / 2) / (mSampleRate * (double) mSpeed));
+            final long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Reads the RIFF header of a WAV file and points {@link #mData} at its "data" chunk.
+     *
+     * @return {@code true} if the file is 16-bit mono PCM.
+     */
+    private boolean parseWave(ByteBuffer file) {
+        if (file.remaining() < 12 || file.getInt(0) != 0x46464952 /* RIFF */
+                || file.getInt(8) != 0x45564157 /* WAVE */) {
+            return false;
+        }
+        int offset = 12;
+        boolean format = false;
+        while (offset + 8 <= file.limit()) {
+            final int id = file.getInt(offset);
+            final int size = file.getInt(offset + 4);
+            final int body = offset + 8;
+            if (id == 0x20746d66 /* fmt */) {
+                final int audioFormat = file.getShort(body) & 0xffff;
+                final int channels = file.getShort(body + 2) & 0xffff;
+                final int bitsPerSample = file.getShort(body + 14) & 0xffff;
+                if (audioFormat != 1 || channels != 1 || bitsPerSample != 16) {
+                    return false;
+                }
+                mSampleRate = file.getInt(body + 4);
+                format = true;
+            } else if (id == 0x61746164 /* data */ && format) {
+                file.position(body);
+                file.limit(Math.min(file.limit(), body + size));
+                mData = file.slice().order(ByteOrder.LITTLE_ENDIAN);
+                return true;
+            }
+            // Chunks are padded to an even size.
+            offset = body + size + (size & 1);
+        }
+        return false;
+    }
+
+}
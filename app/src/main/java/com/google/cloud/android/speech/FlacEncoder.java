@@ -0,0 +1,456 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Encodes LINEAR16 audio into a FLAC stream, as the API takes it with
+ * {@link UpstreamEncoding#FLAC}.
+ *
+ * <p>The first chunk of each stream starts with the "fLaC" marker and a STREAMINFO block; every
+ * chunk then holds whole frames, so it can be sent as one message. Frames have a variable block
+ * size, one block per chunk up to {@link #MAX_BLOCK_SIZE} samples. No block is shorter than the
+ * {@link #MIN_BLOCK_SIZE} declared in STREAMINFO: a longer chunk is split so that its last block
+ * is long enough, and a chunk that is shorter on its own, e.g. one cut short by a flush
+ * deadline, is padded by repeating its last sample, i.e. by less than a millisecond of
+ * audio.</p>
+ *
+ * <p>This is a small subset of what the reference encoder does, picked for speech on the audio
+ * thread: silence becomes a constant subframe, anything else the best of the fixed polynomial
+ * predictors with partitioned Rice coding, or verbatim samples if that does not help. There is
+ * no LPC search. Allocates nothing once its buffer fits the largest chunk.</p>
+ */
+class FlacEncoder extends UpstreamEncoder {
+
+    /** The largest block. Larger chunks are split into several frames. */
+    static final int MAX_BLOCK_SIZE = 4608;
+
+    /** The smallest block, declared in STREAMINFO; the smallest that FLAC allows. */
+    static final int MIN_BLOCK_SIZE = 16;
+
+    private static final int MAX_FIXED_ORDER = 4;
+
+    private static final int MAX_PARTITION_ORDER = 6;
+
+    /** Rice parameters take 4 bits, and 15 is the escape code. */
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int STREAM_HEADER_SIZE = 42;
+
+    /** The header and footer of a frame and the header of its subframe, at most. */
+    private static final int FRAME_OVERHEAD = 24;
+
+    private static final int[] CRC8 = new int[256];
+
+    private static final int[] CRC16 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8[i] = crc8 & 0xFF;
+            CRC16[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    private final int[] mSamples = new int[MAX_BLOCK_SIZE];
+
+    /** The residual of the chosen predictor, folded to unsigned. */
+    private final int[] mResidual = new int[MAX_BLOCK_SIZE];
+
+    private final long[] mPartitionSums = new long[1 << MAX_PARTITION_ORDER];
+
+    private final int[] mRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+
+    private int mSampleRate;
+
+    private boolean mHeaderPending;
+
+    /** The number of the first sample of the next frame. */
+    private long mSampleNumber;
+
+    private byte[] mOut = new byte[0];
+
+    private int mOutPosition;
+
+    /** Bits not yet written to {@link #mOut}, in the low {@link #mBitCount} bits. */
+    private long mBits;
+
+    private int mBitCount;
+
+    FlacEncoder(ChunkCoalescer.Sink sink) {
+        super(UpstreamEncoding.FLAC, sink);
+    }
+
+    @Override
+    void onStart(int sampleRate) {
+        mSampleRate = sampleRate;
+        mHeaderPending = true;
+        mSampleNumber = 0;
+    }
+
+    @Override
+    void encode(byte[] data, int size) {
+        final int chunkSamples = size / 2;
+        int samples = chunkSamples > 0 ? Math.max(chunkSamples, MIN_BLOCK_SIZE) : 0;
+        final int blocks = (samples + MAX_BLOCK_SIZE - 1) / MAX_BLOCK_SIZE;
+        final int capacity = STREAM_HEADER_SIZE + blocks * FRAME_OVERHEAD + samples * 2;
+        if (mOut.length < capacity) {
+            mOut = new byte[capacity];
+        }
+        mOutPosition = 0;
+        if (mHeaderPending) {
+            mHeaderPending = false;
+            writeStreamHeader();
+        }
+        int offset = 0;
+        while (samples > 0) {
+            int blockSize = Math.min(samples, MAX_BLOCK_SIZE);
+            if (samples - blockSize > 0 && samples - blockSize < MIN_BLOCK_SIZE) {
+                // Leave enough for the last block.
+                blockSize = samples - MIN_BLOCK_SIZE;
+            }
+            final int available = Math.min(blockSize, (size - offset) / 2);
+            for (int i = 0; i < available; i++) {
+                mSamples[i] = (data[offset] & 0xFF) | (data[offset + 1] << 8);
+                offset += 2;
+            }
+            for (int i = available; i < blockSize; i++) {
+                mSamples[i] = mSamples[available - 1];
+            }
+            writeFrame(blockSize);
+            samples -= blockSize;
+        }
+        if (mOutPosition > 0) {
+            emit(mOut, mOutPosition);
+        }
+    }
+
+    private void writeStreamHeader() {
+        writeBits(0x664C6143, 32); // "fLaC"
+        // The last metadata block, STREAMINFO, of 34 bytes.
+        writeBits(0x80, 8);
+        writeBits(34, 24);
+        writeBits(MIN_BLOCK_SIZE, 16);
+        writeBits(MAX_BLOCK_SIZE, 16);
+        // The frame sizes, the total number of samples and the MD5 signature are unknown.
+        writeBits(0, 24);
+        writeBits(0, 24);
+        writeBits(mSampleRate, 20);
+        writeBits(0, 3); // 1 channel
+        writeBits(15, 5); // 16 bits per sample
+        writeBits(0, 4);
+        writeBits(0, 32);
+        for (int i = 0; i < 4; i++) {
+            writeBits(0, 32);
+        }
+    }
+
+    private void writeFrame(int blockSize) {
+        final int start = mOutPosition;
+        writeBits(0xFFF9, 16); // Sync code, variable block size
+        writeBits(blockSize <= 256 ? 0x6 : 0x7, 4);
+        writeBits(sampleRateCode(mSampleRate), 4);
+        writeBits(0x0, 4); // Mono
+        writeBits(0x4, 3); // 16 bits per sample
+        writeBits(0, 1);
+        writeUtf8(mSampleNumber);
+        writeBits(blockSize - 1, blockSize <= 256 ? 8 : 16);
+        writeBits(crc8(start, mOutPosition), 8);
+        writeSubframe(blockSize);
+        if (mBitCount > 0) {
+            writeBits(0, 8 - mBitCount);
+        }
+        writeBits(crc16(start, mOutPosition), 16);
+        mSampleNumber += blockSize;
+    }
+
+    private void writeSubframe(int blockSize) {
+        if (isConstant(blockSize)) {
+            writeBits(0x00, 8);
+            writeBits(mSamples[0], 16);
+            return;
+        }
+        final int order = blockSize > MAX_FIXED_ORDER ? bestFixedOrder(blockSize) : -1;
+        final int partitionOrder = order >= 0 ? computeResidual(blockSize, order) : -1;
+        if (partitionOrder < 0) {
+            writeBits(0x02, 8);
+            for (int i = 0; i < blockSize; i++) {
+                writeBits(mSamples[i], 16);
+            }
+            return;
+        }
+        writeBits((0x08 | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            writeBits(mSamples[i], 16);
+        }
+        writeBits(0, 2); // Rice coding with 4-bit parameters
+        writeBits(partitionOrder, 4);
+        final int partitionSize = blockSize >> partitionOrder;
+        int i = order;
+        for (int partition = 0; partition < 1 << partitionOrder; partition++) {
+            final int parameter = mRiceParameters[partition];
+            writeBits(parameter, 4);
+            final int end = (partition + 1) * partitionSize;
+            for (; i < end; i++) {
+                writeRice(mResidual[i], parameter);
+            }
+        }
+    }
+
+    private boolean isConstant(int blockSize) {
+        final int first = mSamples[0];
+        for (int i = 1; i < blockSize; i++) {
+            if (mSamples[i] != first) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The order of the fixed predictor with the smallest residual.
+     */
+    private int bestFixedOrder(int blockSize) {
+        final int[] x = mSamples;
+        long sum0 = 0;
+        long sum1 = 0;
+        long sum2 = 0;
+        long sum3 = 0;
+        long sum4 = 0;
+        for (int i = MAX_FIXED_ORDER; i < blockSize; i++) {
+            final int e0 = x[i];
+            final int e1 = e0 - x[i - 1];
+            final int e2 = e1 - (x[i - 1] - x[i - 2]);
+            final int e3 = e2 - (x[i - 1] - 2 * x[i - 2] + x[i - 3]);
+            final int e4 = e3 - (x[i - 1] - 3 * x[i - 2] + 3 * x[i - 3] - x[i - 4]);
+            sum0 += Math.abs(e0);
+            sum1 += Math.abs(e1);
+            sum2 += Math.abs(e2);
+            sum3 += Math.abs(e3);
+            sum4 += Math.abs(e4);
+        }
+        int order = 0;
+        long best = sum0;
+        if (sum1 < best) {
+            order = 1;
+            best = sum1;
+        }
+        if (sum2 < best) {
+            order = 2;
+            best = sum2;
+        }
+        if (sum3 < best) {
+            order = 3;
+            best = sum3;
+        }
+        if (sum4 < best) {
+            order = 4;
+        }
+        return order;
+    }
+
+    /**
+     * Computes the residual of the fixed predictor of {@code order}, and picks the partition
+     * order and Rice parameters that code it in the fewest bits.
+     *
+     * @return The partition order, with its parameters in {@link #mRiceParameters}; or -1 if
+     * verbatim samples take fewer bits.
+     */
+    private int computeResidual(int blockSize, int order) {
+        final int[] x = mSamples;
+        for (int i = order; i < blockSize; i++) {
+            final int residual;
+            switch (order) {
+                case 0:
+                    residual = x[i];
+                    break;
+                case 1:
+                    residual = x[i] - x[i - 1];
+                    break;
+                case 2:
+                    residual = x[i] - 2 * x[i - 1] + x[i - 2];
+                    break;
+                case 3:
+                    residual = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                    break;
+                default:
+                    residual = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                    break;
+            }
+            mResidual[i] = (residual << 1) ^ (residual >> 31);
+        }
+        // The finest partitioning that splits the block evenly and leaves the first partition
+        // more than the warm-up samples.
+        int maxPartitionOrder = Math.min(Integer.numberOfTrailingZeros(blockSize),
+                MAX_PARTITION_ORDER);
+        while (maxPartitionOrder > 0 && blockSize >> maxPartitionOrder <= order) {
+            maxPartitionOrder--;
+        }
+        int partitions = 1 << maxPartitionOrder;
+        int partitionSize = blockSize >> maxPartitionOrder;
+        for (int partition = 0, i = order; partition < partitions; partition++) {
+            long sum = 0;
+            for (final int end = (partition + 1) * partitionSize; i < end; i++) {
+                sum += mResidual[i];
+            }
+            mPartitionSums[partition] = sum;
+        }
+        // Coarser partitionings merge neighbouring sums.
+        long bestBits = Long.MAX_VALUE;
+        int bestPartitionOrder = 0;
+        for (int partitionOrder = maxPartitionOrder; ; partitionOrder--) {
+            long bits = 0;
+            for (int partition = 0; partition < partitions; partition++) {
+                final int count = partitionSize - (partition == 0 ? order : 0);
+                bits += 4 + riceBits(mPartitionSums[partition], count,
+                        riceParameter(mPartitionSums[partition], count));
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestPartitionOrder = partitionOrder;
+                for (int partition = 0; partition < partitions; partition++) {
+                    final int count = partitionSize - (partition == 0 ? order : 0);
+                    mRiceParameters[partition] = riceParameter(mPartitionSums[partition], count);
+                }
+            }
+            if (partitionOrder == 0) {
+                break;
+            }
+            partitions >>= 1;
+            partitionSize <<= 1;
+            for (int partition = 0; partition < partitions; partition++) {
+                mPartitionSums[partition] = mPartitionSums[2 * partition]
+                        + mPartitionSums[2 * partition + 1];
+            }
+        }
+        final long totalBits = 16L * order + 2 + 4 + bestBits;
+        return totalBits < 16L * blockSize ? bestPartitionOrder : -1;
+    }
+
+    /**
+     * @return The Rice parameter that codes {@code count} values summing to {@code sum} in the
+     * fewest bits, as far as the sum tells.
+     */
+    private static int riceParameter(long sum, int count) {
+        int best = 0;
+        long bestBits = riceBits(sum, count, 0);
+        for (int parameter = 1; parameter <= MAX_RICE_PARAMETER; parameter++) {
+            final long bits = riceBits(sum, count, parameter);
+            if (bits < bestBits) {
+                best = parameter;
+                bestBits = bits;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return An upper bound of the bits to code {@code count} values summing to {@code sum}.
+     */
+    private static long riceBits(long sum, int count, int parameter) {
+        return (long) count * (parameter + 1) + (sum >> parameter);
+    }
+
+    private void writeRice(int value, int parameter) {
+        int quotient = value >>> parameter;
+        while (quotient >= 32) {
+            writeBits(0, 32);
+            quotient -= 32;
+        }
+        // The quotient in unary, terminated by a 1.
+        writeBits(1, quotient + 1);
+        if (parameter > 0) {
+            writeBits(value, parameter);
+        }
+    }
+
+    /**
+     * Writes a sample number in the UTF-8-like coding of frame headers.
+     */
+    private void writeUtf8(long value) {
+        if (value < 0x80) {
+            writeBits((int) value, 8);
+            return;
+        }
+        int bytes = 2;
+        while (bytes < 7 && value >= 1L << (5 * bytes + 1)) {
+            bytes++;
+        }
+        writeBits((int) ((0xFF << (8 - bytes)) & 0xFF | value >>> (6 * (bytes - 1))), 8);
+        for (int i = bytes - 2; i >= 0; i--) {
+            writeBits((int) (0x80 | (value >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    /**
+     * Appends the low {@code count} bits of {@code value}, at most 32.
+     */
+    private void writeBits(int value, int count) {
+        mBits = (mBits << count) | (value & ((1L << count) - 1));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            mBitCount -= 8;
+            mOut[mOutPosition++] = (byte) (mBits >>> mBitCount);
+        }
+    }
+
+    private int crc8(int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc = CRC8[crc ^ (mOut[i] & 0xFF)];
+        }
+        return crc;
+    }
+
+    private int crc16(int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc = ((crc << 8) ^ CRC16[(crc >> 8) ^ (mOut[i] & 0xFF)]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * @return The frame header code of {@code sampleRate}, or 0 to refer to STREAMINFO.
+     */
+    private static int sampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 8000:
+                return 0x4;
+            case 16000:
+                return 0x5;
+            case 22050:
+                return 0x6;
+            case 24000:
+                return 0x7;
+            case 32000:
+                return 0x8;
+            case 44100:
+                return 0x9;
+            case 48000:
+                return 0xA;
+            default:
+                return 0x0;
+        }
+    }
+
+}
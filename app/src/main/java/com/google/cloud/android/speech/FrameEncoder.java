@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Consumes fixed-size frames of LINEAR16 audio, e.g. by encoding them into an Opus file.
+ *
+ * <p>On the device this is {@link top.oply.opuslib.OpusTool#writeFrame(ByteBuffer, int)}; on a
+ * plain JVM a stand-in can be used instead.</p>
+ */
+public interface FrameEncoder {
+
+    /**
+     * Consumes one frame.
+     *
+     * @param frame A direct buffer holding the frame, starting at index 0.
+     * @param size  The number of bytes in the frame.
+     * @return Non-zero on success, 0 if the frame could not be written.
+     */
+    int writeFrame(ByteBuffer frame, int size);
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.auth.Credentials;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.OAuth2Credentials;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.StatusException;
+
+
+/**
+ * Authenticates the gRPC channel using the specified {@link com.google.auth.oauth2.GoogleCredentials}.
+ *
+ * <p>The credentials can be replaced with {@link #setCredentials(Credentials)}, e.g. when the
+ * access token is renewed, without rebuilding the channel.</p>
+ *
+ * <p>Starting a call takes no lock and allocates no URI: the service URI and the headers of each
+ * method are kept in an immutable snapshot, which is only rebuilt when the credentials are
+ * replaced or refresh their token.</p>
+ */
+class GoogleCredentialsInterceptor implements ClientInterceptor {
+
+    /** Snapshots are rebuilt this long before their access token expires. */
+    private static final long EXPIRATION_MARGIN_MILLIS = 60 * 1000;
+
+    private volatile Credentials mCredentials;
+
+    /** Incremented whenever the credentials refresh their token. */
+    private volatile int mGeneration;
+
+    /** The latest snapshot of each method. */
+    private final ConcurrentMap<MethodDescriptor<?, ?>, AtomicReference<Snapshot>> mSnapshots
+            = new ConcurrentHashMap<>();
+
+    private final OAuth2Credentials.CredentialsChangedListener mChangedListener
+            = new OAuth2Credentials.CredentialsChangedListener() {
+        @Override
+        public void onChanged(OAuth2Credentials credentials) {
+            if (credentials == mCredentials) {
+                mGeneration++;
+            }
+        }
+    };
+
+    GoogleCredentialsInterceptor(Credentials credentials) {
+        setCredentials(credentials);
+    }
+
+    /**
+     * Authenticates the calls started from now on with {@code credentials}.
+     */
+    void setCredentials(Credentials credentials) {
+        if (credentials instanceof OAuth2Credentials) {
+            ((OAuth2Credentials) credentials).addChangeListener(mChangedListener);
+        }
+        mCredentials = credentials;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+            final MethodDescriptor<ReqT, RespT> method, CallOptions callOptions,
+            final Channel next) {
+        return new ClientInterceptors.CheckedForwardingClientCall<ReqT, RespT>(
+                next.newCall(method, callOptions)) {
+            @Override
+            protected void checkedStart(Listener<RespT> responseListener, Metadata headers)
+                    throws StatusException {
+                headers.merge(snapshot(next, method).mHeaders);
+                delegate().start(responseListener, headers);
+            }
+        };
+    }
+
+    /**
+     * @return The snapshot of {@code method}, rebuilt first if it is out of date.
+     */
+    private Snapshot snapshot(Channel channel, MethodDescriptor<?, ?> method)
+            throws StatusException {
+        AtomicReference<Snapshot> reference = mSnapshots.get(method);
+        if (reference == null) {
+            reference = new AtomicReference<>();
+            final AtomicReference<Snapshot> existing = mSnapshots.putIfAbsent(method, reference);
+            if (existing != null) {
+                reference = existing;
+            }
+        }
+        final Snapshot snapshot = reference.get();
+        final Credentials credentials = mCredentials;
+        final int generation = mGeneration;
+        final String authority = channel.authority();
+        if (snapshot != null && snapshot.mCredentials == credentials
+                && snapshot.mGeneration == generation
+                && snapshot.mAuthority.equals(authority)
+                && System.currentTimeMillis() < snapshot.mExpirationMillis) {
+            return snapshot;
+        }
+        // Racing calls may both rebuild the snapshot; they come up with the same one.
+        final URI uri = snapshot != null && snapshot.mAuthority.equals(authority)
+                ? snapshot.mUri : serviceUri(authority, method);
+        final Snapshot rebuilt = new Snapshot(credentials, generation, authority, uri,
+                toHeaders(getRequestMetadata(credentials, uri)), expirationMillis(credentials));
+        reference.set(rebuilt);
+        return rebuilt;
+    }
+
+    /**
+     * @return When headers obtained from {@code credentials} right now have to be obtained
+     * again. Only the headers of OAuth2 credentials are known to last.
+     */
+    private static long expirationMillis(Credentials credentials) {
+        if (!(credentials instanceof OAuth2Credentials)) {
+            return 0;
+        }
+        final AccessToken token = ((OAuth2Credentials) credentials).getAccessToken();
+        if (token == null || token.getExpirationTime() == null) {
+            return Long.MAX_VALUE;
+        }
+        return token.getExpirationTime().getTime() - EXPIRATION_MARGIN_MILLIS;
+    }
+
+    /**
+     * Generate a JWT-specific service URI. The URI is simply an identifier with enough
+     * information for a service to know that the JWT was intended for it. The URI will
+     * commonly be verified with a simple string equality check.
+     */
+    private URI serviceUri(String authority, MethodDescriptor<?, ?> method)
+            throws StatusException {
+        if (authority == null) {
+            throw Status.UNAUTHENTICATED
+                    .withDescription("Channel has no authority")
+                    .asException();
+        }
+        // Always use HTTPS, by definition.
+        final String scheme = "https";
+        final int defaultPort = 443;
+        String path = "/" + MethodDescriptor.extractFullServiceName(method.getFullMethodName());
+        URI uri;
+        try {
+            uri = new URI(scheme, authority, path, null, null);
+        } catch (URISyntaxException e) {
+            throw Status.UNAUTHENTICATED
+                    .withDescription("Unable to construct service URI for auth")
+                    .withCause(e).asException();
+        }
+        // The default port must not be present. Alternative ports should be present.
+        if (uri.getPort() == defaultPort) {
+            uri = removePort(uri);
+        }
+        return uri;
+    }
+
+    private URI removePort(URI uri) throws StatusException {
+        try {
+            return new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), -1 /* port */,
+                    uri.getPath(), uri.getQuery(), uri.getFragment());
+        } catch (URISyntaxException e) {
+            throw Status.UNAUTHENTICATED
+                    .withDescription("Unable to construct service URI after removing port")
+                    .withCause(e).asException();
+        }
+    }
+
+    private static Map<String, List<String>> getRequestMetadata(Credentials credentials, URI uri)
+            throws StatusException {
+        try {
+            return credentials.getRequestMetadata(uri);
+        } catch (IOException e) {
+            throw Status.UNAUTHENTICATED.withCause(e).asException();
+        }
+    }
+
+    private static Metadata toHeaders(Map<String, List<String>> metadata) {
+        Metadata headers = new Metadata();
+        if (metadata != null) {
+            for (String key : metadata.keySet()) {
+                Metadata.Key<String> headerKey = Metadata.Key.of(
+                        key, Metadata.ASCII_STRING_MARSHALLER);
+                for (String value : metadata.get(key)) {
+                    headers.put(headerKey, value);
+                }
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * What a call to a method needs from the credentials. Immutable once published.
+     */
+    private static final class Snapshot {
+
+        final Credentials mCredentials;
+
+        final int mGeneration;
+
+        final String mAuthority;
+
+        final URI mUri;
+
+        final Metadata mHeaders;
+
+        final long mExpirationMillis;
+
+        Snapshot(Credentials credentials, int generation, String authority, URI uri,
+                Metadata headers, long expirationMillis) {
+            mCredentials = credentials;
+            mGeneration = generation;
+            mAuthority = authority;
+            mUri = uri;
+            mHeaders = headers;
+            mExpirationMillis = expirationMillis;
+        }
+
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Halves the sample rate of LINEAR16 audio, e.g. from 16 kHz to 8 kHz for a poor uplink.
+ *
+ * <p>A 31-tap half-band low-pass filter removes what would alias before every other sample is
+ * dropped. Half of its taps are zero, so an output sample costs 8 multiplications. The filter
+ * runs on across calls, so chunks can be of any even size; it delays the audio by 15 input
+ * samples. Allocates nothing once its buffers fit the largest chunk. Not thread safe.</p>
+ */
+class HalfBandDecimator {
+
+    /** Half the length of the filter. */
+    private static final int HALF_LENGTH = 15;
+
+    /** The input samples kept from one call to the next. */
+    private static final int HISTORY = 2 * HALF_LENGTH;
+
+    private static final int SCALE_BITS = 16;
+
+    /** The taps at odd distances 1, 3, ..., 15 from the center, in fixed point. */
+    private static final int[] TAPS = new int[(HALF_LENGTH + 1) / 2];
+
+    /** The center tap, in fixed point. */
+    private static final int CENTER;
+
+    static {
+        // A windowed sinc with its cutoff at the new Nyquist frequency, normalized to unity gain.
+        final double[] taps = new double[TAPS.length];
+        double sum = 0.5;
+        for (int i = 0; i < taps.length; i++) {
+            final int n = 2 * i + 1;
+            final double sinc = Math.sin(Math.PI * n / 2) / (Math.PI * n);
+            final double window = 0.54 + 0.46 * Math.cos(Math.PI * n / (HALF_LENGTH + 1));
+            taps[i] = sinc * window;
+            sum += 2 * taps[i];
+        }
+        CENTER = (int) Math.round(0.5 / sum * (1 << SCALE_BITS));
+        for (int i = 0; i < taps.length; i++) {
+            TAPS[i] = (int) Math.round(taps[i] / sum * (1 << SCALE_BITS));
+        }
+    }
+
+    /** The kept input samples, followed by the samples of the current call. */
+    private int[] mInput = new int[HISTORY];
+
+    private byte[] mOutput = new byte[0];
+
+    /** Where the first filter window of the next call starts: 0 or 1. */
+    private int mPhase;
+
+    /**
+     * Forgets the audio so far, e.g. before a new stream.
+     */
+    void reset() {
+        for (int i = 0; i < HISTORY; i++) {
+            mInput[i] = 0;
+        }
+        mPhase = 0;
+    }
+
+    /**
+     * Filters and decimates a chunk of audio.
+     *
+     * @param data The audio data. Only read during the call.
+     * @param size The size of the actual data in {@code data}.
+     * @return The number of bytes of output in {@link #getOutput()}, about half of
+     * {@code size}.
+     */
+    int process(byte[] data, int size) {
+        final int samples = size / 2;
+        final int total = HISTORY + samples;
+        if (mInput.length < total) {
+            final int[] input = new int[total];
+            System.arraycopy(mInput, 0, input, 0, HISTORY);
+            mInput = input;
+        }
+        final int[] x = mInput;
+        for (int i = 0; i < samples; i++) {
+            x[HISTORY + i] = (data[2 * i] & 0xFF) | (data[2 * i + 1] << 8);
+        }
+        if (mOutput.length < samples + 2) {
+            mOutput = new byte[samples + 2];
+        }
+        int out = 0;
+        int start = mPhase;
+        for (; start + HISTORY < total; start += 2) {
+            final int center = start + HALF_LENGTH;
+            long sum = (long) CENTER * x[center];
+            for (int i = 0; i < TAPS.length; i++) {
+                final int distance = 2 * i + 1;
+                sum += (long) TAPS[i] * (x[center - distance] + x[center + distance]);
+            }
+            int sample = (int) ((sum + (1 << (SCALE_BITS - 1))) >> SCALE_BITS);
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            mOutput[out++] = (byte) sample;
+            mOutput[out++] = (byte) (sample >> 8);
+        }
+        mPhase = start - (total - HISTORY);
+        System.arraycopy(x, total - HISTORY, x, 0, HISTORY);
+        return out;
+    }
+
+    /**
+     * @return The output of the last {@link #process(byte[], int)}. Overwritten by the next one.
+     */
+    byte[] getOutput() {
+        return mOutput;
+    }
+
+}
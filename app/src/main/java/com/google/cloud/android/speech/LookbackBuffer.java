@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Keeps the most recent audio, up to a fixed number of bytes, in a preallocated circular buffer.
+ *
+ * <p>Used as pre-roll: the audio just before voice is detected is usually the onset of the first
+ * word, too quiet to cross the threshold. It is kept here while nothing is being sent, and
+ * handed to the recognizer in one piece when voice starts. Not thread safe.</p>
+ */
+class LookbackBuffer {
+
+    private final byte[] mBuffer;
+
+    /** The index of the next byte to write. */
+    private int mEnd;
+
+    /** The number of valid bytes, ending at {@link #mEnd}. */
+    private int mSize;
+
+    /**
+     * @param capacity The number of bytes to keep. Rounded down to whole 16-bit samples.
+     */
+    LookbackBuffer(int capacity) {
+        mBuffer = new byte[capacity & ~1];
+    }
+
+    /**
+     * @return The number of bytes kept at most.
+     */
+    int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return The number of bytes kept right now.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Appends audio, forgetting the oldest audio if it does not fit.
+     */
+    void write(byte[] data, int size) {
+        final int capacity = mBuffer.length;
+        if (capacity == 0) {
+            return;
+        }
+        int offset = 0;
+        if (size > capacity) {
+            offset = size - capacity;
+            size = capacity;
+        }
+        final int first = Math.min(size, capacity - mEnd);
+        System.arraycopy(data, offset, mBuffer, mEnd, first);
+        System.arraycopy(data, offset + first, mBuffer, 0, size - first);
+        mEnd = (mEnd + size) % capacity;
+        mSize = Math.min(mSize + size, capacity);
+    }
+
+    /**
+     * Moves the kept audio, oldest first, to {@code out} and empties this buffer.
+     *
+     * @param out At least {@link #capacity()} bytes.
+     * @return The number of bytes moved.
+     */
+    int drainTo(byte[] out) {
+        final int size = mSize;
+        final int start = (mEnd - size + mBuffer.length) % Math.max(mBuffer.length, 1);
+        final int first = Math.min(size, mBuffer.length - start);
+        System.arraycopy(mBuffer, start, out, 0, first);
+        System.arraycopy(mBuffer, 0, out, first, size - first);
+        clear();
+        return size;
+    }
+
+    /**
+     * Forgets the kept audio.
+     */
+    void clear() {
+        mEnd = 0;
+        mSize = 0;
+    }
+
+}
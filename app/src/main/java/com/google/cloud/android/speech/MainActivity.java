@@ -19,6 +19,7 @@ package com.google.cloud.android.speech;
 import com.google.auth.oauth2.AccessToken;
 
 import android.Manifest;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.Bundle;
@@ -39,8 +40,14 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class MainActivity extends AppCompatActivity implements ApiFragment.Listener,
         MessageDialogFragment.Listener {
@@ -52,6 +59,23 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Liste
 
     private static final String STATE_RESULTS = "results";
 
+    private static final String TAG_METRICS = "PipelineMetrics";
+
+    private static final String METRICS_FILE = "metrics.txt";
+
+    private static final String TRACE_FILE = "trace.json";
+
+    /** Writes the metrics off the UI thread, one dump after the other. */
+    private static final ExecutorService METRICS_WRITER = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "MetricsWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private static final int REQUEST_RECORD_AUDIO_PERMISSION = 0;
     public static final int REQUEST_READ_EXTERNAL = 2;
     public static final int REQUEST_WRITE_EXTERNAL = 3;
@@ -63,9 +87,9 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Liste
     private final OpusRecorder.Callback mVoiceCallback = new OpusRecorder.Callback() {
 
         @Override
-        public void onVoiceStart() {
+        public void onVoiceStart(int utterance) {
             showStatus(true);
-            getApiFragment().startRecognizing(mVoiceRecorder.getSampleRate());
+            getApiFragment().startRecognizing(mVoiceRecorder.getSampleRate(), utterance);
         }
 
         @Override
@@ -191,11 +215,59 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Liste
         //stopVoiceRecorder();
         if(mVoiceRecorder !=null) {
             mVoiceRecorder.stop();
+            Log.d("MAIN", mVoiceRecorder.toString());
             mVoiceRecorder = null;
         }
+        dumpMetrics();
         super.onStop();
     }
 
+    /**
+     * Writes the {@link PipelineMetrics} so far to logcat, and to {@link #METRICS_FILE} in the
+     * app's files, e.g. to be pulled with {@code adb} from a device in the field. The traces of
+     * the last utterances go to {@link #TRACE_FILE}, for {@code chrome://tracing}. Only the
+     * snapshot is taken here; the files are written on {@link #METRICS_WRITER}.
+     */
+    private void dumpMetrics() {
+        final PipelineMetrics.Snapshot snapshot = PipelineMetrics.snapshot();
+        final Context context = getApplicationContext();
+        METRICS_WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeMetrics(context, snapshot);
+            }
+        });
+    }
+
+    /**
+     * Writes {@code snapshot}, and the traces as they are now; see {@link #dumpMetrics()}.
+     */
+    private static void writeMetrics(Context context, PipelineMetrics.Snapshot snapshot) {
+        for (Object value : snapshot.getValues()) {
+            Log.i(TAG_METRICS, value.toString());
+        }
+        try {
+            final Writer writer = new FileWriter(new File(context.getFilesDir(), METRICS_FILE));
+            try {
+                snapshot.writeTo(writer);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG_METRICS, "Cannot write " + METRICS_FILE, e);
+        }
+        try {
+            final Writer writer = new FileWriter(new File(context.getFilesDir(), TRACE_FILE));
+            try {
+                UtteranceTracer.get().writeChromeTrace(writer);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG_METRICS, "Cannot write " + TRACE_FILE, e);
+        }
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -210,8 +282,10 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Liste
             mVoiceRecorder.stop();
         }
 
-        //mVoiceRecorder = new OpusRecorder(mVoiceCallback);
-        mVoiceRecorder = OpusRecorder.getInstance(mVoiceCallback);
+        // A new session for every start, so that it reports to this activity and not to the
+        // one that started the first.
+        mVoiceRecorder = RecorderEngine.getDefault().newSession(OpusRecorder.DEFAULT_NAME,
+                mVoiceCallback);
         mVoiceRecorder.start();
     }
 
@@ -223,18 +297,20 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Liste
     }
 
     @Override
-    public void stopVoiceRecorder() {
+    public void stopVoiceRecorder(int utterance) {
         Log.d("MAIN" ,"STOPREC");
+        // Only the utterance is over; the recorder stays warm for the next one until onStop().
         if (mVoiceRecorder != null) {
-            mVoiceRecorder.stop();
-            mVoiceRecorder = null;
+            mVoiceRecorder.dismiss(utterance);
         }
     }
 
     @Override
-    public void onSpeechRecognized(final String text, final boolean isFinal) {
+    public void onSpeechRecognized(final String text, final boolean isFinal, int utterance) {
+        // Keyed, so that a late final result of an earlier stream cannot cut off the utterance
+        // under way.
         if (isFinal && null != mVoiceRecorder) {
-            mVoiceRecorder.dismiss();
+            mVoiceRecorder.dismiss(utterance);
         }
         if (mText != null && !TextUtils.isEmpty(text)) {
             runOnUiThread(new Runnable() {
@@ -286,7 +362,7 @@ public class MainActivity extends AppCompatActivity implements ApiFragment.Liste
 
                     @Override
                     public void onLoadFinished(Loader<AccessToken> loader, AccessToken token) {
-                        getApiFragment().setAccessToken(token);
+                        // The token reaches the ApiFragment through the AccessTokenManager.
                         mStatus.setVisibility(View.VISIBLE);
                     }
 
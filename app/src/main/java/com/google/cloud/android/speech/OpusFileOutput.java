@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Routes the Ogg/Opus pages that {@link top.oply.opuslib.OpusTool} writes through a
+ * {@link WriteBehindSink}, so that a slow flash write never holds up the encoder.
+ *
+ * <p>The native encoder only takes a path, so it is given a named pipe in the cache directory
+ * instead of the real file. A pump thread reads the pages from the pipe into the sink, which
+ * packs them into 8 KB chunks and writes them to the real file in batches. Up to 512 KB of pages
+ * can wait for the flash before the encoder has to; a page reaches the file once its chunk fills
+ * up, with the next page once it has waited two seconds, or when the file is closed. Named pipes
+ * need API 21; on older devices, or if the pipe cannot be created, the encoder writes the real
+ * file directly.</p>
+ *
+ * <p>A pipe can only be written front to back. This relies on the native writer never seeking:
+ * the Ogg writer of opuslib appends each page with {@code fwrite} as it fills up, and does not go
+ * back to patch the header when it stops; see {@code startRecording} and {@code writeOggPage} in
+ * <a href="https://github.com/louisyonge/opus_android/blob/master/opuslib/src/main/jni/opustool/opusaudio.c">opusaudio.c</a>.
+ * Should a writer fail on the pipe anyway, as it does on a seek ({@code ESPIPE}), the recording
+ * falls back to the plain file: if the writer cannot start on the pipe, {@link #fallBack()} hands
+ * it the real file instead, and once a pipe has failed, no later output of the process uses
+ * one.</p>
+ */
+class OpusFileOutput {
+
+    private static final String TAG = "OpusFileOutput";
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int CHUNKS = 64;
+    private static final int SYNC_MILLIS = 2000;
+    private static final int STALL_MILLIS = 100;
+
+    private final File mFile;
+
+    private File mPipe;
+
+    private WriteBehindSink mSink;
+
+    private Thread mPump;
+
+    private volatile boolean mConnected;
+
+    /** Whether a pipe failed in this process, so that the encoder writes files directly. */
+    private static volatile boolean sPipeFailed;
+
+    /**
+     * @param path The file that should end up holding the recording.
+     */
+    OpusFileOutput(String path) {
+        mFile = new File(path);
+    }
+
+    /**
+     * Prepares the output.
+     *
+     * @return The path to hand to {@link top.oply.opuslib.OpusTool#startRecording(String)}.
+     */
+    String open() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !sPipeFailed) {
+            try {
+                openPipe();
+                return mPipe.getPath();
+            } catch (IOException e) {
+                Log.w(TAG, "Writing " + mFile + " directly", e);
+                abandonPipe();
+            }
+        }
+        return mFile.getPath();
+    }
+
+    /**
+     * Gives up on the pipe, e.g. as the encoder could not start on it, and has the encoder write
+     * the real file directly from now on.
+     *
+     * @return The path to hand to {@link top.oply.opuslib.OpusTool#startRecording(String)}
+     * instead of the one {@link #open()} returned.
+     */
+    String fallBack() {
+        if (mPump != null) {
+            Log.w(TAG, "The encoder cannot write " + mPipe + "; writing " + mFile + " directly");
+            pipeFailed();
+            close();
+        }
+        return mFile.getPath();
+    }
+
+    /**
+     * @return Whether the encoder is to write through a pipe.
+     */
+    boolean isPiped() {
+        return mPump != null;
+    }
+
+    /**
+     * Waits until everything the encoder wrote is in the file. Call after
+     * {@link top.oply.opuslib.OpusTool#stopRecording()}.
+     */
+    void close() {
+        if (mPump == null) {
+            return;
+        }
+        if (!mConnected) {
+            // The encoder never opened the pipe; open it ourselves so the pump sees its end.
+            try {
+                new FileOutputStream(mPipe).close();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot release the pump", e);
+            }
+        }
+        try {
+            mPump.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mSink.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + mFile, e);
+        }
+        Log.d(TAG, mSink.toString());
+        abandonPipe();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void openPipe() throws IOException {
+        mPipe = new File(System.getProperty("java.io.tmpdir"), mFile.getName() + ".pipe");
+        if (mPipe.exists() && !mPipe.delete()) {
+            throw new IOException("Cannot delete " + mPipe);
+        }
+        try {
+            Os.mkfifo(mPipe.getPath(), OsConstants.S_IRUSR | OsConstants.S_IWUSR);
+        } catch (ErrnoException e) {
+            throw new IOException("Cannot create " + mPipe, e);
+        }
+        mSink = new WriteBehindSink(mFile, CHUNK_SIZE, CHUNKS, SYNC_MILLIS, STALL_MILLIS);
+        mSink.open();
+        mConnected = false;
+        mPump = new Thread(new Pump(), "OpusRecorder-pipe");
+        mPump.start();
+    }
+
+    /**
+     * Has the later outputs of the process write their files directly.
+     */
+    private static void pipeFailed() {
+        sPipeFailed = true;
+    }
+
+    private void abandonPipe() {
+        mPump = null;
+        mSink = null;
+        if (mPipe != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mPipe.delete();
+            mPipe = null;
+        }
+    }
+
+    /**
+     * Copies the pipe into the sink until the encoder closes it. Keeps draining the pipe even if
+     * the sink fails, so that the encoder never blocks on a full pipe.
+     */
+    private class Pump implements Runnable {
+
+        private final File mSource = mPipe;
+
+        private final WriteBehindSink mTarget = mSink;
+
+        @Override
+        public void run() {
+            final byte[] buffer = new byte[CHUNK_SIZE];
+            try {
+                // Blocks until the encoder opens the pipe for writing.
+                final InputStream in = new FileInputStream(mSource);
+                mConnected = true;
+                try {
+                    boolean failed = false;
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        if (!failed) {
+                            try {
+                                mTarget.write(buffer, 0, n);
+                            } catch (IOException e) {
+                                Log.e(TAG, "Cannot write " + mFile, e);
+                                failed = true;
+                                pipeFailed();
+                            }
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot pump " + mSource, e);
+                pipeFailed();
+            }
+        }
+
+    }
+
+}
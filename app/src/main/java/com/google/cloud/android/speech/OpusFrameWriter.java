@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Cuts the audio read from the microphone into the 1920-byte frames that
+ * {@link FrameEncoder#writeFrame(ByteBuffer, int)} expects, carrying partial frames over to the
+ * next call.
+ *
+ * <p>Whole frames are handed to the encoder as slices of the caller's direct buffer, so in the
+ * steady state (reads that are a multiple of the frame size) nothing is copied or allocated.
+ * The slices are created once per buffer and reused, for the two buffers written from most
+ * recently; only audio that straddles a frame boundary is copied into a single carry-over
+ * frame.</p>
+ *
+ * <p>copy from : https://github.com/louisyonge/opus_android/blob/master/opuslib/src/main/java/top/oply/opuslib/OpusRecorder.java#L97</p>
+ */
+class OpusFrameWriter {
+
+    /** The frame size in bytes, to accord with function writeFrame(). */
+    static final int FRAME_SIZE = 1920;
+
+    private final FrameEncoder mEncoder;
+
+    /** Collects audio that straddles frame boundaries. */
+    private final ByteBuffer mCarry = ByteBuffer.allocateDirect(FRAME_SIZE);
+
+    /** The buffers that {@link #mFrames} were sliced from. */
+    private final ByteBuffer[] mSliced = new ByteBuffer[2];
+
+    /** Frame-sized views of each {@link #mSliced}; frame i starts at index i * FRAME_SIZE. */
+    private final ByteBuffer[][] mFrames = new ByteBuffer[2][];
+
+    /** The index in {@link #mSliced} of the buffer written from last. */
+    private int mLastSliced;
+
+    OpusFrameWriter(FrameEncoder encoder) {
+        mEncoder = encoder;
+    }
+
+    /**
+     * Hands the audio in {@code buffer} to the encoder, a whole frame at a time.
+     *
+     * <p>The position and limit of {@code buffer} are not preserved.</p>
+     *
+     * @param buffer A direct buffer holding the audio data.
+     * @param offset The index of the first byte of audio in {@code buffer}.
+     * @param size   The number of bytes of audio in {@code buffer}.
+     * @return The number of frames the encoder failed to write.
+     */
+    int write(ByteBuffer buffer, int offset, int size) {
+        final int end = offset + size;
+        int errors = 0;
+        // Complete the frame left over from the previous call.
+        if (mCarry.position() > 0) {
+            offset = carry(buffer, offset, Math.min(mCarry.remaining(), size));
+            if (!mCarry.hasRemaining()) {
+                errors += encode(mCarry);
+                mCarry.clear();
+            }
+        }
+        // Whole frames go to the encoder straight from the buffer.
+        final ByteBuffer[] frames = frames(buffer);
+        while (end - offset >= FRAME_SIZE) {
+            if (offset % FRAME_SIZE == 0) {
+                errors += encode(frames[offset / FRAME_SIZE]);
+                offset += FRAME_SIZE;
+            } else {
+                offset = carry(buffer, offset, FRAME_SIZE);
+                errors += encode(mCarry);
+                mCarry.clear();
+            }
+        }
+        // Keep the rest for the next call.
+        if (offset < end) {
+            carry(buffer, offset, end - offset);
+        }
+        return errors;
+    }
+
+    /**
+     * Drops any partial frame, e.g. before the encoder starts a new file.
+     */
+    void reset() {
+        mCarry.clear();
+    }
+
+    /**
+     * Copies {@code length} bytes at {@code offset} of {@code buffer} into {@link #mCarry}.
+     *
+     * @return The offset following the copied bytes.
+     */
+    private int carry(ByteBuffer buffer, int offset, int length) {
+        buffer.limit(offset + length);
+        buffer.position(offset);
+        mCarry.put(buffer);
+        return offset + length;
+    }
+
+    private int encode(ByteBuffer frame) {
+        final long started = System.nanoTime();
+        final int result = mEncoder.writeFrame(frame, FRAME_SIZE);
+        PipelineMetrics.OPUS_WRITE_FRAME.recordSince(started);
+        if (result == 0) {
+            PipelineMetrics.OPUS_WRITE_FRAME_ERRORS.increment();
+            return 1;
+        }
+        return 0;
+    }
+
+    private ByteBuffer[] frames(ByteBuffer buffer) {
+        if (buffer != mSliced[mLastSliced]) {
+            // Reuse the other entry, slicing the buffer into it unless it is already there.
+            mLastSliced = (mLastSliced + 1) % mSliced.length;
+            if (buffer != mSliced[mLastSliced]) {
+                final ByteBuffer[] frames = new ByteBuffer[buffer.capacity() / FRAME_SIZE];
+                for (int i = 0; i < frames.length; i++) {
+                    buffer.limit((i + 1) * FRAME_SIZE);
+                    buffer.position(i * FRAME_SIZE);
+                    frames[i] = buffer.slice();
+                }
+                mSliced[mLastSliced] = buffer;
+                mFrames[mLastSliced] = frames;
+            }
+        }
+        return mFrames[mLastSliced];
+    }
+
+}
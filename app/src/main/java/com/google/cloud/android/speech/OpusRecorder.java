@@ -1,16 +1,7 @@
 package com.google.cloud.android.speech;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
-import android.support.annotation.NonNull;
-import android.util.Log;
-
-import java.io.File;
 import java.nio.ByteBuffer;
-
-import top.oply.opuslib.OpusTool;
-import top.oply.opuslib.OpusTrackInfo;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -19,40 +10,58 @@ import top.oply.opuslib.OpusTrackInfo;
  * Continuously records audio and notifies the {@link VoiceRecorder.Callback} when voice (or any
  * sound) is heard.
  *
- * <p>The recorded audio format is always {@link AudioFormat#ENCODING_PCM_16BIT} and
- * {@link AudioFormat#CHANNEL_IN_MONO}. This class will automatically pick the right sample rate
- * for the device. Use {@link #getSampleRate()} to get the selected value.</p>
+ * <p>The recorded audio format is always {@link android.media.AudioFormat#ENCODING_PCM_16BIT} and
+ * {@link android.media.AudioFormat#CHANNEL_IN_MONO}. This class will automatically pick the right
+ * sample rate for the device. Use {@link #getSampleRate()} to get the selected value.</p>
+ *
+ * <p>Audio is read from the microphone unless another {@link PcmSource} is supplied, e.g. a
+ * {@link FilePcmSource} to replay recorded audio.</p>
+ *
+ * <p>The pipeline itself is a {@link CaptureSession}: the capture thread only reads into a
+ * preallocated {@link AudioRing}, at urgent audio priority, and the voice thread (detection and
+ * {@link Callback}, i.e. the network) and the encoder thread (Opus file) drain the ring
+ * independently. The microphone and the threads stay up from {@link #start()} to
+ * {@link #stop()}; when an utterance ends only the {@link Callback} and, by default, the Opus file
+ * move on to the next one. See {@link #setEncoderPolicy(EncoderStage.Policy)} for what the
+ * encoder does when it falls behind.</p>
+ *
+ * <p>Any number of recorders can run at once, each with its own callback. Those of a
+ * {@link RecorderEngine} share its workers for voice detection and encoding instead of having two
+ * threads each.</p>
+ *
+ * <p>The recorder itself has no Android dependencies: {@link RecorderEngine} hands it the
+ * microphone, the capture thread at audio priority and the native Opus encoder, so that the host
+ * harnesses can run it with a recording and a stand-in {@link Encoder}.</p>
  */
 public class OpusRecorder {
 
- //   private static final int[] SAMPLE_RATE_CANDIDATES = new int[]{16000, 11025, 22050, 44100};
- private static final int[] SAMPLE_RATE_CANDIDATES = new int[]{16000};
-    private static final int CHANNEL = AudioFormat.CHANNEL_IN_MONO;
-    private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+    /** The sample rate of the Opus file and of the audio handed to the {@link Callback}. */
+    private static final int SAMPLE_RATE = 16000;
 
     //private static final int AMPLITUDE_THRESHOLD = 1500;
-    private static final int AMPLITUDE_THRESHOLD = 3000;
-    private static final int SPEECH_TIMEOUT_MILLIS = 1400;
-    private static final int MAX_SPEECH_LENGTH_MILLIS = 12 * 1000;
-    //private static final int MAX_SPEECH_LENGTH_MILLIS = 30 * 1000;
-    private static final String TAG = "OpusRecorder";
+    //private static final int AMPLITUDE_THRESHOLD = 3000;
+    /** The RMS level below which nothing counts as voice, however quiet the room. */
+    private static final int VOICE_MIN_RMS = 300;
 
-    private static final int STATE_NONE = 0;
-    private static final int STATE_STARTED = 1;
-    private volatile int state = STATE_NONE;
+    /** The name of a recorder that is not given one; its files are named after it. */
+    static final String DEFAULT_NAME = "OpusRecord";
 
     public static abstract class Callback {
 
         /**
-         * Called when the recorder starts hearing voice.
+         * Called when the recorder starts hearing voice. The first {@link #onVoice(byte[], int)}
+         * that follows carries the audio from just before the voice was heard.
+         *
+         * @param utterance The number of the utterance in the {@link UtteranceTracer}.
          */
-        public void onVoiceStart() {
+        public void onVoiceStart(int utterance) {
         }
 
         /**
          * Called when the recorder is hearing voice.
          *
-         * @param data The audio data in {@link AudioFormat#ENCODING_PCM_16BIT}.
+         * @param data The audio data in {@link android.media.AudioFormat#ENCODING_PCM_16BIT}.
+         *             Reused after the call returns, and not modified until then.
          * @param size The size of the actual data in {@code data}.
          */
         public void onVoice(byte[] data, int size) {
@@ -65,59 +74,129 @@ public class OpusRecorder {
         }
     }
 
-    private final Callback mCallback;
+    /**
+     * The Opus encoder and the files it writes: the native OpusTool on a device, see
+     * {@link OpusToolEncoder}. Only called on the encoder thread of the recorder.
+     */
+    interface Encoder extends FrameEncoder {
+
+        /**
+         * Starts a new file, named after the recorder.
+         *
+         * @param name The name of the recorder.
+         */
+        void begin(String name);
 
-    private AudioRecord mAudioRecord;
+        /**
+         * Finishes the file begun last, if any.
+         */
+        void finish();
 
-    private Thread mThread;
+    }
 
-    private byte[] mBuffer;
-    private int bufferSize = 0;
+    private final String mName;
+
+    private final Callback mCallback;
+
+    private final CaptureSession mSession;
 
     private final Object mLock = new Object();
-    private String filePath;
 
-    /** The timestamp of the last time that voice is heard. */
-    private long mLastVoiceHeardMillis = Long.MAX_VALUE;
+    private final Encoder mEncoder;
+
+    private final CaptureSession.Listener mListener = new CaptureSession.Listener() {
+        @Override
+        public void onVoiceStart(int utterance) {
+            mCallback.onVoiceStart(utterance); //bug called before Main-> start
+        }
 
-    /** The timestamp when the current voice is started. */
-    private long mVoiceStartedMillis;
-    private ByteBuffer firstBuffer = ByteBuffer.allocateDirect(1920);
-    private ByteBuffer fileBuffer = ByteBuffer.allocateDirect(1920);// Should be 1920, to accord with function writeFreme()
-    public OpusTool mOpusTool;
+        @Override
+        public void onVoice(byte[] data, int size) {
+            mCallback.onVoice(data, size);
+        }
 
-    public OpusRecorder(@NonNull Callback callback) {
+        @Override
+        public void onVoiceEnd() {
+            mCallback.onVoiceEnd();
+        }
+    };
+
+    /** The Opus file, rotated by the session; only called on its encoder thread. */
+    private final CaptureSession.Recording mRecording = new CaptureSession.Recording() {
+        @Override
+        public void begin() {
+            mEncoder.begin(mName);
+        }
+
+        @Override
+        public void finish(int utterance) {
+            finishFile(utterance);
+        }
+
+        @Override
+        public int writeFrame(ByteBuffer frame, int size) {
+            return mEncoder.writeFrame(frame, size);
+        }
+    };
+
+    /**
+     * Use {@link RecorderEngine} to create recorders.
+     *
+     * @param name           Names the files and the capture thread, to tell recorders apart.
+     * @param callback       The callback to notify of voice events.
+     * @param source         The audio to record; resampled to 16 kHz if it has another sample
+     *                       rate.
+     * @param workers        Runs voice detection and encoding, or {@code null} for threads of
+     *                       their own.
+     * @param encoder        Encodes the audio into the files.
+     * @param captureThreads Creates the thread that reads {@code source}.
+     */
+    OpusRecorder(String name, Callback callback, PcmSource source, WorkerPool workers,
+            Encoder encoder, ThreadFactory captureThreads) {
+        mName = name;
         mCallback = callback;
-    }
-    //bug try singleton :: opus_android vrn of recorder
-    private static volatile OpusRecorder oRecorder ;
-    public static OpusRecorder getInstance(Callback callback){
-        if(oRecorder == null)
-            synchronized(OpusRecorder.class){
-                if(oRecorder == null)
-                    oRecorder = new OpusRecorder(callback);
-            }
-        return oRecorder;
+        mEncoder = encoder;
+        mSession = new CaptureSession(new ResamplingPcmSource(source, SAMPLE_RATE), mListener,
+                mRecording, new VoiceDetector(VOICE_MIN_RMS), captureThreads);
+        mSession.setWorkerPool(workers);
     }
 
+    /**
+     * Sets what the encoder does when it falls more than a second behind the microphone. Takes
+     * effect on the next {@link #start()}. The default is {@link EncoderStage.Policy#SPILL}.
+     */
+    public void setEncoderPolicy(EncoderStage.Policy policy) {
+        mSession.setEncoderPolicy(policy);
+    }
 
     /**
-     * Init the lib's OpusTool with a new file. writes the header in the encoded(opus) file
-     * and awaits the microphone buffer for further IO
-     * Encode PCM16 mono @16k frame/sec TO Opus 2400 mono
-     * config details of encoder? belo
-     * https://github.com/louisyonge/opus_android/blob/master/opuslib/src/main/jni/opustool/opusaudio.c#L289
+     * Sets whether each utterance goes to its own Opus file. If disabled, one file covers
+     * everything from {@link #start()} to {@link #stop()}. Enabled by default.
      */
-    public void init() {
+    public void setFilePerUtterance(boolean filePerUtterance) {
+        mSession.setRotateRecording(filePerUtterance);
+    }
 
-        mOpusTool = new OpusTool();
-        filePath = getNextFile();
-        //Log.d(TAG, "initOn , startRec " +filePath);
-        int rst = mOpusTool.startRecording(filePath);
+    /**
+     * Sets whether the capture waits for voice detection and the encoder rather than drop audio,
+     * e.g. to replay a file faster than real time. Off by default, as a microphone cannot wait.
+     * Takes effect on the next {@link #start()}.
+     */
+    void setLossless(boolean lossless) {
+        mSession.setLossless(lossless);
     }
 
-    private String getNextFile(){
-        return OpusTrackInfo.getInstance().getAValidFileName("OpusRecord");
+    /**
+     * Finalizes the current Opus file.
+     *
+     * @param utterance The last utterance in the file, or 0 if there is none.
+     */
+    private void finishFile(int utterance) {
+        final long started = System.nanoTime();
+        mEncoder.finish();
+        if (utterance != 0) {
+            UtteranceTracer.get().span(UtteranceTracer.Stage.FILE_FINALIZE, utterance, started);
+        }
     }
 
     /**
@@ -127,229 +206,65 @@ public class OpusRecorder {
      *3. opusTool.startRecording(file
      *4. Thread new/start
      *5. ReadWrite LOOP on buffer inside Thread
-     * <p>The caller is responsible for calling {@link #stop()} later.</p>
+     * <p>The caller is responsible for calling {@link #stop()} later. Recording carries on across
+     * utterances until then.</p>
+     *
+     * @throws IllegalStateException If the audio source cannot be opened, e.g. the microphone
+     *                               is in use, or if the {@link RecorderEngine} of the recorder
+     *                               runs as many sessions as it can.
      */
     public void start() {
-        // Stop recording if it is currently ongoing.
-        stop();
-        // Try to create a new recording session.
-        mAudioRecord = createAudioRecord(); //dont hava file yet
-        //Log.d(TAG, "start java.audio.record");
-        mAudioRecord.startRecording();
-        if (mAudioRecord == null) {
-            throw new RuntimeException("Cannot instantiate VoiceRecorder");
+        synchronized (mLock) {
+            // Stop recording if it is currently ongoing.
+            stop();
+            // Try to create a new recording session.
+            if (!mSession.start()) { //dont hava file yet
+                throw new IllegalStateException("Cannot open the audio source");
+            }
         }
-        init(); //getNxt file now calls opusTool.startrecording(filNM
-
-        // Start recording.
-
-
-        //mAudioRecord.startRecording();
-        state = STATE_STARTED;
-        // Start processing the captured audio.
-        mThread = new Thread(new ProcessVoice());
-        mThread.start();
     }
 
     /**
-     * Stops recording audio and the encoderTool for Opus.
+     * Stops recording audio and the encoderTool for Opus. {@link #toString()} tells how the
+     * recording went.
      */
     public void stop() {
-        //Log.d(TAG, "stop");
         synchronized (mLock) {
-            state = STATE_NONE;
-
-            if(null != mOpusTool)mOpusTool.stopRecording();
-            dismiss();
-
-            //.updateTrackInfo()
-            OpusTrackInfo info =  OpusTrackInfo.getInstance();
-            if(null != filePath) {
-                info.addOpusFile(filePath);
-                File f = new File(filePath);}
-
-            // updateTrackInfo end
-
-            if (mThread != null) {
-                mThread.interrupt();
-                mThread = null;
-            }
-//bug interupted
-
-            if (mAudioRecord != null) {
-                mAudioRecord.stop();
-                mAudioRecord.release();
-                mAudioRecord = null;
-            }
-            mBuffer = null;
-
+            mSession.close();
         }
-//was here updateTrack
     }
 
     /**
-     * Dismisses the currently ongoing utterance.
+     * Waits until a source that ends, e.g. a replayed file, has run out and all of its audio has
+     * been through voice detection and the encoder. {@link #stop()} is still to be called
+     * afterwards.
      */
-    public void dismiss() {
-        if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
-            mLastVoiceHeardMillis = Long.MAX_VALUE;
-            mCallback.onVoiceEnd();
-        }
+    void awaitEnd() throws InterruptedException {
+        mSession.awaitEnd();
     }
 
     /**
-     * Retrieves the sample rate currently used to record audio.
+     * Dismisses {@code utterance} if it is still going on; does nothing once it is over. The
+     * microphone keeps recording.
      *
-     * @return The sample rate of recorded audio.
+     * @param utterance The number passed to {@link Callback#onVoiceStart(int)}.
      */
-    public int getSampleRate() {
-        if (mAudioRecord != null) {
-            return mAudioRecord.getSampleRate();
-        }
-        return 0;
+    public void dismiss(int utterance) {
+        mSession.dismiss(utterance);
     }
 
     /**
-     * Creates a new {@link AudioRecord}.
+     * Retrieves the sample rate currently used to record audio.
      *
-     * @return A newly created {@link AudioRecord}, or null if it cannot be created (missing
-     * permissions?).
-     */
-    private AudioRecord createAudioRecord() {
-        for (int sampleRate : SAMPLE_RATE_CANDIDATES) {
-
-            final int sizeInBytes = AudioRecord.getMinBufferSize(sampleRate, CHANNEL, ENCODING);
-            bufferSize = (sizeInBytes / 1920 + 1) * 1920;
-            if (sizeInBytes == AudioRecord.ERROR_BAD_VALUE) {
-                continue;
-            }
-            final AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
-                    sampleRate, CHANNEL, ENCODING, bufferSize);
-            if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
-                //Log.d(TAG, "createRecdr " + sampleRate +" " +bufferSize);
-                mBuffer = new byte[bufferSize];
-                return audioRecord;
-            } else {
-                audioRecord.release();
-            }
-        }
-        return null;
-    }
-
-    /**
-     * copy from : https://github.com/louisyonge/opus_android/blob/master/opuslib/src/main/java/top/oply/opuslib/OpusRecorder.java#L97
-     * make mic's buffer avail for call to jni layer for  OpusTool writeFrame()
-     * rev : input type DirectBuffer is now just bytes[]
+     * @return The sample rate of recorded audio.
      */
-    private void writeAudioDataToOpus(ByteBuffer buffer, int size) {
-
-        //bytes[] to new Buffer
-        ByteBuffer finalBuffer = ByteBuffer.allocateDirect(size);
-        finalBuffer.put(buffer);
-        //Log.d(TAG, "buffrPut " +buffer.position());
-
-        finalBuffer.rewind();
-        boolean flush = false;
-
-        //write data  to Opus file
-        //bug mLastVoiceHeardMillis != Long.MAX_VALUE;
-
-        while (state == STATE_STARTED && finalBuffer.hasRemaining()) {
-            int oldLimit = -1;
-            if (finalBuffer.remaining() > fileBuffer.remaining()) {
-                oldLimit = finalBuffer.limit();
-                finalBuffer.limit(fileBuffer.remaining() + finalBuffer.position());
-            }
-            fileBuffer.put(finalBuffer);
-            if (fileBuffer.position() == fileBuffer.limit() || flush) {
-                int length = !flush ? fileBuffer.limit() : finalBuffer.position();
-                int rst = mOpusTool.writeFrame(fileBuffer, length); //to encoder
-                if (rst != 0) {
-                    fileBuffer.rewind();
-                } else{
-                    Log.d(TAG, "writeFrame err rewindNO " + rst);
-                }
-            }
-            if (oldLimit != -1) {
-                finalBuffer.limit(oldLimit);
-            }
-        }
+    public int getSampleRate() {
+        return mSession.getSampleRate();
     }
 
-    /**
-     * Continuously processes the captured audio and notifies {@link #mCallback} of corresponding
-     * events.
-     * calls OpusEnc with bytes from microphone audio (PCM16-mono to Opus)
-     */
-    private class ProcessVoice implements Runnable {
-
-        @Override
-        public void run() {
-            while (true) {
-                synchronized (mLock) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        break;
-                    }
-                    //final int size = mAudioRecord.read(mBuffer, 0, mBuffer.length);
-                    final int size = mAudioRecord.read(firstBuffer,  bufferSize); //no chg to buffr state
-                    firstBuffer.position(size);
-                    firstBuffer.flip();  //propr state for relative gets.... in "writeaudioToOpus"
-                    //writeAudioDataToOpus(mBuffer, size);
-                    if (size != AudioRecord.ERROR_INVALID_OPERATION) {
-                      try {
-                          writeAudioDataToOpus(firstBuffer, size);
-                      }
-                      catch (Exception e)
-                      {
-                          e.printStackTrace();
-                      }
-                    } // done buffer get byte[] from the buffer and do the rest
-                    firstBuffer.rewind();
-                    firstBuffer.get(mBuffer); //what is state of firBffr after this? rewindIT?
-
-                    final long now = System.currentTimeMillis();
-
-                    if (isHearingVoice(mBuffer, size)) {
-                        if (mLastVoiceHeardMillis == Long.MAX_VALUE) {
-                            mVoiceStartedMillis = now;
-                            mCallback.onVoiceStart(); //bug called before Main-> start
-                        }
-                        mCallback.onVoice(mBuffer, size);
-                        mLastVoiceHeardMillis = now;
-                        if (now - mVoiceStartedMillis > MAX_SPEECH_LENGTH_MILLIS) {
-                            end();
-                        }
-                    } else if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
-                        mCallback.onVoice(mBuffer, size);
-                        if (now - mLastVoiceHeardMillis > SPEECH_TIMEOUT_MILLIS) {
-                            end();
-                        }
-                    }
-                }
-            }
-        }
-
-        private void end() {
-            stop();
-            mOpusTool.stopRecording();
-            mLastVoiceHeardMillis = Long.MAX_VALUE;
-            mCallback.onVoiceEnd();
-        }
-
-        private boolean isHearingVoice(byte[] buffer, int size) {
-            for (int i = 0; i < size - 1; i += 2) {
-                // The buffer has LINEAR16 in little endian.
-                int s = buffer[i + 1];
-                if (s < 0) s *= -1;
-                s <<= 8;
-                s += Math.abs(buffer[i]);
-                if (s > AMPLITUDE_THRESHOLD) {
-                    return true;
-                }
-            }
-            return false;
-        }
-
+    @Override
+    public String toString() {
+        return "OpusRecorder{name=" + mName + ", " + mSession + "}";
     }
 
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+
+import top.oply.opuslib.OpusTool;
+import top.oply.opuslib.OpusTrackInfo;
+
+
+/**
+ * The native OpusTool of opuslib for an {@link OpusRecorder}: each file is named and registered
+ * with the track list of opuslib, and written through an {@link OpusFileOutput}.
+ */
+class OpusToolEncoder implements OpusRecorder.Encoder {
+
+    private OpusTool mOpusTool;
+
+    private OpusFileOutput mOutput;
+
+    private String mFilePath;
+
+    /**
+     * Init the lib's OpusTool with a new file. writes the header in the encoded(opus) file
+     * and awaits the microphone buffer for further IO
+     * Encode PCM16 mono @16k frame/sec TO Opus 2400 mono
+     * config details of encoder? belo
+     * https://github.com/louisyonge/opus_android/blob/master/opuslib/src/main/jni/opustool/opusaudio.c#L289
+     */
+    @Override
+    public void begin(String name) {
+        mOpusTool = new OpusTool();
+        mFilePath = OpusTrackInfo.getInstance().getAValidFileName(name);
+        // The encoder writes through a pipe; the file itself is written behind its back.
+        mOutput = new OpusFileOutput(mFilePath);
+        // opusaudio.c returns 0 when it cannot start on the path.
+        if (mOpusTool.startRecording(mOutput.open()) == 0 && mOutput.isPiped()) {
+            mOpusTool.startRecording(mOutput.fallBack());
+        }
+    }
+
+    @Override
+    public int writeFrame(ByteBuffer frame, int size) {
+        return mOpusTool.writeFrame(frame, size);
+    }
+
+    /**
+     * Finalizes the current Opus file and registers it with the track list.
+     */
+    @Override
+    public void finish() {
+        if (mOpusTool != null) {
+            mOpusTool.stopRecording();
+        }
+        if (mOutput != null) {
+            mOutput.close();
+            mOutput = null;
+        }
+        if (mFilePath != null) {
+            OpusTrackInfo.getInstance().addOpusFile(mFilePath);
+            mFilePath = null;
+        }
+    }
+
+}
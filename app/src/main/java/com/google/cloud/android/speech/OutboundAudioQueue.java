@@ -0,0 +1,357 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1beta1.StreamingRecognizeRequest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.stub.CallStreamObserver;
+
+
+/**
+ * Sends audio on a streaming call only as fast as the call takes it, so that a slow uplink
+ * cannot pile up audio in gRPC's buffers without limit.
+ *
+ * <p>While the call is ready, audio goes out straight away and without a copy. While it is not,
+ * e.g. while the connection is being set up or the transport's buffer is full, the audio is
+ * copied to a bounded queue of pooled frames, which is drained as soon as the call is ready again.
+ * What happens when the queue is full is chosen with an {@link Overload} policy. The limit is
+ * counted in LINEAR16 bytes, so it holds more audio if the audio is compressed.</p>
+ *
+ * <p>One queue serves one call at a time; {@link #start(CallStreamObserver, int)} moves it on to
+ * the next call. Thread safe.</p>
+ */
+class OutboundAudioQueue {
+
+    /**
+     * What the queue does when more audio comes in than it may hold.
+     */
+    enum Overload {
+
+        /**
+         * The oldest queued audio is dropped. The recognizer misses some audio but stays current.
+         * The first audio of a call is kept, as it may start with a stream header, e.g. of FLAC.
+         */
+        DROP_OLDEST,
+
+        /**
+         * The utterance ends: what is queued goes out, the rest of the audio is dropped and the
+         * call is half-closed.
+         */
+        END_UTTERANCE,
+    }
+
+    private final Object mLock = new Object();
+
+    private final int mLimitMillis;
+
+    private volatile Overload mPolicy;
+
+    /** Queued audio, oldest first. */
+    private final ArrayDeque<Frame> mQueue = new ArrayDeque<>();
+
+    /** Sent frames, kept for reuse. */
+    private final ArrayDeque<Frame> mPool = new ArrayDeque<>();
+
+    /** Builds the requests of audio; guarded by {@link #mLock}. */
+    private final StreamingRequests.AudioRequests mAudioRequests
+            = new StreamingRequests.AudioRequests();
+
+    private CallStreamObserver<StreamingRecognizeRequest> mRequests;
+
+    /** Whether the call is to be half-closed once the queue is empty. */
+    private boolean mCompleting;
+
+    /** Whether any audio was sent or queued on the call yet. */
+    private boolean mHasAudio;
+
+    /** Whether the head of the queue is the first audio of the call. */
+    private boolean mHeadIsFirst;
+
+    private int mLimitBytes;
+
+    private int mQueuedBytes;
+
+    /** When the queue last went from empty to not empty, or 0 if it is empty. */
+    private long mBackloggedSince;
+
+    private volatile int mQueueDepth;
+
+    private volatile int mMaxQueueDepth;
+
+    private volatile long mNotReadyNanos;
+
+    private volatile long mDroppedFrames;
+
+    private volatile long mOverloads;
+
+    /**
+     * @param limitMillis The duration of audio the queue may hold.
+     * @param policy      What to do when the queue is full.
+     */
+    OutboundAudioQueue(int limitMillis, Overload policy) {
+        mLimitMillis = limitMillis;
+        mPolicy = policy;
+    }
+
+    /**
+     * Sets what the queue does when it is full. Takes effect right away.
+     */
+    void setOverloadPolicy(Overload policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Moves on to a new call. Whatever was still queued for the previous call is dropped, and the
+     * previous call is half-closed if it is not yet.
+     *
+     * @param requests   The requests of the new call. Its first request, the configuration, is
+     *                   expected to be sent already.
+     * @param sampleRate The sample rate of the 16-bit mono audio to come.
+     */
+    void start(CallStreamObserver<StreamingRecognizeRequest> requests, int sampleRate) {
+        synchronized (mLock) {
+            if (mRequests != null) {
+                clear();
+                mRequests.onCompleted();
+            }
+            mRequests = requests;
+            mCompleting = false;
+            mHasAudio = false;
+            mLimitBytes = (int) ((long) sampleRate * 2 * mLimitMillis / 1000);
+            mMaxQueueDepth = 0;
+            mNotReadyNanos = 0;
+            mDroppedFrames = 0;
+            mOverloads = 0;
+        }
+    }
+
+    /**
+     * Sends audio on the current call, or queues it if the call is not ready.
+     *
+     * @param data The audio data. Not modified until the call returns.
+     * @param size The size of the actual data in {@code data}.
+     * @return {@code false} if the queue overflowed and the utterance has to end; see
+     * {@link Overload#END_UTTERANCE}. The call is then half-closed once the queue is empty.
+     */
+    boolean send(byte[] data, int size) {
+        synchronized (mLock) {
+            if (mRequests == null || mCompleting) {
+                return true;
+            }
+            drain();
+            if (mQueue.isEmpty() && mRequests.isReady()) {
+                // Serialized before onNext returns; see StreamingRequests#wrapAudio.
+                mRequests.onNext(mAudioRequests.wrap(data, size));
+                sent(size);
+                mHasAudio = true;
+                return true;
+            }
+            if (mQueuedBytes + size > mLimitBytes && !mQueue.isEmpty()) {
+                mOverloads++;
+                if (mPolicy == Overload.END_UTTERANCE) {
+                    mCompleting = true;
+                    return false;
+                }
+                final Frame first = mHeadIsFirst ? mQueue.remove() : null;
+                while (mQueuedBytes + size > mLimitBytes && !mQueue.isEmpty()) {
+                    recycle(mQueue.remove());
+                    mDroppedFrames++;
+                }
+                if (first != null) {
+                    mQueue.addFirst(first);
+                }
+            }
+            enqueue(data, size);
+            return true;
+        }
+    }
+
+    /**
+     * Sends what is queued for {@code requests}, as far as the call takes it. Called whenever the
+     * call becomes ready.
+     */
+    void onReady(CallStreamObserver<StreamingRecognizeRequest> requests) {
+        synchronized (mLock) {
+            if (requests != null && requests == mRequests) {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Half-closes the current call.
+     *
+     * @param flush {@code true} to send what is queued first, {@code false} to drop it.
+     */
+    void complete(boolean flush) {
+        synchronized (mLock) {
+            if (mRequests == null) {
+                return;
+            }
+            if (!flush) {
+                clear();
+            }
+            mCompleting = true;
+            drain();
+        }
+    }
+
+    /**
+     * @return The number of frames waiting for the call to be ready.
+     */
+    int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * @return The largest number of frames that were waiting at once on the current call.
+     */
+    int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return The time the current call kept audio waiting because it was not ready, in
+     * milliseconds.
+     */
+    long getNotReadyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mNotReadyNanos);
+    }
+
+    /**
+     * @return The number of frames dropped on the current call because the queue was full.
+     */
+    long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return The number of times the queue was full on the current call.
+     */
+    long getOverloads() {
+        return mOverloads;
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundAudioQueue{policy=" + mPolicy
+                + ", queueDepth=" + mQueueDepth
+                + ", maxQueueDepth=" + mMaxQueueDepth
+                + ", notReadyMillis=" + getNotReadyMillis()
+                + ", dropped=" + mDroppedFrames
+                + ", overloads=" + mOverloads
+                + "}";
+    }
+
+    /**
+     * Sends queued frames while the call is ready, and half-closes it once they are all out if
+     * it is completing.
+     */
+    private void drain() {
+        while (!mQueue.isEmpty() && mRequests.isReady()) {
+            final Frame frame = mQueue.remove();
+            mHeadIsFirst = false;
+            mQueuedBytes -= frame.mSize;
+            // The call is ready, so the frame is serialized before onNext returns.
+            mRequests.onNext(mAudioRequests.wrap(frame.mAudio, frame.mSize));
+            sent(frame.mSize);
+            mPool.add(frame);
+        }
+        mQueueDepth = mQueue.size();
+        if (mQueue.isEmpty()) {
+            if (mBackloggedSince != 0) {
+                mNotReadyNanos += System.nanoTime() - mBackloggedSince;
+                mBackloggedSince = 0;
+            }
+            if (mCompleting) {
+                mRequests.onCompleted();
+                mRequests = null;
+            }
+        }
+    }
+
+    private static void sent(int size) {
+        PipelineMetrics.STREAM_MESSAGES.increment();
+        PipelineMetrics.STREAM_BYTES.add(size);
+    }
+
+    private void enqueue(byte[] data, int size) {
+        Frame frame = mPool.poll();
+        if (frame == null || frame.mData.length < size) {
+            frame = new Frame(size);
+        }
+        System.arraycopy(data, 0, frame.mData, 0, size);
+        frame.mSize = size;
+        if (mQueue.isEmpty()) {
+            mBackloggedSince = System.nanoTime();
+        }
+        if (!mHasAudio) {
+            mHasAudio = true;
+            mHeadIsFirst = true;
+        }
+        mQueue.add(frame);
+        mQueuedBytes += size;
+        mQueueDepth = mQueue.size();
+        if (mQueueDepth > mMaxQueueDepth) {
+            mMaxQueueDepth = mQueueDepth;
+        }
+    }
+
+    private void recycle(Frame frame) {
+        mQueuedBytes -= frame.mSize;
+        mPool.add(frame);
+    }
+
+    /**
+     * Drops everything that is queued.
+     */
+    private void clear() {
+        while (!mQueue.isEmpty()) {
+            recycle(mQueue.remove());
+        }
+        mHeadIsFirst = false;
+        mQueueDepth = 0;
+        if (mBackloggedSince != 0) {
+            mNotReadyNanos += System.nanoTime() - mBackloggedSince;
+            mBackloggedSince = 0;
+        }
+    }
+
+    /**
+     * A copy of audio that had to wait.
+     */
+    private static class Frame {
+
+        final byte[] mData;
+
+        /** Wraps {@link #mData} for the requests. */
+        final ByteBuffer mAudio;
+
+        int mSize;
+
+        Frame(int size) {
+            mData = new byte[size];
+            mAudio = ByteBuffer.wrap(mData);
+        }
+
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A source of LINEAR16 (little endian), mono PCM audio for {@link OpusRecorder} and
+ * {@link VoiceRecorder}.
+ *
+ * <p>The recorders call {@link #open()} when they start, read from the source on their own
+ * processing thread, and call {@link #close()} when they stop. A source may be opened again
+ * after it has been closed.</p>
+ *
+ * <p>This interface deliberately has no Android dependencies so that the rest of the capture
+ * pipeline can be driven from recorded audio on a plain JVM.</p>
+ */
+public interface PcmSource {
+
+    /**
+     * Returned by the read methods when a finite source has no more audio. Microphone sources
+     * never return this value.
+     */
+    int END_OF_STREAM = Integer.MIN_VALUE;
+
+    /**
+     * Opens the source and starts delivering audio.
+     *
+     * @return {@code true} if the source is ready to be read from.
+     */
+    boolean open();
+
+    /**
+     * Closes the source and releases its resources.
+     */
+    void close();
+
+    /**
+     * @return The sample rate of the delivered audio, or 0 if the source is not open.
+     */
+    int getSampleRate();
+
+    /**
+     * @return The size in bytes of the buffer the caller should read with, or 0 if the source is
+     * not open.
+     */
+    int getBufferSize();
+
+    /**
+     * Reads audio into a byte array. Blocks until audio is available.
+     *
+     * @param data   The destination.
+     * @param offset The offset in {@code data} to start writing at.
+     * @param size   The maximum number of bytes to read.
+     * @return The number of bytes read, {@link #END_OF_STREAM}, or another negative value on
+     * error.
+     */
+    int read(byte[] data, int offset, int size);
+
+    /**
+     * Reads audio into a direct buffer. Blocks until audio is available.
+     *
+     * <p>Like {@link android.media.AudioRecord#read(ByteBuffer, int)}, the audio is written
+     * starting at index 0 of {@code buffer}, at most {@code buffer.capacity()} bytes are read, and
+     * the position of {@code buffer} is left unchanged.</p>
+     *
+     * @param buffer The destination.
+     * @param size   The maximum number of bytes to read.
+     * @return The number of bytes read, {@link #END_OF_STREAM}, or another negative value on
+     * error.
+     */
+    int read(ByteBuffer buffer, int size);
+
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.cloud.android.speech;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * The counters and latency histograms of the whole pipeline, from the microphone to the
+ * recognition results, for diagnosing latency in the field.
+ *
+ * <p>Recording a value takes a few atomic operations and never locks or allocates, so it is safe
+ * on the capture thread. The metrics add up from process start until {@link #reset()};
+ * {@link #snapshot()} copies them, e.g. to be written to logcat or a file.</p>
+ */
+class PipelineMetrics {
+
+    private static final List<Metric> METRICS = new ArrayList<>();
+
+    /** How long each read of the microphone blocks. */
+    static final Histogram CAPTURE_READ = register(
+            new Histogram("capture.read", TimeUnit.MICROSECONDS));
+
+    /** Buffers the capture thread dropped because the consumers had fallen a whole ring behind. */
+    static final Counter CAPTURE_OVERRUNS = register(new Counter("capture.overruns"));
+
+    /** Reads of the microphone that failed, e.g. with {@code ERROR_INVALID_OPERATION}. */
+    static final Counter CAPTURE_READ_ERRORS = register(new Counter("capture.readErrors"));
+
+    /** How long the Opus encoder takes for a frame. */
+    static final Histogram OPUS_WRITE_FRAME = register(
+            new Histogram("opus.writeFrame", TimeUnit.MICROSECONDS));
+
+    /** Frames the Opus encoder failed to write. */
+    static final Counter OPUS_WRITE_FRAME_ERRORS = register(
+            new Counter("opus.writeFrameErrors"));
+
+    /** Streaming calls started. */
+    static final Counter STREAMS = register(new Counter("stream.count"));
+
+    /** Streaming calls that failed. */
+    static final Counter STREAM_ERRORS = register(new Counter("stream.errors"));
+
+    /** The time from starting a streaming call until it can take audio. */
+    static final Histogram STREAM_OPEN = register(
+            new Histogram("stream.open", TimeUnit.MILLISECONDS));
+
+    /** Audio messages sent on the streaming calls. */
+    static final Counter STREAM_MESSAGES = register(new Counter("stream.messages"));
+
+    /** Bytes of audio sent on the streaming calls, as encoded. */
+    static final Counter STREAM_BYTES = register(new Counter("stream.bytes"));
+
+    /** The time from the onset of voice to the first interim result of the utterance. */
+    static final Histogram FIRST_INTERIM = register(
+            new Histogram("recognize.firstInterim", TimeUnit.MILLISECONDS));
+
+    /** The time from the onset of voice to the final result of the utterance. */
+    static final Histogram FINAL_RESULT = register(
+            new Histogram("recognize.final", TimeUnit.MILLISECONDS));
+
+    private PipelineMetrics() {
+    }
+
+    /**
+     * @return A copy of all the metrics as they are now.
+     */
+    static Snapshot snapshot() {
+        final ArrayList<Object> values = new ArrayList<>(METRICS.size());
+        for (Metric metric : METRICS) {
+            values.add(metric.snapshot());
+        }
+        return new Snapshot(System.currentTimeMillis(), values);
+    }
+
+    /**
+     * Sets all the metrics back to zero. Values recorded meanwhile may or may not survive.
+     */
+    static void reset() {
+        for (Metric metric : METRICS) {
+            metric.reset();
+        }
+    }
+
+    private static <T extends Metric> T register(T metric) {
+        METRICS.add(metric);
+        return metric;
+    }
+
+    private static String abbreviate(TimeUnit unit) {
+        switch (unit) {
+            case NANOSECONDS:
+                return "ns";
+            case MICROSECONDS:
+                return "us";
+            case MILLISECONDS:
+                return "ms";
+            default:
+                return unit.name().toLowerCase();
+        }
+    }
+
+    /**
+     * A named metric.
+     */
+    abstract static class Metric {
+
+        private final String mName;
+
+        Metric(String name) {
+            mName = name;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        abstract Object snapshot();
+
+        abstract void reset();
+
+    }
+
+    /**
+     * A number that only goes up.
+     */
+    static final class Counter extends Metric {
+
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            super(name);
+        }
+
+        void increment() {
+            mValue.incrementAndGet();
+        }
+
+        void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        long get() {
+            return mValue.get();
+        }
+
+        @Override
+        CounterSnapshot snapshot() {
+            return new CounterSnapshot(getName(), mValue.get());
+        }
+
+        @Override
+        void reset() {
+            mValue.set(0);
+        }
+
+    }
+
+    /**
+     * The distribution of a duration, in buckets whose width grows with the value like those of
+     * an HDR histogram: every power of two is split into 8 buckets, so that any percentile is
+     * within 12.5% of the true value, at a fixed 4 KB whatever the range.
+     */
+    static final class Histogram extends Metric {
+
+        private static final int SUB_BITS = 3;
+
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        /** Enough buckets for any positive long. */
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final TimeUnit mUnit;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong mSum = new AtomicLong();
+
+        private final AtomicLong mMax = new AtomicLong();
+
+        /**
+         * @param name The name of the metric.
+         * @param unit The unit the values are kept in.
+         */
+        Histogram(String name, TimeUnit unit) {
+            super(name);
+            mUnit = unit;
+        }
+
+        /**
+         * Records a duration.
+         *
+         * @param nanos The duration in nanoseconds; converted to the unit of the histogram.
+         */
+        void recordNanos(long nanos) {
+            record(mUnit.convert(nanos, TimeUnit.NANOSECONDS));
+        }
+
+        /**
+         * Records the time since {@code startedNanos}, a value of {@link System#nanoTime()}.
+         */
+        void recordSince(long startedNanos) {
+            recordNanos(System.nanoTime() - startedNanos);
+        }
+
+        /**
+         * Records a value in the unit of the histogram. Negative values count as 0.
+         */
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(index(value));
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // Another thread raised it meanwhile; try again.
+            }
+        }
+
+        @Override
+        HistogramSnapshot snapshot() {
+            final long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mBuckets.get(i);
+                count += counts[i];
+            }
+            return new HistogramSnapshot(getName(), mUnit, counts, count, mSum.get(),
+                    mMax.get());
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        /**
+         * @return The highest value that falls into the bucket at {@code index}.
+         */
+        private static long highestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            final int shift = index / SUB_BUCKETS - 1;
+            final long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << shift) - 1;
+        }
+
+    }
+
+    /**
+     * The value of a {@link Counter} at the time of a {@link #snapshot()}.
+     */
+    static final class CounterSnapshot {
+
+        private final String mName;
+
+        private final long mValue;
+
+        CounterSnapshot(String name, long value) {
+            mName = name;
+            mValue = value;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        long getValue() {
+            return mValue;
+        }
+
+        @Override
+        public String toString() {
+            return mName + " " + mValue;
+        }
+
+    }
+
+    /**
+     * The distribution of a {@link Histogram} at the time of a {@link #snapshot()}.
+     */
+    static final class HistogramSnapshot {
+
+        private final String mName;
+
+        private final TimeUnit mUnit;
+
+        private final long[] mCounts;
+
+        private final long mCount;
+
+        private final long mSum;
+
+        private final long mMax;
+
+        HistogramSnapshot(String name, TimeUnit unit, long[] counts, long count, long sum,
+                long max) {
+            mName = name;
+            mUnit = unit;
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        TimeUnit getUnit() {
+            return mUnit;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getMax() {
+            return mMax;
+        }
+
+        double getMean() {
+            return mCount > 0 ? (double) mSum / mCount : 0;
+        }
+
+        /**
+         * @param quantile The quantile, from 0 to 1; e.g. 0.99 for the 99th percentile.
+         * @return The value that {@code quantile} of the values are at or below, rounded up to
+         * the top of its bucket, or 0 if there are no values.
+         */
+        long getValueAt(double quantile) {
+            final long rank = Math.max((long) Math.ceil(quantile * mCount), 1);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.highestValue(i), mMax);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            final String unit = abbreviate(mUnit);
+            return mName + " count=" + mCount
+                    + " mean=" + Math.round(getMean()) + unit
+                    + " p50=" + getValueAt(0.5) + unit
+                    + " p90=" + getValueAt(0.9) + unit
+                    + " p99=" + getValueAt(0.99) + unit
+                    + " max=" + mMax + unit;
+        }
+
+    }
+
+    /**
+     * All the metrics at one point in time: {@link CounterSnapshot}s and
+     * {@link HistogramSnapshot}s, one per line in {@link #toString()}.
+     */
+    static final class Snapshot {
+
+        private final long mTimeMillis;
+
+        private final List<Object> mValues;
+
+        Snapshot(long timeMillis, List<Object> values) {
+            mTimeMillis = timeMillis;
+            mValues = Collections.unmodifiableList(values);
+        }
+
+        /**
+         * @return When the snapshot was taken, in milliseconds since the epoch.
+         */
+        long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        /**
+         * @return The snapshots of the metrics, in the order they are declared in
+         * {@link PipelineMetrics}.
+         */
+        List<Object> getValues() {
+            return mValues;
+        }
+
+        /**
+         * Writes the snapshot as text, one metric per line.
+         */
+        void writeTo(Writer writer) throws IOException {
+            for (Object value : mValues) {
+                writer.write(value.toString());
+                writer.write('\n');
+            }
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            for (Object value : mValues) {
+                builder.append(value).append('\n');
+            }
+            return builder.toString();
+        }
+
+    }
+
+}
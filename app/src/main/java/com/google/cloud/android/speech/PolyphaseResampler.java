@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Converts LINEAR16 audio from one sample rate to another, e.g. from a device's 44.1 kHz to the
+ * 16 kHz that the recognizer and the Opus encoder are set up for.
+ *
+ * <p>The ratio is reduced to L/M, and the audio is conceptually upsampled by L, low-pass filtered
+ * and downsampled by M. Only the outputs are computed: each one applies one of the L phases of
+ * the filter to the last few input samples. The filter is a windowed sinc with its cutoff just
+ * below the lower of the two Nyquist frequencies, so downsampling does not alias; the more the
+ * rate goes down, the more taps it takes for the same transition band.
+ * The filter runs on across calls, so buffers can be of any size; it delays the audio by half
+ * its length. All memory is allocated by the constructor and when a larger buffer first comes
+ * in. Not thread safe.</p>
+ */
+class PolyphaseResampler {
+
+    /** The taps of each phase of the filter, per sample at the lower of the two rates. */
+    private static final int TAPS_PER_SAMPLE = 32;
+
+    /** The cutoff relative to the lower Nyquist frequency, leaving room for the transition. */
+    private static final double CUTOFF = 0.9;
+
+    /** The shape parameter of the Kaiser window; about 80 dB of stopband attenuation. */
+    private static final double KAISER_BETA = 8.0;
+
+    private final int mInputRate;
+
+    private final int mOutputRate;
+
+    /** The upsampling factor. */
+    private final int mUp;
+
+    /** The downsampling factor. */
+    private final int mDown;
+
+    /** The taps of each phase of the filter. */
+    private final int mTaps;
+
+    /** The phases of the filter, {@link #mTaps} each, newest input sample first. */
+    private final float[] mPhases;
+
+    /** The last {@link #mTaps} - 1 input samples, followed by those of the current call. */
+    private float[] mInput;
+
+    /**
+     * The time of the next output, in 1/L input samples, relative to the first input sample of
+     * the current call.
+     */
+    private long mTime;
+
+    /**
+     * @param inputRate  The sample rate of the input.
+     * @param outputRate The sample rate of the output.
+     */
+    PolyphaseResampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Bad sample rates: " + inputRate + " -> "
+                    + outputRate);
+        }
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        final int gcd = gcd(inputRate, outputRate);
+        mUp = outputRate / gcd;
+        mDown = inputRate / gcd;
+        mTaps = (int) Math.ceil((double) TAPS_PER_SAMPLE * Math.max(mUp, mDown) / mUp);
+        mPhases = design(mUp, mDown, mTaps);
+        mInput = new float[mTaps - 1];
+    }
+
+    int getInputRate() {
+        return mInputRate;
+    }
+
+    int getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * Forgets the audio so far, e.g. before a new recording.
+     */
+    void reset() {
+        for (int i = 0; i < mTaps - 1; i++) {
+            mInput[i] = 0;
+        }
+        mTime = 0;
+    }
+
+    /**
+     * @return The most input samples that make at most {@code outputSamples} samples of output
+     * in the next call.
+     */
+    int getMaxInput(int outputSamples) {
+        // Outputs at times mTime + k * M for k < outputSamples, while their time is below the
+        // end of the input.
+        final long limit = mTime + (long) outputSamples * mDown;
+        return (int) Math.max(limit / mUp, 0);
+    }
+
+    /**
+     * @return The most output samples that {@code inputSamples} samples of input can make.
+     */
+    int getMaxOutput(int inputSamples) {
+        return (int) (((long) inputSamples * mUp + mDown - 1) / mDown) + 1;
+    }
+
+    /**
+     * Resamples a buffer of audio.
+     *
+     * @param input        The input audio. Only read during the call.
+     * @param inputOffset  The offset of the audio in {@code input}.
+     * @param inputSize    The size of the audio in bytes.
+     * @param output       The destination; see {@link #getMaxOutput(int)} for the room it needs.
+     * @param outputOffset The offset in {@code output} to start writing at.
+     * @return The number of bytes written to {@code output}.
+     */
+    int process(byte[] input, int inputOffset, int inputSize, byte[] output, int outputOffset) {
+        final int samples = inputSize / 2;
+        final int taps = mTaps;
+        final int total = taps - 1 + samples;
+        if (mInput.length < total) {
+            final float[] grown = new float[total];
+            System.arraycopy(mInput, 0, grown, 0, taps - 1);
+            mInput = grown;
+        }
+        final float[] x = mInput;
+        for (int i = 0; i < samples; i++) {
+            final int at = inputOffset + 2 * i;
+            x[taps - 1 + i] = (short) ((input[at] & 0xFF) | (input[at + 1] << 8));
+        }
+        final float[] phases = mPhases;
+        final long end = (long) samples * mUp;
+        int out = outputOffset;
+        long time = mTime;
+        for (; time < end; time += mDown) {
+            // The newest input sample of this output, and the phase of the filter for it.
+            final int newest = (int) (time / mUp) + taps - 1;
+            final int phase = (int) (time % mUp) * taps;
+            float sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += phases[phase + k] * x[newest - k];
+            }
+            int sample = Math.round(sum);
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            output[out++] = (byte) sample;
+            output[out++] = (byte) (sample >> 8);
+        }
+        mTime = time - end;
+        System.arraycopy(x, samples, x, 0, taps - 1);
+        return out - outputOffset;
+    }
+
+    /**
+     * Designs the prototype low-pass filter at L times the input rate, and splits it into its L
+     * phases, each normalized to unity gain.
+     */
+    private static float[] design(int up, int down, int taps) {
+        final int length = up * taps;
+        final double center = (length - 1) / 2.0;
+        // The cutoff in cycles per sample of the upsampled signal.
+        final double cutoff = CUTOFF * 0.5 / Math.max(up, down);
+        final double[] prototype = new double[length];
+        final double norm = bessel0(KAISER_BETA);
+        for (int i = 0; i < length; i++) {
+            final double t = i - center;
+            final double sinc = t == 0 ? 2 * cutoff
+                    : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            final double r = t / (center + 1);
+            final double window = bessel0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / norm;
+            prototype[i] = sinc * window;
+        }
+        // Phase p takes the taps p, p + L, p + 2L, ...; tap k applies to the k-th newest sample.
+        final float[] phases = new float[length];
+        for (int phase = 0; phase < up; phase++) {
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += prototype[phase + k * up];
+            }
+            for (int k = 0; k < taps; k++) {
+                phases[phase * taps + k] = (float) (prototype[phase + k * up] / sum);
+            }
+        }
+        return phases;
+    }
+
+    /**
+     * @return The zeroth order modified Bessel function of the first kind, for the Kaiser window.
+     */
+    private static double bessel0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 32; k++) {
+            term *= (x / 2 / k) * (x / 2 / k);
+            sum += term;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+}
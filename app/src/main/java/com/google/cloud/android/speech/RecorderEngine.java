@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Records several inputs at once, e.g. the microphones of a rig or a batch of files, each into
+ * files of its own and to a {@link OpusRecorder.Callback} of its own.
+ *
+ * <p>Every session is an {@link OpusRecorder} with its own source and capture thread, voice
+ * detection state, Opus encoder and files. Voice detection with the callback, i.e. the network,
+ * and the Opus encoding of all the sessions run in turns on one pool of workers, one per core, so
+ * that the sessions use all of the cores without two more threads each. The pool also bounds how
+ * many sessions can be started at once.</p>
+ */
+public class RecorderEngine {
+
+    /** Any of these is resampled to 16 kHz; the first that the device takes wins. */
+    private static final int[] SAMPLE_RATE_CANDIDATES = new int[]{
+            16000, 48000, 44100, 22050, 11025};
+
+    /** The sessions that the default engine runs at once at most. */
+    private static final int DEFAULT_MAX_SESSIONS = 8;
+
+    private static RecorderEngine sDefault;
+
+    private final WorkerPool mWorkers;
+
+    /**
+     * @return The engine of the process, created on first use. It holds on to no session or
+     * callback.
+     */
+    public static synchronized RecorderEngine getDefault() {
+        if (sDefault == null) {
+            sDefault = new RecorderEngine(Runtime.getRuntime().availableProcessors(),
+                    DEFAULT_MAX_SESSIONS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param workers     The number of threads that the sessions share.
+     * @param maxSessions The number of sessions that may be started at once.
+     */
+    public RecorderEngine(int workers, int maxSessions) {
+        // Voice detection and encoding, a task each per session.
+        mWorkers = new WorkerPool("RecorderEngine", workers, maxSessions * 2);
+    }
+
+    /**
+     * Creates a recorder of its own, outside of any engine, with threads of its own for voice
+     * detection and encoding.
+     *
+     * @param callback The callback to notify of voice events.
+     * @param source   The audio to record, e.g. {@link #microphone()} or a {@link FilePcmSource}.
+     *                 It is resampled to 16 kHz if it has another sample rate.
+     * @return The recorder.
+     */
+    public static OpusRecorder newRecorder(@NonNull OpusRecorder.Callback callback,
+            @NonNull PcmSource source) {
+        return new OpusRecorder(OpusRecorder.DEFAULT_NAME, callback, source, null,
+                new OpusToolEncoder(), captureThreads(OpusRecorder.DEFAULT_NAME));
+    }
+
+    /**
+     * @return The microphone, at the first of {@link #SAMPLE_RATE_CANDIDATES} that it takes.
+     */
+    public static PcmSource microphone() {
+        return new AudioRecordSource(SAMPLE_RATE_CANDIDATES, OpusFrameWriter.FRAME_SIZE);
+    }
+
+    /**
+     * @return A factory of capture threads at urgent audio priority.
+     */
+    private static ThreadFactory captureThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                        runnable.run();
+                    }
+                }, name + "-capture");
+            }
+        };
+    }
+
+    /**
+     * Creates a session that records from the microphone.
+     *
+     * @param name     Names the files of the session; sessions that run at once need different
+     *                 names.
+     * @param callback The callback to notify of voice events.
+     * @return The session, to be started and stopped like any {@link OpusRecorder}.
+     */
+    public OpusRecorder newSession(@NonNull String name, @NonNull OpusRecorder.Callback callback) {
+        return newSession(name, callback, microphone());
+    }
+
+    /**
+     * Creates a session that records from {@code source}.
+     *
+     * @param name     Names the files of the session; sessions that run at once need different
+     *                 names.
+     * @param callback The callback to notify of voice events.
+     * @param source   The audio to record, e.g. a {@link FilePcmSource}. It is resampled to 16 kHz
+     *                 if it has another sample rate.
+     * @return The session, to be started and stopped like any {@link OpusRecorder}.
+     */
+    public OpusRecorder newSession(@NonNull String name, @NonNull OpusRecorder.Callback callback,
+            @NonNull PcmSource source) {
+        return new OpusRecorder(name, callback, source, mWorkers, new OpusToolEncoder(),
+                captureThreads(name));
+    }
+
+    /**
+     * Stops the workers once the sessions are stopped. No session can be started afterwards.
+     */
+    public void shutdown() {
+        mWorkers.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "RecorderEngine{" + mWorkers + "}";
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A {@link PcmSource} that delivers the audio of another source at a fixed sample rate, so that
+ * whatever rate the device records at, the rest of the pipeline gets the rate it is set up for.
+ *
+ * <p>If the other source already delivers that rate, its audio is passed through untouched.
+ * Otherwise it is converted with a {@link PolyphaseResampler}, on the thread that reads. The
+ * buffers are allocated by {@link #open()}, so reads allocate nothing.</p>
+ */
+public class ResamplingPcmSource implements PcmSource {
+
+    private final PcmSource mSource;
+
+    private final int mSampleRate;
+
+    /** Converts the audio, or {@code null} if it is passed through. */
+    private PolyphaseResampler mResampler;
+
+    /** The audio read from {@link #mSource}. */
+    private byte[] mInput;
+
+    /** The converted audio, for reads into a {@link ByteBuffer}. */
+    private byte[] mOutput;
+
+    private int mBufferSize;
+
+    /**
+     * @param source     The source to read from.
+     * @param sampleRate The sample rate to deliver.
+     */
+    public ResamplingPcmSource(PcmSource source, int sampleRate) {
+        mSource = source;
+        mSampleRate = sampleRate;
+    }
+
+    @Override
+    public boolean open() {
+        if (!mSource.open()) {
+            return false;
+        }
+        final int sourceRate = mSource.getSampleRate();
+        final int sourceBufferSize = mSource.getBufferSize();
+        if (sourceRate == mSampleRate) {
+            mResampler = null;
+            mBufferSize = sourceBufferSize;
+            return true;
+        }
+        if (mResampler == null || mResampler.getInputRate() != sourceRate) {
+            mResampler = new PolyphaseResampler(sourceRate, mSampleRate);
+        }
+        mResampler.reset();
+        // Room for a whole read of the source.
+        mBufferSize = mResampler.getMaxOutput(sourceBufferSize / 2) * 2;
+        if (mInput == null || mInput.length < sourceBufferSize) {
+            mInput = new byte[sourceBufferSize];
+        }
+        if (mOutput == null || mOutput.length < mBufferSize) {
+            mOutput = new byte[mBufferSize];
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        mSource.close();
+        mBufferSize = 0;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSource.getSampleRate() != 0 ? mSampleRate : 0;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int size) {
+        if (mResampler == null) {
+            return mSource.read(data, offset, size);
+        }
+        final int read = mSource.read(mInput, 0, inputSize(size));
+        if (read <= 0) {
+            return read;
+        }
+        return mResampler.process(mInput, 0, read, data, offset);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        if (mResampler == null) {
+            return mSource.read(buffer, size);
+        }
+        final int room = Math.min(Math.min(size, buffer.capacity()), mOutput.length);
+        final int read = mSource.read(mInput, 0, inputSize(room));
+        if (read <= 0) {
+            return read;
+        }
+        final int converted = mResampler.process(mInput, 0, read, mOutput, 0);
+        final int position = buffer.position();
+        final int limit = buffer.limit();
+        buffer.clear();
+        buffer.put(mOutput, 0, converted);
+        buffer.limit(limit);
+        buffer.position(position);
+        return converted;
+    }
+
+    /**
+     * @return How many bytes to read from {@link #mSource} for at most {@code size} bytes of
+     * output.
+     */
+    private int inputSize(int size) {
+        final int samples = Math.min(mResampler.getMaxInput(size / 2), mInput.length / 2);
+        return samples * 2;
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1beta1.SpeechGrpc;
+import com.google.cloud.speech.v1beta1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1beta1.StreamingRecognizeResponse;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * The send path of the streaming calls of {@link StreamingRecognizer}: how audio is batched into
+ * messages, how much of it may wait for a slow uplink, and how a call tells the
+ * {@link OutboundAudioQueue} that it is ready for more.
+ */
+final class StreamingCalls {
+
+    /** The audio in a message; the API recommends 100 milliseconds. */
+    static final int CHUNK_MILLIS = 100;
+
+    static final int CHUNK_MAX_BYTES = 16 * 1024;
+
+    /** How long audio may wait for a message to fill up. */
+    static final int CHUNK_DEADLINE_MILLIS = 200;
+
+    /** How much audio may wait for a slow uplink. */
+    static final int OUTBOUND_QUEUE_MILLIS = 2000;
+
+    private StreamingCalls() {
+    }
+
+    /**
+     * @param sink  Receives the messages.
+     * @param timer Runs the flush deadlines.
+     * @return A coalescer with the targets of the app.
+     */
+    static ChunkCoalescer newCoalescer(ChunkCoalescer.Sink sink, ScheduledExecutorService timer) {
+        return new ChunkCoalescer(sink, timer, CHUNK_MILLIS, CHUNK_MAX_BYTES,
+                CHUNK_DEADLINE_MILLIS);
+    }
+
+    /**
+     * @return A queue with the limit and the overload policy of the app.
+     */
+    static OutboundAudioQueue newOutboundQueue() {
+        return new OutboundAudioQueue(OUTBOUND_QUEUE_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+    }
+
+    /**
+     * Starts a streaming call that lets {@code outbound} know whenever it is ready for more
+     * audio. The stub of this gRPC version cannot take an on-ready handler.
+     *
+     * @param api       The stub to start the call on.
+     * @param responses Receives the responses.
+     * @param outbound  The queue the audio of the call goes through.
+     * @param onOpen    Runs the first time the call is ready, on a gRPC thread; may be
+     *                  {@code null}.
+     * @return The requests of the call.
+     */
+    static CallStreamObserver<StreamingRecognizeRequest> start(SpeechGrpc.SpeechStub api,
+            StreamObserver<StreamingRecognizeResponse> responses, OutboundAudioQueue outbound,
+            Runnable onOpen) {
+        final ReadyInterceptor interceptor = new ReadyInterceptor(outbound, onOpen);
+        // The stub's request observers are CallStreamObservers.
+        final CallStreamObserver<StreamingRecognizeRequest> requests
+                = (CallStreamObserver<StreamingRecognizeRequest>) api
+                .withInterceptors(interceptor).streamingRecognize(responses);
+        interceptor.mRequests = requests;
+        return requests;
+    }
+
+    private static class ReadyInterceptor implements ClientInterceptor {
+
+        private final OutboundAudioQueue mOutbound;
+
+        private final Runnable mOnOpen;
+
+        /** Set once the call is started; gRPC may report it ready before that. */
+        volatile CallStreamObserver<StreamingRecognizeRequest> mRequests;
+
+        /** Whether the call was ready yet; only touched by the transport. */
+        private boolean mOpened;
+
+        ReadyInterceptor(OutboundAudioQueue outbound, Runnable onOpen) {
+            mOutbound = outbound;
+            mOnOpen = onOpen;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+                MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+            return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(
+                    next.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    super.start(new ForwardingClientCallListener
+                            .SimpleForwardingClientCallListener<RespT>(responseListener) {
+                        @Override
+                        public void onReady() {
+                            if (!mOpened) {
+                                mOpened = true;
+                                if (mOnOpen != null) {
+                                    mOnOpen.run();
+                                }
+                            }
+                            super.onReady();
+                            mOutbound.onReady(mRequests);
+                        }
+                    }, headers);
+                }
+            };
+        }
+
+    }
+
+}
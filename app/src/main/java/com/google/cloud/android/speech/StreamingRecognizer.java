@@ -0,0 +1,513 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1beta1.SpeechGrpc;
+import com.google.cloud.speech.v1beta1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1beta1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1beta1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1beta1.StreamingRecognizeResponse;
+
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+
+import io.grpc.Channel;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * Streams the voice of each utterance to the Speech API on a call of its own, for
+ * {@link ApiFragment}.
+ *
+ * <p>The audio is batched into messages by a {@link ChunkCoalescer}, encoded by an
+ * {@link UpstreamEncoder} at the level that {@link UpstreamController} picks for the uplink, and
+ * held back by an {@link OutboundAudioQueue} while the call is not ready. When the API's
+ * endpointer hears the end of the speech, the call is half-closed and the {@link Listener} is told
+ * to end the utterance.</p>
+ *
+ * <p>It has no Android dependencies, so that the host harnesses stream through the same code as
+ * the app. It does not log either; its callers log {@link #toString()} and what their
+ * {@link Listener} gets.</p>
+ */
+class StreamingRecognizer {
+
+    interface Listener {
+
+        /**
+         * Called when a new piece of text was recognized by the Speech API.
+         *
+         * @param text      The text.
+         * @param isFinal   {@code true} when the API finished processing audio.
+         * @param utterance The utterance the stream was started for; a late result of an earlier
+         *                  utterance may come in after the next one has started.
+         */
+        void onSpeechRecognized(String text, boolean isFinal, int utterance);
+
+        /**
+         * Called when the API has finished with an utterance, or the uplink cannot keep up with
+         * it.
+         *
+         * @param utterance The utterance the stream was started for, which may be over already.
+         */
+        void stopVoiceRecorder(int utterance);
+
+        /**
+         * Called on a gRPC thread when the call of an utterance is over.
+         *
+         * @param utterance The utterance the stream was started for.
+         * @param error     Why the call failed, or {@code null} if it completed.
+         */
+        void onStreamEnded(int utterance, Throwable error);
+
+    }
+
+    /**
+     * What the {@link UpstreamController} needs to know of the uplink besides how the last stream
+     * went.
+     */
+    interface Uplink {
+
+        /**
+         * @return {@code true} if the active network is metered.
+         */
+        boolean isMetered();
+
+        /**
+         * @return The latest round trip time to the API in milliseconds, or 0 if unknown.
+         */
+        long getPingMillis();
+
+    }
+
+    private final Listener mListener;
+
+    private final Uplink mUplink;
+
+    private volatile SpeechGrpc.SpeechStub mApi;
+
+    /** Guards {@link #mRequestObserver}; the voice thread and gRPC threads both use it. */
+    private final Object mRequestLock = new Object();
+
+    private StreamObserver<StreamingRecognizeRequest> mRequestObserver;
+
+    /** Receives the responses of {@link #mRequestObserver}. */
+    private ResponseObserver mResponseObserver;
+
+    /** Sends the encoded messages on {@link #mRequestObserver}. */
+    private final ChunkCoalescer.Sink mAudioSink = new ChunkCoalescer.Sink() {
+        @Override
+        public void send(byte[] data, int size) {
+            sendAudio(data, size);
+        }
+    };
+
+    /** Picks the encoding and sample rate of each stream from how the uplink copes. */
+    private final UpstreamController mController;
+
+    /** The encoding set with {@link #setUpstreamEncoding}, or {@code null} to adapt. */
+    private volatile UpstreamEncoding mUpstreamEncoding;
+
+    /** Encodes each message of the current stream. */
+    private volatile UpstreamEncoder mEncoder = UpstreamEncoder.create(
+            UpstreamEncoding.LINEAR16, mAudioSink);
+
+    /** Halves the sample rate of the current stream, if its level asks for that. */
+    private final HalfBandDecimator mDecimator = new HalfBandDecimator();
+
+    private volatile boolean mHalfRate;
+
+    /** Batches the audio in front of {@link #mEncoder}. */
+    private final ChunkCoalescer mCoalescer;
+
+    /** Holds the audio back while the call is not ready for it. */
+    private final OutboundAudioQueue mOutbound = StreamingCalls.newOutboundQueue();
+
+    /**
+     * @param timer    Runs the flush deadlines of the coalescer.
+     * @param listener Receives the results, and ends the utterances.
+     * @param uplink   Tells whether the network is metered and how far away the API is, or
+     *                 {@code null} for an unmetered network at an unknown distance.
+     */
+    StreamingRecognizer(ScheduledExecutorService timer, Listener listener, Uplink uplink) {
+        this(timer, listener, uplink, UpstreamController.Level.FULL);
+    }
+
+    /**
+     * @param timer    Runs the flush deadlines of the coalescer.
+     * @param listener Receives the results, and ends the utterances.
+     * @param uplink   Tells whether the network is metered and how far away the API is, or
+     *                 {@code null} for an unmetered network at an unknown distance.
+     * @param initial  The level of the first stream, unless an encoding is set.
+     */
+    StreamingRecognizer(ScheduledExecutorService timer, Listener listener, Uplink uplink,
+            UpstreamController.Level initial) {
+        mListener = listener;
+        mUplink = uplink;
+        mController = new UpstreamController(initial);
+        mCoalescer = StreamingCalls.newCoalescer(new ChunkCoalescer.Sink() {
+            @Override
+            public void send(byte[] data, int size) {
+                mEncoder.send(data, size);
+            }
+        }, timer);
+    }
+
+    /**
+     * Sets the channel to the API that the following streams are started on.
+     */
+    void setChannel(Channel channel) {
+        mApi = SpeechGrpc.newStub(channel);
+    }
+
+    /**
+     * @return {@code true} once there is a channel to start streams on.
+     */
+    boolean isReady() {
+        return mApi != null;
+    }
+
+    /**
+     * Starts a stream for an utterance.
+     *
+     * <p>Unless an encoding is set with {@link #setUpstreamEncoding}, the encoding and sample
+     * rate of the stream adapt to the uplink; see {@link UpstreamController}.</p>
+     *
+     * @param sampleRate The sample rate of the audio.
+     * @param utterance  The number of the utterance in the {@link UtteranceTracer}.
+     * @return {@code false} if there is no channel yet.
+     */
+    boolean startRecognizing(int sampleRate, int utterance) {
+        final SpeechGrpc.SpeechStub api = mApi;
+        if (api == null) {
+            return false;
+        }
+        // The encoding and rate are settled per stream, from how the last one went.
+        observeUplink();
+        final UpstreamEncoding pinned = mUpstreamEncoding;
+        final UpstreamEncoding encoding;
+        final int streamRate;
+        if (pinned != null) {
+            encoding = pinned;
+            streamRate = sampleRate;
+        } else {
+            final UpstreamController.Level level = mController.getLevel();
+            encoding = level.getEncoding();
+            streamRate = level.getSampleRate(sampleRate);
+        }
+        mHalfRate = streamRate != sampleRate;
+        mDecimator.reset();
+        mCoalescer.start(streamRate);
+        if (mEncoder.getEncoding() != encoding) {
+            mEncoder = UpstreamEncoder.create(encoding, mAudioSink);
+        }
+        mEncoder.start(streamRate);
+        final ResponseObserver responseObserver = new ResponseObserver(utterance);
+        PipelineMetrics.STREAMS.increment();
+        synchronized (mRequestLock) {
+            final CallStreamObserver<StreamingRecognizeRequest> requests = StreamingCalls.start(
+                    api, responseObserver, mOutbound, new Runnable() {
+                        @Override
+                        public void run() {
+                            responseObserver.onOpen();
+                        }
+                    });
+            mRequestObserver = requests;
+            responseObserver.mRequests = requests;
+            mResponseObserver = responseObserver;
+            requests.onNext(StreamingRequests.config(getDefaultLanguageCode(), streamRate,
+                    encoding));
+            mOutbound.start(requests, streamRate);
+        }
+        return true;
+    }
+
+    /**
+     * Recognizes the speech audio of the current utterance. Small buffers are batched into
+     * messages of about 100 milliseconds; see {@link #setChunkTargets(int, int, int)}. The audio
+     * is sent straight out of {@code data} whenever possible, so {@code data} must not change
+     * until this method returns.
+     *
+     * @param data The audio data.
+     * @param size The number of elements that are actually relevant in the {@code data}.
+     */
+    void recognize(byte[] data, int size) {
+        if (mHalfRate) {
+            final int decimated = mDecimator.process(data, size);
+            mCoalescer.write(mDecimator.getOutput(), decimated);
+        } else {
+            mCoalescer.write(data, size);
+        }
+    }
+
+    /**
+     * Finishes the stream of the current utterance once the audio still waiting for the uplink
+     * is out.
+     *
+     * @return {@code false} if there was no stream open, e.g. as the API already ended it.
+     */
+    boolean finishRecognizing() {
+        mCoalescer.flush();
+        synchronized (mRequestLock) {
+            if (mRequestObserver == null) {
+                return false;
+            }
+            mOutbound.complete(true);
+            mRequestObserver = null;
+            return true;
+        }
+    }
+
+    /**
+     * Tunes how the audio is batched into messages. Takes effect on the next
+     * {@link #startRecognizing(int, int)}.
+     *
+     * @param targetMillis The duration of audio in a message.
+     * @param maxBytes     The size of the audio in a message at most, whatever its duration.
+     * @param deadline     The time in milliseconds that audio may wait for a message to fill up.
+     */
+    void setChunkTargets(int targetMillis, int maxBytes, int deadline) {
+        mCoalescer.setTargets(targetMillis, maxBytes, deadline);
+    }
+
+    /**
+     * Sets how the audio is encoded for the API, at the capture rate, or with {@code null} lets
+     * the encoding and the sample rate adapt to the uplink. Takes effect on the next
+     * {@link #startRecognizing(int, int)}.
+     */
+    void setUpstreamEncoding(UpstreamEncoding encoding) {
+        mUpstreamEncoding = encoding;
+    }
+
+    /**
+     * Sets what happens when the uplink is so slow that two seconds of audio are waiting to be
+     * sent. The default is {@link OutboundAudioQueue.Overload#DROP_OLDEST}.
+     */
+    void setOverloadPolicy(OutboundAudioQueue.Overload policy) {
+        mOutbound.setOverloadPolicy(policy);
+    }
+
+    /**
+     * @return The controller that picks the level of each stream.
+     */
+    UpstreamController getController() {
+        return mController;
+    }
+
+    /**
+     * @return The encoder of the current or last stream.
+     */
+    UpstreamEncoder getEncoder() {
+        return mEncoder;
+    }
+
+    /**
+     * @return The queue that the audio of every stream goes through.
+     */
+    OutboundAudioQueue getOutbound() {
+        return mOutbound;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamingRecognizer{" + mController
+                + ", " + mCoalescer
+                + ", " + mEncoder
+                + ", " + mOutbound
+                + "}";
+    }
+
+    /**
+     * Tells {@link #mController} how the uplink coped with the last stream, if there was one,
+     * and whether the network is metered.
+     */
+    private void observeUplink() {
+        if (mUplink != null) {
+            mController.setMetered(mUplink.isMetered());
+        }
+        final UpstreamEncoder encoder = mEncoder;
+        if (encoder.getInputBytes() == 0) {
+            return;
+        }
+        mController.onUtterance(encoder.getAudioMillis(), encoder.getOutputBytes(),
+                mOutbound.getNotReadyMillis(), mOutbound.getOverloads(),
+                mUplink == null ? 0 : mUplink.getPingMillis());
+    }
+
+    /**
+     * Sends a message of audio on the current stream, if there is one.
+     */
+    private void sendAudio(byte[] data, int size) {
+        final int utterance;
+        synchronized (mRequestLock) {
+            if (mRequestObserver == null) {
+                return;
+            }
+            if (!mResponseObserver.mSent) {
+                mResponseObserver.mSent = true;
+                UtteranceTracer.get().span(UtteranceTracer.Stage.FIRST_SEND,
+                        mResponseObserver.mUtterance, mResponseObserver.mStartedNanos);
+            }
+            // Call the streaming recognition API
+            if (mOutbound.send(data, size)) {
+                return;
+            }
+            // The uplink cannot keep up; the queue closes the stream once it has caught up.
+            mRequestObserver = null;
+            utterance = mResponseObserver.mUtterance;
+        }
+        mListener.stopVoiceRecorder(utterance);
+    }
+
+    /**
+     * Half-closes the stream of {@code responseObserver} if it is still the current one, so that
+     * no more audio is uploaded for it.
+     *
+     * @return {@code true} if the stream was still open.
+     */
+    private boolean halfClose(ResponseObserver responseObserver) {
+        synchronized (mRequestLock) {
+            if (mRequestObserver == null
+                    || mRequestObserver != responseObserver.mRequests) {
+                return false;
+            }
+            // Whatever audio is still waiting is of no use any more.
+            mOutbound.complete(false);
+            mRequestObserver = null;
+            return true;
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code responseObserver} receives the responses of the stream
+     * started last.
+     */
+    private boolean isCurrent(ResponseObserver responseObserver) {
+        synchronized (mRequestLock) {
+            return responseObserver == mResponseObserver;
+        }
+    }
+
+    private static String getDefaultLanguageCode() {
+        final Locale locale = Locale.getDefault();
+        final StringBuilder language = new StringBuilder(locale.getLanguage());
+        final String country = locale.getCountry();
+        if (!country.isEmpty()) {
+            language.append("-");
+            language.append(country);
+        }
+        return language.toString();
+    }
+
+    /**
+     * Receives the responses of one stream.
+     */
+    private class ResponseObserver implements StreamObserver<StreamingRecognizeResponse> {
+
+        /** The requests of the same stream. */
+        volatile StreamObserver<StreamingRecognizeRequest> mRequests;
+
+        /** When the stream started, i.e. at the onset of voice. */
+        final long mStartedNanos = System.nanoTime();
+
+        /** The utterance of the stream in the {@link UtteranceTracer}. */
+        final int mUtterance;
+
+        /** Whether any audio was sent on the stream yet; guarded by {@link #mRequestLock}. */
+        boolean mSent;
+
+        private boolean mResponded;
+
+        private boolean mHadInterim;
+
+        private boolean mHadFinal;
+
+        ResponseObserver(int utterance) {
+            mUtterance = utterance;
+        }
+
+        /**
+         * Called the first time the call is ready for audio.
+         */
+        void onOpen() {
+            PipelineMetrics.STREAM_OPEN.recordSince(mStartedNanos);
+            UtteranceTracer.get().span(UtteranceTracer.Stage.STREAM_OPEN, mUtterance,
+                    mStartedNanos);
+        }
+
+        @Override
+        public void onNext(StreamingRecognizeResponse response) {
+            if (!mResponded) {
+                mResponded = true;
+                UtteranceTracer.get().span(UtteranceTracer.Stage.FIRST_RESPONSE, mUtterance,
+                        mStartedNanos);
+            }
+            switch (response.getEndpointerType()) {
+                case END_OF_SPEECH:
+                case END_OF_AUDIO:
+                case END_OF_UTTERANCE:
+                    // The server has heard enough; stop uploading and let the recorder move on
+                    // to the next utterance instead of waiting out its own timeout.
+                    if (halfClose(this)) {
+                        mListener.stopVoiceRecorder(mUtterance);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            String text = null;
+            boolean isFinal = false;
+            if (response.getResultsCount() > 0) {
+                final StreamingRecognitionResult result = response.getResults(0);
+                isFinal = result.getIsFinal();
+                if (result.getAlternativesCount() > 0) {
+                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
+                    text = alternative.getTranscript();
+                }
+            }
+            if (text != null) {
+                if (isFinal && !mHadFinal) {
+                    mHadFinal = true;
+                    PipelineMetrics.FINAL_RESULT.recordSince(mStartedNanos);
+                    UtteranceTracer.get().span(UtteranceTracer.Stage.FINAL_RESULT, mUtterance,
+                            mStartedNanos);
+                } else if (!isFinal && !mHadInterim) {
+                    mHadInterim = true;
+                    PipelineMetrics.FIRST_INTERIM.recordSince(mStartedNanos);
+                }
+                mListener.onSpeechRecognized(text, isFinal, mUtterance);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            PipelineMetrics.STREAM_ERRORS.increment();
+            mListener.onStreamEnded(mUtterance, t);
+        }
+
+        @Override
+        public void onCompleted() {
+            mListener.onStreamEnded(mUtterance, null);
+            // A late completion of an earlier stream must not end the utterance under way.
+            if (isCurrent(this)) {
+                mListener.stopVoiceRecorder(mUtterance);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1beta1.RecognitionConfig;
+import com.google.cloud.speech.v1beta1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1beta1.StreamingRecognizeRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Builds the {@link StreamingRecognizeRequest}s that {@link ApiFragment} sends to the API.
+ */
+final class StreamingRequests {
+
+    private StreamingRequests() {
+    }
+
+    /**
+     * Builds the first request of a stream of LINEAR16 audio, which carries the configuration.
+     *
+     * @param languageCode The BCP-47 language code of the speech.
+     * @param sampleRate   The sample rate of the LINEAR16 audio.
+     */
+    static StreamingRecognizeRequest config(String languageCode, int sampleRate) {
+        return config(languageCode, sampleRate, UpstreamEncoding.LINEAR16);
+    }
+
+    /**
+     * Builds the first request of a stream, which carries the configuration.
+     *
+     * @param languageCode The BCP-47 language code of the speech.
+     * @param sampleRate   The sample rate of the audio.
+     * @param encoding     How the audio on the stream is encoded.
+     */
+    static StreamingRecognizeRequest config(String languageCode, int sampleRate,
+            UpstreamEncoding encoding) {
+        return StreamingRecognizeRequest.newBuilder()
+                .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
+                        .setConfig(RecognitionConfig.newBuilder()
+                                .setLanguageCode(languageCode)
+                                .setEncoding(encoding.getApiEncoding())
+                                .setSampleRate(sampleRate)
+                                .build())
+                        .setInterimResults(true)
+                        .setSingleUtterance(true)
+                        .build())
+                .build();
+    }
+
+    /**
+     * Builds a request carrying a copy of a chunk of audio.
+     *
+     * @param data The audio data.
+     * @param size The number of elements that are actually relevant in the {@code data}.
+     */
+    static StreamingRecognizeRequest audio(byte[] data, int size) {
+        return StreamingRecognizeRequest.newBuilder()
+                .setAudioContent(ByteString.copyFrom(data, 0, size))
+                .build();
+    }
+
+    /**
+     * Builds a request carrying a chunk of audio without copying it. The request shares
+     * {@code data}, so {@code data} must not change until the request has been serialized.
+     *
+     * @param data The audio data.
+     * @param size The number of elements that are actually relevant in the {@code data}.
+     */
+    static StreamingRecognizeRequest wrapAudio(byte[] data, int size) {
+        return StreamingRecognizeRequest.newBuilder()
+                .setAudioContent(UnsafeByteOperations.unsafeWrap(ByteBuffer.wrap(data, 0, size)))
+                .build();
+    }
+
+    /**
+     * Builds requests carrying chunks of audio without copying them, like
+     * {@link #wrapAudio(byte[], int)}, but reuses what a request does not keep: the builder, and
+     * the {@link ByteBuffer} over each array of audio, which {@link UnsafeByteOperations} only
+     * reads the array and bounds of. What is left to allocate for each request is what it does
+     * keep until it is serialized: the request itself and the {@link ByteString} over its audio,
+     * 72 bytes together on a 64-bit JVM. Not thread safe.
+     */
+    static final class AudioRequests {
+
+        private final StreamingRecognizeRequest.Builder mBuilder
+                = StreamingRecognizeRequest.newBuilder();
+
+        /** Wraps the array passed last to {@link #wrap(byte[], int)}. */
+        private ByteBuffer mBuffer = ByteBuffer.allocate(0);
+
+        /**
+         * @param data The audio data; shared with the request, see
+         *             {@link #wrapAudio(byte[], int)}.
+         * @param size The number of elements that are actually relevant in the {@code data}.
+         */
+        StreamingRecognizeRequest wrap(byte[] data, int size) {
+            if (mBuffer.array() != data) {
+                mBuffer = ByteBuffer.wrap(data);
+            }
+            return wrap(mBuffer, size);
+        }
+
+        /**
+         * @param audio A buffer over an array of audio data, which is shared with the request;
+         *              its position and limit are overwritten.
+         * @param size  The number of bytes that are actually relevant from the start of the
+         *              array.
+         */
+        StreamingRecognizeRequest wrap(ByteBuffer audio, int size) {
+            audio.clear();
+            audio.limit(size);
+            final StreamingRecognizeRequest request = mBuilder
+                    .setAudioContent(UnsafeByteOperations.unsafeWrap(audio))
+                    .build();
+            // Not to hold on to the audio.
+            mBuilder.clearAudioContent();
+            return request;
+        }
+
+    }
+
+}
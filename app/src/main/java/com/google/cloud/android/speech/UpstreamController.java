@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+
+/**
+ * Picks how the audio of each new stream is sent, from how the uplink coped with the last ones.
+ *
+ * <p>After every utterance it is told the upload throughput, how long the call kept audio
+ * waiting because it was not ready, whether the outbound queue overflowed, and the round trip
+ * time. A congested utterance steps the {@link Level} down right away; stepping back up takes
+ * several clean utterances in a row. Between the two thresholds nothing changes, so the level
+ * does not flap on a link that is just good enough.</p>
+ *
+ * <p>A clean link only shows that the current level fits, not whether the next one would, so
+ * stepping up is a probe. If the utterance after it is congested, the probe failed, and the
+ * next one waits for twice as many clean utterances.</p>
+ *
+ * <p>On a metered network the level stays at {@link Level#COMPRESSED} or below whatever the
+ * link could take, as every byte costs. Thread safe.</p>
+ */
+class UpstreamController {
+
+    /**
+     * How the audio is sent, from the most to the least bandwidth.
+     */
+    enum Level {
+
+        /** LINEAR16 at the capture rate. */
+        FULL(UpstreamEncoding.LINEAR16, false),
+
+        /** FLAC at the capture rate; lossless, about half the bandwidth. */
+        COMPRESSED(UpstreamEncoding.FLAC, false),
+
+        /** FLAC at half the capture rate, down to 8 kHz; about a quarter of the bandwidth. */
+        REDUCED(UpstreamEncoding.FLAC, true);
+
+        private final UpstreamEncoding mEncoding;
+
+        private final boolean mHalfRate;
+
+        Level(UpstreamEncoding encoding, boolean halfRate) {
+            mEncoding = encoding;
+            mHalfRate = halfRate;
+        }
+
+        UpstreamEncoding getEncoding() {
+            return mEncoding;
+        }
+
+        /**
+         * @return The sample rate to send audio captured at {@code captureRate} at.
+         */
+        int getSampleRate(int captureRate) {
+            return mHalfRate && captureRate / 2 >= MIN_SAMPLE_RATE ? captureRate / 2 : captureRate;
+        }
+
+    }
+
+    /** The API needs at least this sample rate. */
+    static final int MIN_SAMPLE_RATE = 8000;
+
+    /** Utterances shorter than this say too little about the link, unless they overflowed. */
+    private static final long MIN_AUDIO_MILLIS = 500;
+
+    /** The share of an utterance that the call may keep audio waiting before it is congested. */
+    private static final double CONGESTED_STALL = 0.1;
+
+    /** The share of an utterance that the call may keep audio waiting and still be clean. */
+    private static final double CLEAN_STALL = 0.01;
+
+    private static final long CONGESTED_RTT_MILLIS = 1000;
+
+    private static final long CLEAN_RTT_MILLIS = 300;
+
+    /** The clean utterances in a row that step the level up, at first. */
+    private static final int CLEAN_TO_UPGRADE = 3;
+
+    /** The clean utterances in a row that step the level up, after many failed probes. */
+    private static final int MAX_CLEAN_TO_UPGRADE = 24;
+
+    /** The weight of the last utterance in the averages. */
+    private static final double SMOOTHING = 0.3;
+
+    private Level mLevel;
+
+    private boolean mMetered;
+
+    private int mCleanStreak;
+
+    private int mCleanToUpgrade = CLEAN_TO_UPGRADE;
+
+    /** Whether the level was just stepped up, and the next utterance tells if it fits. */
+    private boolean mProbing;
+
+    private volatile double mThroughputKbps;
+
+    private volatile double mStall;
+
+    private volatile long mRttMillis;
+
+    private volatile long mUpgrades;
+
+    private volatile long mDowngrades;
+
+    /**
+     * @param initial The level of the first stream.
+     */
+    UpstreamController(Level initial) {
+        mLevel = initial;
+    }
+
+    /**
+     * @return The level to send the next stream at.
+     */
+    synchronized Level getLevel() {
+        if (mMetered && mLevel == Level.FULL) {
+            return Level.COMPRESSED;
+        }
+        return mLevel;
+    }
+
+    /**
+     * Sets whether the current network is metered.
+     */
+    synchronized void setMetered(boolean metered) {
+        mMetered = metered;
+    }
+
+    /**
+     * Takes note of how the uplink coped with an utterance, and adapts the level.
+     *
+     * @param audioMillis    The duration of the audio that was sent.
+     * @param sentBytes      The bytes of encoded audio that were sent.
+     * @param notReadyMillis How long the call kept audio waiting because it was not ready.
+     * @param overloads      How often the outbound queue overflowed.
+     * @param rttMillis      The latest round trip time to the API, or 0 if unknown.
+     */
+    synchronized void onUtterance(long audioMillis, long sentBytes, long notReadyMillis,
+            long overloads, long rttMillis) {
+        if (audioMillis < MIN_AUDIO_MILLIS && overloads == 0) {
+            return;
+        }
+        final double stall = audioMillis > 0 ? (double) notReadyMillis / audioMillis : 1;
+        // While the call keeps audio waiting, the audio goes out only as fast as the link takes it.
+        final long elapsedMillis = audioMillis + notReadyMillis;
+        if (elapsedMillis > 0) {
+            final double throughput = sentBytes * 8.0 / elapsedMillis;
+            mThroughputKbps = mThroughputKbps == 0 ? throughput
+                    : mThroughputKbps + SMOOTHING * (throughput - mThroughputKbps);
+        }
+        mStall = mStall + SMOOTHING * (stall - mStall);
+        if (rttMillis > 0) {
+            mRttMillis = rttMillis;
+        }
+        final boolean congested = overloads > 0 || stall > CONGESTED_STALL
+                || rttMillis > CONGESTED_RTT_MILLIS;
+        final boolean clean = overloads == 0 && stall < CLEAN_STALL
+                && rttMillis < CLEAN_RTT_MILLIS;
+        if (mProbing) {
+            mProbing = false;
+            mCleanToUpgrade = congested ? Math.min(mCleanToUpgrade * 2, MAX_CLEAN_TO_UPGRADE)
+                    : CLEAN_TO_UPGRADE;
+        }
+        if (congested) {
+            mCleanStreak = 0;
+            // Below what the metered cap already enforces.
+            final Level current = getLevel();
+            if (current.ordinal() < Level.values().length - 1) {
+                mLevel = Level.values()[current.ordinal() + 1];
+                mDowngrades++;
+            }
+        } else if (clean) {
+            mCleanStreak++;
+            final Level top = mMetered ? Level.COMPRESSED : Level.FULL;
+            if (mCleanStreak >= mCleanToUpgrade && mLevel.ordinal() > top.ordinal()) {
+                mLevel = Level.values()[mLevel.ordinal() - 1];
+                mCleanStreak = 0;
+                mProbing = true;
+                mUpgrades++;
+            }
+        } else {
+            mCleanStreak = 0;
+        }
+    }
+
+    /**
+     * @return The average upload throughput over the recent utterances, in kbit/s.
+     */
+    double getThroughputKbps() {
+        return mThroughputKbps;
+    }
+
+    /**
+     * @return The average share of the recent utterances that the call kept audio waiting.
+     */
+    double getStall() {
+        return mStall;
+    }
+
+    @Override
+    public String toString() {
+        return "UpstreamController{level=" + getLevel()
+                + ", throughputKbps=" + Math.round(mThroughputKbps)
+                + ", stall=" + Math.round(mStall * 100) / 100.0
+                + ", rttMillis=" + mRttMillis
+                + ", upgrades=" + mUpgrades
+                + ", downgrades=" + mDowngrades
+                + "}";
+    }
+
+}
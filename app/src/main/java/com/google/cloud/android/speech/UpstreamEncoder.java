@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Encodes chunks of LINEAR16 audio for the API in one of the {@link UpstreamEncoding}s, and
+ * keeps count of how much goes over the network per utterance.
+ *
+ * <p>Sits between the {@link ChunkCoalescer} and the stream, so each chunk is encoded into one
+ * message. Thread safe; the {@link ChunkCoalescer.Sink} is called with the encoder locked.</p>
+ */
+abstract class UpstreamEncoder implements ChunkCoalescer.Sink {
+
+    private final UpstreamEncoding mEncoding;
+
+    private final ChunkCoalescer.Sink mSink;
+
+    private int mSampleRate;
+
+    private volatile long mStartedNanos;
+
+    private volatile long mInputBytes;
+
+    private volatile long mOutputBytes;
+
+    private volatile long mMessages;
+
+    /**
+     * @param encoding The encoding to use.
+     * @param sink     Where the encoded chunks go.
+     */
+    static UpstreamEncoder create(UpstreamEncoding encoding, ChunkCoalescer.Sink sink) {
+        switch (encoding) {
+            case FLAC:
+                return new FlacEncoder(sink);
+            case MULAW:
+                return new MulawEncoder(sink);
+            default:
+                return new Linear16Encoder(sink);
+        }
+    }
+
+    UpstreamEncoder(UpstreamEncoding encoding, ChunkCoalescer.Sink sink) {
+        mEncoding = encoding;
+        mSink = sink;
+    }
+
+    UpstreamEncoding getEncoding() {
+        return mEncoding;
+    }
+
+    /**
+     * Starts a new stream: the next chunk is the first of an utterance, and counting starts anew.
+     *
+     * @param sampleRate The sample rate of the 16-bit mono audio to come.
+     */
+    synchronized void start(int sampleRate) {
+        mSampleRate = sampleRate;
+        mInputBytes = 0;
+        mOutputBytes = 0;
+        mMessages = 0;
+        mStartedNanos = System.nanoTime();
+        onStart(sampleRate);
+    }
+
+    /**
+     * Encodes a chunk of LINEAR16 audio and sends it on.
+     *
+     * @param data The audio data. Only read during the call.
+     * @param size The size of the actual data in {@code data}.
+     */
+    @Override
+    public synchronized void send(byte[] data, int size) {
+        mInputBytes += size;
+        encode(data, size);
+    }
+
+    /**
+     * @return The LINEAR16 bytes encoded since {@link #start(int)}.
+     */
+    long getInputBytes() {
+        return mInputBytes;
+    }
+
+    /**
+     * @return The duration of the audio encoded since {@link #start(int)}, in milliseconds.
+     */
+    long getAudioMillis() {
+        final int sampleRate = mSampleRate;
+        return sampleRate > 0 ? mInputBytes * 1000 / 2 / sampleRate : 0;
+    }
+
+    /**
+     * @return The encoded bytes sent since {@link #start(int)}.
+     */
+    long getOutputBytes() {
+        return mOutputBytes;
+    }
+
+    /**
+     * @return The encoded size relative to LINEAR16 since {@link #start(int)}, e.g. 0.5 for half.
+     */
+    double getCompressionRatio() {
+        final long input = mInputBytes;
+        return input > 0 ? (double) mOutputBytes / input : 1;
+    }
+
+    /**
+     * @return The upstream bit rate of the audio since {@link #start(int)}, in kbit/s of audio
+     * time.
+     */
+    double getKilobitsPerSecond() {
+        final long millis = getAudioMillis();
+        return millis > 0 ? mOutputBytes * 8.0 / millis : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "UpstreamEncoder{encoding=" + mEncoding
+                + ", messages=" + mMessages
+                + ", inputBytes=" + mInputBytes
+                + ", outputBytes=" + mOutputBytes
+                + ", ratio=" + Math.round(getCompressionRatio() * 100) / 100.0
+                + ", kbps=" + Math.round(getKilobitsPerSecond())
+                + ", elapsedMillis="
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartedNanos)
+                + "}";
+    }
+
+    /**
+     * Called with the encoder locked when a new stream starts.
+     */
+    void onStart(int sampleRate) {
+    }
+
+    /**
+     * Encodes a chunk, and passes the result to {@link #emit(byte[], int)}. Called with the
+     * encoder locked.
+     *
+     * @param data An even number of bytes of LINEAR16 audio. Only read during the call.
+     * @param size The size of the actual data in {@code data}.
+     */
+    abstract void encode(byte[] data, int size);
+
+    /**
+     * Sends an encoded chunk on.
+     *
+     * @param data The encoded data. Not modified until the call returns.
+     * @param size The size of the actual data in {@code data}.
+     */
+    final void emit(byte[] data, int size) {
+        mOutputBytes += size;
+        mMessages++;
+        mSink.send(data, size);
+    }
+
+    /**
+     * Sends the audio as it is, without a copy.
+     */
+    private static class Linear16Encoder extends UpstreamEncoder {
+
+        Linear16Encoder(ChunkCoalescer.Sink sink) {
+            super(UpstreamEncoding.LINEAR16, sink);
+        }
+
+        @Override
+        void encode(byte[] data, int size) {
+            emit(data, size);
+        }
+
+    }
+
+    /**
+     * Compands each sample to 8 bits as in G.711.
+     */
+    private static class MulawEncoder extends UpstreamEncoder {
+
+        private static final int BIAS = 0x84;
+
+        private static final int CLIP = 32635;
+
+        private byte[] mBuffer = new byte[0];
+
+        MulawEncoder(ChunkCoalescer.Sink sink) {
+            super(UpstreamEncoding.MULAW, sink);
+        }
+
+        @Override
+        void encode(byte[] data, int size) {
+            final int samples = size / 2;
+            if (mBuffer.length < samples) {
+                mBuffer = new byte[samples];
+            }
+            for (int i = 0; i < samples; i++) {
+                mBuffer[i] = compand((data[2 * i] & 0xFF) | (data[2 * i + 1] << 8));
+            }
+            emit(mBuffer, samples);
+        }
+
+        static byte compand(int sample) {
+            final int sign = (sample >> 8) & 0x80;
+            if (sign != 0) {
+                sample = -sample;
+            }
+            if (sample > CLIP) {
+                sample = CLIP;
+            }
+            sample += BIAS;
+            int exponent = 7;
+            for (int mask = 0x4000; (sample & mask) == 0 && exponent > 0; mask >>= 1) {
+                exponent--;
+            }
+            final int mantissa = (sample >> (exponent + 3)) & 0x0F;
+            return (byte) ~(sign | (exponent << 4) | mantissa);
+        }
+
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1beta1.RecognitionConfig;
+
+
+/**
+ * How the audio is encoded on its way to the API.
+ *
+ * <p>Only FLAC, MULAW and the AMR codecs compress in this version of the API; Opus is not
+ * accepted yet. AMR needs a native encoder, so it is not offered.</p>
+ */
+public enum UpstreamEncoding {
+
+    /** Raw 16-bit PCM: 256 kbit/s at 16 kHz, sent without a copy. */
+    LINEAR16(RecognitionConfig.AudioEncoding.LINEAR16),
+
+    /**
+     * Lossless; typically about half of LINEAR16 for speech, and much less in pauses. Costs some
+     * CPU on the audio thread.
+     */
+    FLAC(RecognitionConfig.AudioEncoding.FLAC),
+
+    /** G.711 mu-law: 8 bits a sample, half of LINEAR16 and almost free to encode. Lossy. */
+    MULAW(RecognitionConfig.AudioEncoding.MULAW);
+
+    private final RecognitionConfig.AudioEncoding mApiEncoding;
+
+    UpstreamEncoding(RecognitionConfig.AudioEncoding apiEncoding) {
+        mApiEncoding = apiEncoding;
+    }
+
+    /**
+     * @return The encoding to declare in the {@link RecognitionConfig} of a stream.
+     */
+    RecognitionConfig.AudioEncoding getApiEncoding() {
+        return mApiEncoding;
+    }
+
+}
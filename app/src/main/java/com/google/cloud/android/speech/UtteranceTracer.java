@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.cloud.android.speech;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+
+/**
+ * Records when each stage of each utterance happened, so that a slow utterance can be taken
+ * apart offline, which the aggregate {@link PipelineMetrics} cannot do.
+ *
+ * <p>Events are stamped with {@link System#nanoTime()} and kept in a ring of fixed size that
+ * overwrites the oldest events; recording one copies a few numbers and never allocates.
+ * {@link #writeChromeTrace(Writer)} exports what the ring holds in the Chrome trace-event format,
+ * to be opened in {@code chrome://tracing} or Perfetto. Every utterance shows as a process of
+ * its own, with one row for each thread the stages run on. Thread safe.</p>
+ */
+class UtteranceTracer {
+
+    /** Holds about the last 100 utterances. */
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private static final UtteranceTracer sInstance = new UtteranceTracer(DEFAULT_CAPACITY);
+
+    /**
+     * The thread a {@link Stage} happens on; a row of the exported trace.
+     */
+    enum Lane {
+        VOICE,
+        NETWORK,
+        ENCODER,
+    }
+
+    /**
+     * The stages of an utterance that are traced. A stage is either an instant, or a span that
+     * ends when it is recorded.
+     */
+    enum Stage {
+
+        /** Voice detected; starts the utterance. An instant. */
+        VOICE_ONSET("voice.onset", Lane.VOICE),
+
+        /** The end of the utterance. An instant. */
+        VOICE_END("voice.end", Lane.VOICE),
+
+        /** From the onset of voice to the end of the utterance. */
+        UTTERANCE("utterance", Lane.VOICE),
+
+        /** From starting the streaming call until it can take audio. */
+        STREAM_OPEN("stream.open", Lane.NETWORK),
+
+        /** From starting the streaming call until its first audio is sent. */
+        FIRST_SEND("stream.firstSend", Lane.NETWORK),
+
+        /** From starting the streaming call until its first response. */
+        FIRST_RESPONSE("stream.firstResponse", Lane.NETWORK),
+
+        /** From starting the streaming call until its final result. */
+        FINAL_RESULT("stream.finalResult", Lane.NETWORK),
+
+        /** Finishing the Opus file of the utterance. */
+        FILE_FINALIZE("opus.finalize", Lane.ENCODER);
+
+        final String mName;
+
+        final Lane mLane;
+
+        Stage(String name, Lane lane) {
+            mName = name;
+            mLane = lane;
+        }
+
+    }
+
+    private final Object mLock = new Object();
+
+    private final int mCapacity;
+
+    private final byte[] mStages;
+
+    private final int[] mUtterances;
+
+    private final long[] mStartNanos;
+
+    /** The duration of each span, or -1 for an instant. */
+    private final long[] mDurationNanos;
+
+    /** The number of events recorded so far; the next one goes to this modulo the capacity. */
+    private long mCount;
+
+    /** The number of the utterance started last; guarded by {@link #mLock}. */
+    private int mUtterance;
+
+    /**
+     * @param capacity The number of events kept.
+     */
+    UtteranceTracer(int capacity) {
+        mCapacity = capacity;
+        mStages = new byte[capacity];
+        mUtterances = new int[capacity];
+        mStartNanos = new long[capacity];
+        mDurationNanos = new long[capacity];
+    }
+
+    /**
+     * @return The tracer of the process.
+     */
+    static UtteranceTracer get() {
+        return sInstance;
+    }
+
+    /**
+     * Starts a new utterance, and records its {@link Stage#VOICE_ONSET}.
+     *
+     * @return The number of the new utterance.
+     */
+    int beginUtterance() {
+        final int utterance;
+        synchronized (mLock) {
+            utterance = ++mUtterance;
+        }
+        instant(Stage.VOICE_ONSET, utterance);
+        return utterance;
+    }
+
+    /**
+     * Records that {@code stage} of {@code utterance} happened now.
+     */
+    void instant(Stage stage, int utterance) {
+        add(stage, utterance, System.nanoTime(), -1);
+    }
+
+    /**
+     * Records that {@code stage} of {@code utterance} ran from {@code startNanos}, a value of
+     * {@link System#nanoTime()}, until now.
+     */
+    void span(Stage stage, int utterance, long startNanos) {
+        add(stage, utterance, startNanos, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Drops all the events recorded so far.
+     */
+    void clear() {
+        synchronized (mLock) {
+            mCount = 0;
+        }
+    }
+
+    /**
+     * Writes the events in the ring as a Chrome trace-event JSON object, oldest first. Times are
+     * in microseconds from the oldest event.
+     */
+    void writeChromeTrace(Writer writer) throws IOException {
+        final int size;
+        final byte[] stages = new byte[mCapacity];
+        final int[] utterances = new int[mCapacity];
+        final long[] starts = new long[mCapacity];
+        final long[] durations = new long[mCapacity];
+        synchronized (mLock) {
+            // Copied out in order, so that the lock is not held while writing.
+            size = (int) Math.min(mCount, mCapacity);
+            final long first = mCount - size;
+            for (int i = 0; i < size; i++) {
+                final int index = (int) ((first + i) % mCapacity);
+                stages[i] = mStages[index];
+                utterances[i] = mUtterances[index];
+                starts[i] = mStartNanos[index];
+                durations[i] = mDurationNanos[index];
+            }
+        }
+        long origin = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            origin = Math.min(origin, starts[i]);
+        }
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        final Stage[] all = Stage.values();
+        int lastUtterance = -1;
+        boolean first = true;
+        for (int i = 0; i < size; i++) {
+            final Stage stage = all[stages[i]];
+            final int utterance = utterances[i];
+            if (utterance != lastUtterance) {
+                // Names the process and the rows of an utterance; repeats are harmless.
+                lastUtterance = utterance;
+                first = writeMetadata(writer, first, utterance);
+            }
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("{\"name\":\"" + stage.mName + "\",\"pid\":" + utterance
+                    + ",\"tid\":" + stage.mLane.ordinal()
+                    + ",\"ts\":" + micros(starts[i] - origin));
+            if (durations[i] < 0) {
+                writer.write(",\"ph\":\"i\",\"s\":\"t\"}");
+            } else {
+                writer.write(",\"ph\":\"X\",\"dur\":" + micros(durations[i]) + "}");
+            }
+        }
+        writer.write("\n]}\n");
+    }
+
+    private void add(Stage stage, int utterance, long startNanos, long durationNanos) {
+        synchronized (mLock) {
+            final int index = (int) (mCount % mCapacity);
+            mStages[index] = (byte) stage.ordinal();
+            mUtterances[index] = utterance;
+            mStartNanos[index] = startNanos;
+            mDurationNanos[index] = durationNanos;
+            mCount++;
+        }
+    }
+
+    private static boolean writeMetadata(Writer writer, boolean first, int utterance)
+            throws IOException {
+        writer.write(first ? "\n" : ",\n");
+        writer.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + utterance
+                + ",\"args\":{\"name\":\"utterance " + utterance + "\"}}");
+        for (Lane lane : Lane.values()) {
+            writer.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + utterance
+                    + ",\"tid\":" + lane.ordinal()
+                    + ",\"args\":{\"name\":\"" + lane.name().toLowerCase(Locale.US) + "\"}}");
+        }
+        return false;
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1000.0);
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Decides whether LINEAR16 audio contains voice from its short-term energy.
+ *
+ * <p>The audio is cut into 10 millisecond frames, carried over from one call to the next, and
+ * the RMS level of each frame is compared with an adaptive noise floor. Voice starts once
+ * {@link #ONSET_FRAMES} frames in a row are well above the floor, and ends only after
+ * {@link #HANGOVER_FRAMES} frames in a row are back near it, so a single click or a short pause
+ * does not flip the decision. The floor follows quiet frames down quickly. It rises towards the
+ * quietest frame of the last one and a half to two seconds, which even continuous speech dips
+ * down to between words, so a new steady background noise stops counting as voice within a
+ * couple of seconds. A level below the minimum RMS never counts as voice.</p>
+ *
+ * <p>Call {@link #reset(int)} before the first buffer of a stream. Not thread safe.</p>
+ */
+class VoiceDetector {
+
+    private static final int FRAME_MILLIS = 10;
+
+    /** A frame counts as loud above this multiple of the noise floor (about 10 dB). */
+    private static final float ONSET_RATIO = 3.16f;
+
+    /** A frame counts as quiet below this multiple of the noise floor (about 6 dB). */
+    private static final float RELEASE_RATIO = 2f;
+
+    /** Loud frames in a row that start voice. */
+    static final int ONSET_FRAMES = 3;
+
+    /** Quiet frames in a row that end voice. */
+    static final int HANGOVER_FRAMES = 20;
+
+    /** How fast the floor follows a quieter frame. */
+    private static final float FLOOR_FALL = 0.2f;
+
+    /** How fast the floor rises towards the recent minimum. */
+    private static final float FLOOR_RISE = 0.05f;
+
+    /** The recent minimum is kept per block of this many frames. */
+    private static final int MINIMUM_BLOCK_FRAMES = 50;
+
+    private final int mMinRms;
+
+    private int mFrameLength;
+
+    /** Sum of squares and number of samples of the frame in progress. */
+    private long mEnergy;
+    private int mCount;
+
+    private float mFloor;
+
+    private boolean mVoice;
+
+    private int mLoudFrames;
+
+    private int mQuietFrames;
+
+    /** The quietest frame of each of the last few blocks, and of the current block. */
+    private final float[] mBlockMinimums = new float[3];
+    private float mBlockMinimum;
+    private int mBlockFrames;
+
+    /**
+     * @param minRms The RMS level below which a frame never counts as voice.
+     */
+    VoiceDetector(int minRms) {
+        mMinRms = minRms;
+        reset(16000);
+    }
+
+    /**
+     * Forgets everything heard so far.
+     *
+     * @param sampleRate The sample rate of the audio to come.
+     */
+    void reset(int sampleRate) {
+        mFrameLength = Math.max(sampleRate * FRAME_MILLIS / 1000, 1);
+        mEnergy = 0;
+        mCount = 0;
+        // Assume a quiet room; a noisy one lifts the floor within a couple of seconds.
+        mFloor = mMinRms;
+        mVoice = false;
+        mLoudFrames = 0;
+        mQuietFrames = 0;
+        Arrays.fill(mBlockMinimums, Float.MAX_VALUE);
+        mBlockMinimum = Float.MAX_VALUE;
+        mBlockFrames = 0;
+    }
+
+    /**
+     * @param samples The audio, e.g. a view of the capture ring. Read with absolute gets only.
+     * @param offset  The index of the first sample in {@code samples}.
+     * @param count   The number of samples.
+     * @return {@code true} if there was voice anywhere in the samples.
+     */
+    boolean isHearingVoice(ShortBuffer samples, int offset, int count) {
+        boolean heard = mVoice;
+        final int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            final int sample = samples.get(i);
+            mEnergy += sample * sample;
+            if (++mCount == mFrameLength) {
+                heard |= frame();
+            }
+        }
+        return heard;
+    }
+
+    /**
+     * @param buffer The audio data in little endian LINEAR16.
+     * @param size   The number of bytes in {@code buffer} that are actually relevant.
+     * @return {@code true} if there was voice anywhere in the buffer.
+     */
+    boolean isHearingVoice(byte[] buffer, int size) {
+        boolean heard = mVoice;
+        for (int i = 0; i < size - 1; i += 2) {
+            final int sample = (short) ((buffer[i] & 0xff) | (buffer[i + 1] << 8));
+            mEnergy += sample * sample;
+            if (++mCount == mFrameLength) {
+                heard |= frame();
+            }
+        }
+        return heard;
+    }
+
+    /**
+     * @return The current noise floor as an RMS level.
+     */
+    float getNoiseFloor() {
+        return mFloor;
+    }
+
+    /**
+     * Decides on the frame that was just completed.
+     *
+     * @return Whether there is voice after the frame.
+     */
+    private boolean frame() {
+        final float rms = (float) Math.sqrt((double) mEnergy / mCount);
+        mEnergy = 0;
+        mCount = 0;
+        if (!mVoice) {
+            if (rms > mMinRms && rms > mFloor * ONSET_RATIO) {
+                if (++mLoudFrames >= ONSET_FRAMES) {
+                    mVoice = true;
+                    mQuietFrames = 0;
+                }
+            } else {
+                mLoudFrames = 0;
+            }
+        } else {
+            if (rms < mMinRms || rms < mFloor * RELEASE_RATIO) {
+                if (++mQuietFrames >= HANGOVER_FRAMES) {
+                    mVoice = false;
+                    mLoudFrames = 0;
+                }
+            } else {
+                mQuietFrames = 0;
+            }
+        }
+        final float minimum = recentMinimum(rms);
+        if (rms < mFloor) {
+            mFloor += (rms - mFloor) * FLOOR_FALL;
+        } else if (minimum > mFloor && minimum != Float.MAX_VALUE) {
+            mFloor += (minimum - mFloor) * FLOOR_RISE;
+        }
+        return mVoice;
+    }
+
+    /**
+     * Accounts for a frame at {@code rms}.
+     *
+     * @return The quietest frame level of the last few blocks, or {@link Float#MAX_VALUE} until
+     * they have been seen.
+     */
+    private float recentMinimum(float rms) {
+        mBlockMinimum = Math.min(mBlockMinimum, rms);
+        // Nothing until a whole block has been seen, so early speech cannot lift the floor.
+        float minimum = mBlockMinimums[mBlockMinimums.length - 1] == Float.MAX_VALUE
+                ? Float.MAX_VALUE : mBlockMinimum;
+        for (float blockMinimum : mBlockMinimums) {
+            minimum = Math.min(minimum, blockMinimum);
+        }
+        if (++mBlockFrames == MINIMUM_BLOCK_FRAMES) {
+            System.arraycopy(mBlockMinimums, 1, mBlockMinimums, 0, mBlockMinimums.length - 1);
+            mBlockMinimums[mBlockMinimums.length - 1] = mBlockMinimum;
+            mBlockMinimum = Float.MAX_VALUE;
+            mBlockFrames = 0;
+        }
+        return minimum;
+    }
+
+}
@@ -17,8 +17,6 @@
 package com.google.cloud.android.speech;
 
 import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.support.annotation.NonNull;
 
 
@@ -29,13 +27,18 @@ import android.support.annotation.NonNull;
  * <p>The recorded audio format is always {@link AudioFormat#ENCODING_PCM_16BIT} and
  * {@link AudioFormat#CHANNEL_IN_MONO}. This class will automatically pick the right sample rate
  * for the device. Use {@link #getSampleRate()} to get the selected value.</p>
+ *
+ * <p>Audio is read from the microphone unless another {@link PcmSource} is supplied, e.g. a
+ * {@link FilePcmSource} to replay recorded audio.</p>
  */
 public class VoiceRecorder {
 
-    private static final int[] SAMPLE_RATE_CANDIDATES = new int[]{16000, 11025, 22050, 44100};
+    /** The sample rate of the audio handed to the {@link Callback}. */
+    private static final int SAMPLE_RATE = 16000;
 
-    private static final int CHANNEL = AudioFormat.CHANNEL_IN_MONO;
-    private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+    /** Any of these is resampled to {@link #SAMPLE_RATE}; the first that the device takes wins. */
+    private static final int[] SAMPLE_RATE_CANDIDATES = new int[]{
+            16000, 48000, 44100, 22050, 11025};
 
     private static final int AMPLITUDE_THRESHOLD = 1500;
     private static final int SPEECH_TIMEOUT_MILLIS = 2000;
@@ -67,7 +70,7 @@ public class VoiceRecorder {
 
     private final Callback mCallback;
 
-    private AudioRecord mAudioRecord;
+    private final PcmSource mSource;
 
     private Thread mThread;
 
@@ -82,7 +85,17 @@ public class VoiceRecorder {
     private long mVoiceStartedMillis;
 
     public VoiceRecorder(@NonNull Callback callback) {
+        this(callback, new AudioRecordSource(SAMPLE_RATE_CANDIDATES, 0));
+    }
+
+    /**
+     * @param callback The callback to notify of voice events.
+     * @param source   The audio to record, e.g. a {@link FilePcmSource} to replay a recording. It
+     *                 is resampled to 16 kHz if it has another sample rate.
+     */
+    public VoiceRecorder(@NonNull Callback callback, @NonNull PcmSource source) {
         mCallback = callback;
+        mSource = new ResamplingPcmSource(source, SAMPLE_RATE);
     }
 
     /**
@@ -93,13 +106,11 @@ public class VoiceRecorder {
     public void start() {
         // Stop recording if it is currently ongoing.
         stop();
-        // Try to create a new recording session.
-        mAudioRecord = createAudioRecord();
-        if (mAudioRecord == null) {
+        // Try to create a new recording session and start recording.
+        if (!mSource.open()) {
             throw new RuntimeException("Cannot instantiate VoiceRecorder");
         }
-        // Start recording.
-        mAudioRecord.startRecording();
+        mBuffer = new byte[mSource.getBufferSize()];
         // Start processing the captured audio.
         mThread = new Thread(new ProcessVoice());
         mThread.start();
@@ -115,11 +126,7 @@ public class VoiceRecorder {
                 mThread.interrupt();
                 mThread = null;
             }
-            if (mAudioRecord != null) {
-                mAudioRecord.stop();
-                mAudioRecord.release();
-                mAudioRecord = null;
-            }
+            mSource.close();
             mBuffer = null;
         }
     }
@@ -140,34 +147,7 @@ public class VoiceRecorder {
      * @return The sample rate of recorded audio.
      */
     public int getSampleRate() {
-        if (mAudioRecord != null) {
-            return mAudioRecord.getSampleRate();
-        }
-        return 0;
-    }
-
-    /**
-     * Creates a new {@link AudioRecord}.
-     *
-     * @return A newly created {@link AudioRecord}, or null if it cannot be created (missing
-     * permissions?).
-     */
-    private AudioRecord createAudioRecord() {
-        for (int sampleRate : SAMPLE_RATE_CANDIDATES) {
-            final int sizeInBytes = AudioRecord.getMinBufferSize(sampleRate, CHANNEL, ENCODING);
-            if (sizeInBytes == AudioRecord.ERROR_BAD_VALUE) {
-                continue;
-            }
-            final AudioRecord audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
-                    sampleRate, CHANNEL, ENCODING, sizeInBytes);
-            if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
-                mBuffer = new byte[sizeInBytes];
-                return audioRecord;
-            } else {
-                audioRecord.release();
-            }
-        }
-        return null;
+        return mSource.getSampleRate();
     }
 
     /**
@@ -183,7 +163,14 @@ public class VoiceRecorder {
                     if (Thread.currentThread().isInterrupted()) {
                         break;
                     }
-                    final int size = mAudioRecord.read(mBuffer, 0, mBuffer.length);
+                    final int size = mSource.read(mBuffer, 0, mBuffer.length);
+                    if (size == PcmSource.END_OF_STREAM) {
+                        // A replayed recording has run out; close the utterance like a timeout.
+                        if (mLastVoiceHeardMillis != Long.MAX_VALUE) {
+                            end();
+                        }
+                        break;
+                    }
                     final long now = System.currentTimeMillis();
                     if (isHearingVoice(mBuffer, size)) {
                         if (mLastVoiceHeardMillis == Long.MAX_VALUE) {
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.longrunning.GetOperationRequest;
+import com.google.longrunning.Operation;
+import com.google.longrunning.OperationsGrpc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.internal.DnsNameResolverProvider;
+import io.grpc.okhttp.OkHttpChannelProvider;
+
+
+/**
+ * A long-lived channel to the API that is connected before the first call needs it, and kept
+ * connected while it is in use.
+ *
+ * <p>The OkHttp transport of this gRPC version neither connects eagerly nor sends HTTP/2
+ * keepalive pings, so both are done with calls: {@link #warmUp()} sends a cheap request to open
+ * the connection, including its TLS handshake and the first token exchange, and the same request
+ * is repeated every keepalive interval until the channel has gone unused for the idle timeout.
+ * After that the server may close the connection, and the next call connects again.</p>
+ *
+ * <p>The time to connect (name resolution and TCP) and the TLS handshake of the last connection,
+ * and the round trip of the last warm-up, are tracked.</p>
+ */
+class WarmChannel {
+
+    /** Any request will do; the server answers it without touching anything. */
+    private static final GetOperationRequest PING = GetOperationRequest.newBuilder()
+            .setName("warm-up")
+            .build();
+
+    private static final long PING_DEADLINE_MILLIS = 10 * 1000;
+
+    private final ManagedChannel mChannel;
+
+    private final Channel mTimedChannel;
+
+    private final ScheduledExecutorService mTimer;
+
+    private final long mKeepAliveMillis;
+
+    private final long mIdleTimeoutMillis;
+
+    private final Runnable mKeepAlive = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WarmChannel.this) {
+                mKeepAliveScheduled = false;
+                if (mChannel.isShutdown() || TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - mLastUsedNanos) > mIdleTimeoutMillis) {
+                    return;
+                }
+                ping();
+                scheduleKeepAlive();
+            }
+        }
+    };
+
+    private long mLastUsedNanos;
+
+    private boolean mKeepAliveScheduled;
+
+    /** When the first call that found no connection started, or 0. */
+    private volatile long mWaitingSinceNanos;
+
+    private volatile long mConnectNanos;
+
+    private volatile long mHandshakeNanos;
+
+    private volatile long mPingNanos;
+
+    private volatile long mConnections;
+
+    private volatile long mPings;
+
+    private volatile long mFailedPings;
+
+    /**
+     * @param host              The host of the API.
+     * @param port              The port of the API.
+     * @param credentials       Authenticates the calls; see
+     *                          {@link GoogleCredentialsInterceptor#setCredentials}.
+     * @param timer             Runs the keepalive.
+     * @param keepAliveMillis   The interval between keepalive requests.
+     * @param idleTimeoutMillis How long the connection is kept alive after the channel was last
+     *                          used.
+     */
+    WarmChannel(String host, int port, ClientInterceptor credentials,
+            ScheduledExecutorService timer, long keepAliveMillis, long idleTimeoutMillis) {
+        mChannel = new OkHttpChannelProvider()
+                .builderForAddress(host, port)
+                .nameResolverFactory(new DnsNameResolverProvider())
+                .sslSocketFactory(new TimingSocketFactory(
+                        (SSLSocketFactory) SSLSocketFactory.getDefault()))
+                .intercept(credentials)
+                .build();
+        mTimedChannel = ClientInterceptors.intercept(mChannel, new WaitTimer());
+        mTimer = timer;
+        mKeepAliveMillis = keepAliveMillis;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return The channel to make calls on.
+     */
+    Channel getChannel() {
+        return mTimedChannel;
+    }
+
+    /**
+     * Opens the connection now, and keeps it open for the idle timeout.
+     */
+    synchronized void warmUp() {
+        touch();
+        ping();
+    }
+
+    /**
+     * Notes that the channel is in use, so that its connection is kept open for another idle
+     * timeout.
+     */
+    synchronized void touch() {
+        mLastUsedNanos = System.nanoTime();
+        if (!mKeepAliveScheduled && !mChannel.isShutdown()) {
+            scheduleKeepAlive();
+        }
+    }
+
+    /**
+     * Shuts the channel down and waits for its calls to finish.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        mChannel.shutdown().awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @return The time from the first call that found no connection to the TCP connection of the
+     * last connection, in milliseconds.
+     */
+    long getConnectMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mConnectNanos);
+    }
+
+    /**
+     * @return The duration of the TLS handshake of the last connection, in milliseconds.
+     */
+    long getHandshakeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mHandshakeNanos);
+    }
+
+    /**
+     * @return The round trip of the last warm-up or keepalive request, in milliseconds.
+     */
+    long getPingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mPingNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "WarmChannel{connections=" + mConnections
+                + ", connectMillis=" + getConnectMillis()
+                + ", handshakeMillis=" + getHandshakeMillis()
+                + ", pings=" + mPings
+                + ", failedPings=" + mFailedPings
+                + ", pingMillis=" + getPingMillis()
+                + "}";
+    }
+
+    private void scheduleKeepAlive() {
+        mTimer.schedule(mKeepAlive, mKeepAliveMillis, TimeUnit.MILLISECONDS);
+        mKeepAliveScheduled = true;
+    }
+
+    private void ping() {
+        final long started = System.nanoTime();
+        final ClientCall<GetOperationRequest, Operation> call = mTimedChannel.newCall(
+                OperationsGrpc.METHOD_GET_OPERATION, CallOptions.DEFAULT.withDeadlineAfter(
+                        PING_DEADLINE_MILLIS, TimeUnit.MILLISECONDS));
+        call.start(new ClientCall.Listener<Operation>() {
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                // Any answer from the server means the connection is up; the operation does not
+                // exist, of course.
+                switch (status.getCode()) {
+                    case UNAVAILABLE:
+                    case DEADLINE_EXCEEDED:
+                        mFailedPings++;
+                        break;
+                    default:
+                        mPingNanos = System.nanoTime() - started;
+                        break;
+                }
+            }
+        }, new Metadata());
+        call.request(1);
+        call.sendMessage(PING);
+        call.halfClose();
+        mPings++;
+    }
+
+    /**
+     * Notes when calls start waiting for a connection, and when they stop.
+     */
+    private class WaitTimer implements ClientInterceptor {
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+                MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+            return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(
+                    next.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    if (mWaitingSinceNanos == 0) {
+                        mWaitingSinceNanos = System.nanoTime();
+                    }
+                    super.start(new ForwardingClientCallListener
+                            .SimpleForwardingClientCallListener<RespT>(responseListener) {
+                        @Override
+                        public void onHeaders(Metadata headers) {
+                            mWaitingSinceNanos = 0;
+                            super.onHeaders(headers);
+                        }
+
+                        @Override
+                        public void onClose(Status status, Metadata trailers) {
+                            mWaitingSinceNanos = 0;
+                            super.onClose(status, trailers);
+                        }
+                    }, headers);
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Times the TLS handshakes of the transport. The transport hands it the connected TCP socket,
+     * so the time up to then is the time to connect.
+     */
+    private class TimingSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory mDelegate;
+
+        TimingSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            final long connected = System.nanoTime();
+            final long waitingSince = mWaitingSinceNanos;
+            mConnectNanos = waitingSince != 0 ? connected - waitingSince : 0;
+            mConnections++;
+            return timed(mDelegate.createSocket(socket, host, port, autoClose), connected);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return mDelegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return mDelegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return mDelegate.createSocket(address, port, localAddress, localPort);
+        }
+
+        private Socket timed(Socket socket, final long started) {
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(
+                        new HandshakeCompletedListener() {
+                            @Override
+                            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                                mHandshakeNanos = System.nanoTime() - started;
+                            }
+                        });
+            }
+            return socket;
+        }
+
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A bounded pool of threads that the stages of many {@link CaptureSession}s share, instead of a
+ * thread each.
+ *
+ * <p>A stage is a {@link Work} that never blocks on its input. It is wrapped in a {@link Task},
+ * which is {@link Task#schedule() scheduled} whenever there is input, e.g. by the capture thread
+ * as it publishes a buffer. A task runs on one worker at a time, a turn of a few buffers at a time,
+ * and goes to the back of the queue if it has more to do, so that a session that is behind does
+ * not hold up the others. Neither scheduling nor a worker waiting for a turn allocates: the queue
+ * is a ring of tasks under a monitor, as the conditions of java.util.concurrent allocate a node
+ * every time a thread waits on them.</p>
+ *
+ * <p>At most {@code maxTasks} tasks may be unfinished at once; each is queued at most once, so
+ * the queue never overflows.</p>
+ */
+class WorkerPool {
+
+    /** The buffers a task processes in one turn. */
+    private static final int TURN = 8;
+
+    /** The pool whose worker the current thread is, if any. */
+    private static final ThreadLocal<WorkerPool> WORKER_OF = new ThreadLocal<>();
+
+    /**
+     * Something a {@link Task} does, in turns.
+     */
+    interface Work {
+
+        /**
+         * Does up to {@code max} units of what there is to do now, without waiting for more.
+         *
+         * @return {@code false} once the work is over for good.
+         */
+        boolean process(int max);
+
+        /**
+         * @return Whether {@link #process(int)} has something to do right now.
+         */
+        boolean isPending();
+
+    }
+
+    private final Thread[] mWorkers;
+
+    private final int mMaxTasks;
+
+    /** The queued tasks, in order from {@link #mHead}; guarded by itself. */
+    private final Task[] mQueue;
+
+    private int mHead;
+
+    private int mQueued;
+
+    /** The turns taken so far; guarded by {@link #mQueue}. */
+    private long mTurns;
+
+    /** Whether the workers stop once the queue is empty; guarded by {@link #mQueue}. */
+    private boolean mShutdown;
+
+    private final Object mLock = new Object();
+
+    /** The tasks not finished yet; guarded by {@link #mLock}. */
+    private int mTasks;
+
+    /**
+     * @param name     Names the workers, as {@code name-worker-N}. They are daemon threads.
+     * @param threads  The number of workers.
+     * @param maxTasks The number of tasks that may be unfinished at once.
+     */
+    WorkerPool(final String name, int threads, int maxTasks) {
+        this(threads, maxTasks, new ThreadFactory() {
+
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                        name + "-worker-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param threads  The number of workers.
+     * @param maxTasks The number of tasks that may be unfinished at once.
+     * @param factory  Creates the workers, e.g. to name them or set their priority.
+     */
+    WorkerPool(int threads, int maxTasks, final ThreadFactory factory) {
+        mMaxTasks = maxTasks;
+        mQueue = new Task[maxTasks];
+        mWorkers = new Thread[threads];
+        // All up front; then the capture threads never have to start one.
+        for (int i = 0; i < threads; i++) {
+            mWorkers[i] = factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    WORKER_OF.set(WorkerPool.this);
+                    work();
+                }
+            });
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * @return A new task for each of {@code works}, all or none. They do not run until they are
+     * first scheduled.
+     * @throws IllegalStateException If there is no room for that many more unfinished tasks.
+     */
+    Task[] newTasks(Work... works) {
+        synchronized (mLock) {
+            if (mTasks + works.length > mMaxTasks) {
+                throw new IllegalStateException("Too many tasks: " + mMaxTasks);
+            }
+            mTasks += works.length;
+        }
+        final Task[] tasks = new Task[works.length];
+        for (int i = 0; i < works.length; i++) {
+            tasks[i] = new Task(works[i]);
+        }
+        return tasks;
+    }
+
+    /**
+     * @return The number of tasks not finished yet.
+     */
+    int getTasks() {
+        synchronized (mLock) {
+            return mTasks;
+        }
+    }
+
+    /**
+     * Stops the workers once the queued turns are done.
+     */
+    void shutdown() {
+        synchronized (mQueue) {
+            mShutdown = true;
+            mQueue.notifyAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final int queued;
+        final long turns;
+        synchronized (mQueue) {
+            queued = mQueued;
+            turns = mTurns;
+        }
+        return "WorkerPool{threads=" + mWorkers.length
+                + ", tasks=" + getTasks()
+                + ", queued=" + queued
+                + ", turns=" + turns
+                + "}";
+    }
+
+    /**
+     * Queues a turn of {@code task}.
+     *
+     * @throws RejectedExecutionException If the pool is shut down.
+     */
+    private void execute(Task task) {
+        synchronized (mQueue) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("WorkerPool is shut down");
+            }
+            mQueue[(mHead + mQueued) % mQueue.length] = task;
+            mQueued++;
+            mQueue.notify();
+        }
+    }
+
+    /**
+     * Runs the queued turns on a worker, until the pool is shut down and nothing is queued.
+     */
+    private void work() {
+        while (true) {
+            final Task task;
+            synchronized (mQueue) {
+                while (mQueued == 0) {
+                    if (mShutdown) {
+                        return;
+                    }
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                task = mQueue[mHead];
+                mQueue[mHead] = null;
+                mHead = (mHead + 1) % mQueue.length;
+                mQueued--;
+                mTurns++;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // As a thread of its own would; the worker goes on with the other tasks.
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+
+    /**
+     * Runs a {@link Work} on the pool, in turns, until it is over.
+     */
+    final class Task implements Runnable {
+
+        private final Work mWork;
+
+        /** Whether the task is queued or running. */
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+
+        private Task(Work work) {
+            mWork = work;
+        }
+
+        /**
+         * Makes sure that the task gets a turn, unless it is queued or over already. May be called
+         * from any thread; allocates nothing.
+         */
+        void schedule() {
+            if (mFinished.getCount() > 0 && mScheduled.compareAndSet(false, true)) {
+                execute(this);
+            }
+        }
+
+        /**
+         * Waits for the work to be over. Returns right away on a worker of the pool, where waiting
+         * could hold up the very turns it waits for.
+         */
+        void await() throws InterruptedException {
+            if (WORKER_OF.get() != WorkerPool.this) {
+                mFinished.await();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean more = false;
+            try {
+                more = mWork.process(TURN);
+            } finally {
+                if (!more) {
+                    finish();
+                }
+            }
+            if (!more) {
+                return;
+            }
+            mScheduled.set(false);
+            // Whatever came in since the turn looked goes unnoticed by schedule() until now.
+            if (mWork.isPending()) {
+                schedule();
+            }
+        }
+
+        private void finish() {
+            synchronized (mLock) {
+                mTasks--;
+            }
+            mFinished.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Writes a file behind the back of its producer: {@link #write(byte[], int, int)} only copies
+ * into a preallocated in-memory queue, and a background thread empties the queue into the file.
+ *
+ * <p>Writes are packed into chunks, and a chunk is only queued once it is full, so the queue holds
+ * up to {@code chunks * chunkSize} bytes however small the writes are. A partly filled chunk is
+ * queued by {@link #flush()} and {@link #close()}, and by a write once it has waited for a sync
+ * interval, so the file never lags the producer by much more than that. Whatever has queued up
+ * while the previous write was in progress goes out in one gathering
+ * {@link FileChannel#write(ByteBuffer[])}, and the file is synced at most once per sync interval
+ * rather than per write. The queue is bounded; once it is full the producer waits. Writes and
+ * syncs that take longer than the stall threshold are counted as I/O stalls.</p>
+ */
+class WriteBehindSink {
+
+    private final File mFile;
+
+    private final int mChunkSize;
+
+    private final int mChunks;
+
+    private final long mSyncNanos;
+
+    private final long mStallNanos;
+
+    /** Empty chunks. The producer waits here when the queue is full. */
+    private final BlockingQueue<Chunk> mFree;
+
+    /** Filled chunks, oldest first, followed by {@link #mEnd} once the sink is closed. */
+    private final BlockingQueue<Chunk> mFilled;
+
+    private final Chunk mEnd = new Chunk(0);
+
+    /** The chunk being filled by the producer, or {@code null}. Producer only. */
+    private Chunk mCurrent;
+
+    /** The number of bytes in {@link #mCurrent}. Producer only. */
+    private int mCurrentSize;
+
+    /** When the first byte went into {@link #mCurrent}. Producer only. */
+    private long mCurrentSince;
+
+    private FileChannel mChannel;
+
+    private Thread mThread;
+
+    private volatile IOException mError;
+
+    private volatile long mBytes;
+
+    private volatile long mWrites;
+
+    private volatile long mSyncs;
+
+    private volatile long mStalls;
+
+    private volatile long mMaxIoNanos;
+
+    private volatile long mProducerWaits;
+
+    /**
+     * @param file        The file to write. It is truncated by {@link #open()}.
+     * @param chunkSize   The size in bytes of each queued chunk.
+     * @param chunks      The number of chunks in the queue.
+     * @param syncMillis  The interval between syncs of the file.
+     * @param stallMillis The duration after which a single write or sync counts as a stall.
+     */
+    WriteBehindSink(File file, int chunkSize, int chunks, long syncMillis, long stallMillis) {
+        mFile = file;
+        mChunkSize = chunkSize;
+        mChunks = chunks;
+        mSyncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        mStallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+        mFree = new ArrayBlockingQueue<>(chunks);
+        mFilled = new ArrayBlockingQueue<>(chunks + 1);
+        for (int i = 0; i < chunks; i++) {
+            mFree.add(new Chunk(chunkSize));
+        }
+    }
+
+    /**
+     * Truncates the file and starts the writer thread.
+     */
+    void open() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(0);
+        mChannel = file.getChannel();
+        mError = null;
+        mThread = new Thread(new Drain(), "WriteBehindSink");
+        mThread.start();
+    }
+
+    /**
+     * Queues {@code size} bytes of {@code data} to be written. Only waits if the queue is full.
+     *
+     * @throws IOException If an earlier write failed.
+     */
+    void write(byte[] data, int offset, int size) throws IOException {
+        while (size > 0) {
+            if (mError != null) {
+                throw mError;
+            }
+            if (mCurrent == null) {
+                mCurrent = takeFree();
+                mCurrentSize = 0;
+                mCurrentSince = System.nanoTime();
+            }
+            final int n = Math.min(size, mChunkSize - mCurrentSize);
+            System.arraycopy(data, offset, mCurrent.mData, mCurrentSize, n);
+            mCurrentSize += n;
+            offset += n;
+            size -= n;
+            if (mCurrentSize == mChunkSize) {
+                flush();
+            }
+        }
+        if (mCurrent != null && System.nanoTime() - mCurrentSince >= mSyncNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Queues what has been written into the current chunk so far, even if it is not full.
+     */
+    void flush() {
+        if (mCurrent == null) {
+            return;
+        }
+        mCurrent.mBuffer.clear();
+        mCurrent.mBuffer.limit(mCurrentSize);
+        mFilled.add(mCurrent);
+        mCurrent = null;
+    }
+
+    /**
+     * Writes out everything that is written so far, syncs and closes the file. Called by the
+     * producer, or after it.
+     *
+     * @throws IOException If any write failed.
+     */
+    void close() throws IOException {
+        if (mThread == null) {
+            return;
+        }
+        flush();
+        mFilled.add(mEnd);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mChannel.close();
+        mChannel = null;
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * @return The number of writes and syncs that took longer than the stall threshold.
+     */
+    long getStalls() {
+        return mStalls;
+    }
+
+    /**
+     * @return The longest single write or sync, in milliseconds.
+     */
+    long getMaxIoMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxIoNanos);
+    }
+
+    /**
+     * @return The number of times the producer found the queue full.
+     */
+    long getProducerWaits() {
+        return mProducerWaits;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBehindSink{bytes=" + mBytes
+                + ", writes=" + mWrites
+                + ", syncs=" + mSyncs
+                + ", stalls=" + mStalls
+                + ", maxIoMillis=" + getMaxIoMillis()
+                + ", producerWaits=" + mProducerWaits
+                + "}";
+    }
+
+    /**
+     * @return An empty chunk, once there is one.
+     */
+    private Chunk takeFree() throws IOException {
+        final Chunk chunk = mFree.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        mProducerWaits++;
+        try {
+            return mFree.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the queue");
+        }
+    }
+
+    private void sync(boolean metadata) throws IOException {
+        final long started = System.nanoTime();
+        mChannel.force(metadata);
+        mSyncs++;
+        timed(started);
+    }
+
+    /**
+     * Accounts for an I/O call that started at {@code started}.
+     */
+    private void timed(long started) {
+        final long elapsed = System.nanoTime() - started;
+        if (elapsed > mMaxIoNanos) {
+            mMaxIoNanos = elapsed;
+        }
+        if (elapsed > mStallNanos) {
+            mStalls++;
+        }
+    }
+
+    /**
+     * Empties {@link #mFilled} into the file until {@link #mEnd} comes along.
+     */
+    private class Drain implements Runnable {
+
+        private final List<Chunk> mBatch = new ArrayList<>(mChunks + 1);
+
+        private final ByteBuffer[] mBuffers = new ByteBuffer[mChunks];
+
+        @Override
+        public void run() {
+            long lastSync = System.nanoTime();
+            boolean end = false;
+            while (!end) {
+                try {
+                    mBatch.add(mFilled.take());
+                } catch (InterruptedException e) {
+                    mError = new IOException("Interrupted");
+                    break;
+                }
+                mFilled.drainTo(mBatch);
+                end = mBatch.remove(mEnd);
+                try {
+                    if (mError == null && !mBatch.isEmpty()) {
+                        write();
+                        if (System.nanoTime() - lastSync >= mSyncNanos) {
+                            sync(false);
+                            lastSync = System.nanoTime();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Keep recycling chunks so that the producer sees the error instead of
+                    // waiting forever.
+                    mError = e;
+                }
+                mFree.addAll(mBatch);
+                mBatch.clear();
+            }
+            if (end && mError == null) {
+                try {
+                    sync(true);
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+        }
+
+        private void write() throws IOException {
+            final int count = mBatch.size();
+            long remaining = 0;
+            for (int i = 0; i < count; i++) {
+                mBuffers[i] = mBatch.get(i).mBuffer;
+                remaining += mBuffers[i].remaining();
+            }
+            final long started = System.nanoTime();
+            while (remaining > 0) {
+                final long written = mChannel.write(mBuffers, 0, count);
+                remaining -= written;
+                mBytes += written;
+            }
+            mWrites++;
+            timed(started);
+        }
+
+    }
+
+    /**
+     * A preallocated piece of the queue.
+     */
+    private static class Chunk {
+
+        final byte[] mData;
+
+        final ByteBuffer mBuffer;
+
+        Chunk(int size) {
+            mData = new byte[size];
+            mBuffer = ByteBuffer.wrap(mData);
+        }
+
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class AudioRingTest {
+
+    private static final int SLOT_SIZE = 8;
+
+    @Test
+    public void everyReaderSeesEveryBufferInOrder() {
+        final AudioRing ring = new AudioRing(4, SLOT_SIZE, 2);
+        final AudioRing.Reader first = ring.getReader(0);
+        final AudioRing.Reader second = ring.getReader(1);
+        for (int i = 0; i < 10; i++) {
+            publish(ring, (byte) i, 2 + i % 3);
+            assertBuffer(first, i, (byte) i, 2 + i % 3);
+            first.release();
+            assertBuffer(second, i, (byte) i, 2 + i % 3);
+            second.release();
+        }
+        assertFalse(first.poll());
+        assertFalse(second.poll());
+        assertEquals(0, ring.getOverruns());
+    }
+
+    @Test
+    public void cursorsMoveIndependently() {
+        final AudioRing ring = new AudioRing(4, SLOT_SIZE, 2);
+        final AudioRing.Reader fast = ring.getReader(0);
+        final AudioRing.Reader slow = ring.getReader(1);
+        publish(ring, (byte) 1, SLOT_SIZE);
+        publish(ring, (byte) 2, SLOT_SIZE);
+        publish(ring, (byte) 3, SLOT_SIZE);
+        fast.release();
+        fast.release();
+        assertEquals(2, fast.sequence());
+        assertEquals(1, fast.backlog());
+        assertEquals(2 * SLOT_SIZE, fast.offset());
+        assertEquals(0, slow.sequence());
+        assertEquals(3, slow.backlog());
+        assertEquals(0, slow.offset());
+        assertBuffer(slow, 0, (byte) 1, SLOT_SIZE);
+        assertBuffer(fast, 2, (byte) 3, SLOT_SIZE);
+    }
+
+    @Test
+    public void offsetsWrapAroundTheRing() {
+        final AudioRing ring = new AudioRing(3, SLOT_SIZE, 1);
+        final AudioRing.Reader reader = ring.getReader(0);
+        for (int i = 0; i < 7; i++) {
+            publish(ring, (byte) (10 + i), SLOT_SIZE);
+            assertEquals(i % 3 * SLOT_SIZE, reader.offset());
+            assertBuffer(reader, i, (byte) (10 + i), SLOT_SIZE);
+            // The LINEAR16 view is little endian and starts at the same place.
+            final short sample = reader.samples().get(reader.offset() / 2);
+            assertEquals((short) ((10 + i) << 8 | (10 + i)), sample);
+            reader.release();
+        }
+    }
+
+    @Test
+    public void overrunWhenTheSlowestReaderHoldsEverySlot() {
+        final AudioRing ring = new AudioRing(4, SLOT_SIZE, 2);
+        final AudioRing.Reader fast = ring.getReader(0);
+        final AudioRing.Reader slow = ring.getReader(1);
+        for (int i = 0; i < 4; i++) {
+            publish(ring, (byte) i, SLOT_SIZE);
+            fast.release();
+        }
+        assertNull(ring.claim());
+        assertNull(ring.claim());
+        assertEquals(2, ring.getOverruns());
+        // Nothing the slow reader holds was overwritten.
+        for (int i = 0; i < 2; i++) {
+            assertBuffer(slow, i, (byte) i, SLOT_SIZE);
+            slow.release();
+        }
+        publish(ring, (byte) 4, SLOT_SIZE);
+        assertBuffer(slow, 2, (byte) 2, SLOT_SIZE);
+        assertBuffer(fast, 4, (byte) 4, SLOT_SIZE);
+        assertEquals(2, ring.getOverruns());
+    }
+
+    @Test
+    public void blockingReaderMakesTheProducerWait() throws InterruptedException {
+        final AudioRing ring = new AudioRing(4, SLOT_SIZE, 1);
+        final AudioRing.Reader reader = ring.getReader(0);
+        reader.block(2);
+        publish(ring, (byte) 0, SLOT_SIZE);
+        publish(ring, (byte) 1, SLOT_SIZE);
+        final CountDownLatch claimed = new CountDownLatch(1);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (ring.claim() != null) {
+                    ring.publish(SLOT_SIZE);
+                    claimed.countDown();
+                }
+            }
+        });
+        producer.start();
+        assertFalse(claimed.await(50, TimeUnit.MILLISECONDS));
+        reader.release();
+        assertTrue(claimed.await(5, TimeUnit.SECONDS));
+        producer.join();
+        assertEquals(2, reader.backlog());
+        assertEquals(0, ring.getOverruns());
+    }
+
+    @Test
+    public void unblockedReaderOverrunsAgain() {
+        final AudioRing ring = new AudioRing(4, SLOT_SIZE, 1);
+        final AudioRing.Reader reader = ring.getReader(0);
+        reader.block(2);
+        reader.unblock();
+        publish(ring, (byte) 0, SLOT_SIZE);
+        publish(ring, (byte) 1, SLOT_SIZE);
+        // The capacity still applies, but the producer drops instead of waiting.
+        assertNull(ring.claim());
+        assertEquals(1, ring.getOverruns());
+    }
+
+    @Test
+    public void readersDrainAClosedRing() {
+        final AudioRing ring = new AudioRing(4, SLOT_SIZE, 1);
+        final AudioRing.Reader reader = ring.getReader(0);
+        publish(ring, (byte) 1, SLOT_SIZE);
+        publish(ring, (byte) 2, SLOT_SIZE);
+        ring.close();
+        assertFalse(reader.isDrained());
+        assertTrue(reader.await());
+        reader.release();
+        assertTrue(reader.await());
+        assertFalse(reader.isDrained());
+        reader.release();
+        assertTrue(reader.isDrained());
+        assertFalse(reader.await());
+        assertFalse(reader.poll());
+    }
+
+    @Test
+    public void awaitReturnsOncePublished() throws InterruptedException {
+        final AudioRing ring = new AudioRing(4, SLOT_SIZE, 1);
+        final AudioRing.Reader reader = ring.getReader(0);
+        final CountDownLatch woken = new CountDownLatch(1);
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (reader.await() && reader.size() == 3) {
+                    woken.countDown();
+                }
+            }
+        });
+        consumer.start();
+        assertFalse(woken.await(50, TimeUnit.MILLISECONDS));
+        publish(ring, (byte) 1, 3);
+        assertTrue(woken.await(5, TimeUnit.SECONDS));
+        consumer.join();
+    }
+
+    @Test
+    public void wakeUpRunsOnPublishAndClose() {
+        final AudioRing ring = new AudioRing(4, SLOT_SIZE, 2);
+        final AtomicInteger wakeUps = new AtomicInteger();
+        ring.getReader(1).setWakeUp(new Runnable() {
+            @Override
+            public void run() {
+                wakeUps.incrementAndGet();
+            }
+        });
+        publish(ring, (byte) 1, SLOT_SIZE);
+        publish(ring, (byte) 2, SLOT_SIZE);
+        assertEquals(2, wakeUps.get());
+        ring.close();
+        assertEquals(3, wakeUps.get());
+    }
+
+    private static void publish(AudioRing ring, byte value, int size) {
+        final ByteBuffer slot = ring.claim();
+        assertNotNull(slot);
+        for (int i = 0; i < size; i++) {
+            slot.put(i, value);
+        }
+        ring.publish(size);
+    }
+
+    private static void assertBuffer(AudioRing.Reader reader, long sequence, byte value,
+            int size) {
+        assertTrue(reader.poll());
+        assertEquals(sequence, reader.sequence());
+        assertEquals(size, reader.size());
+        final byte[] data = new byte[SLOT_SIZE];
+        assertEquals(size, reader.copyTo(data));
+        for (int i = 0; i < size; i++) {
+            assertEquals(value, data[i]);
+            assertEquals(value, reader.buffer().get(reader.offset() + i));
+        }
+    }
+
+}
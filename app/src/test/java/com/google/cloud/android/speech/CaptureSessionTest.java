@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class CaptureSessionTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    private static final int BYTES_PER_SECOND = SAMPLE_RATE * 2;
+
+    /** Two one-second words, each followed by enough silence to end the utterance. */
+    private static final int[] SCRIPT_MILLIS = {500, 1000, 2000, 1000, 2000};
+
+    @Test
+    public void lateDismissDoesNotCutTheNextUtteranceShort() throws InterruptedException {
+        final Events events = run(true);
+        assertEquals(2, events.mStarts.size());
+        // The whole second word, not just the buffer it started with.
+        assertTrue(events.mVoiceBytes.get(1) >= BYTES_PER_SECOND);
+    }
+
+    @Test
+    public void dismissEndsTheUtteranceItIsFor() throws InterruptedException {
+        final Events events = run(false);
+        // The second word is cut off right away, so the rest of it is heard as a third.
+        assertEquals(3, events.mStarts.size());
+        assertTrue(events.mVoiceBytes.get(1) < BYTES_PER_SECOND / 2);
+    }
+
+    @Test(timeout = 10000)
+    public void recordingIsFinishedWhenTheListenerThrows() throws InterruptedException {
+        final BlockingQueue<Throwable> uncaught = new LinkedBlockingQueue<>();
+        final WorkerPool workers = new WorkerPool(2, 2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "CaptureSessionTest-worker");
+                thread.setDaemon(true);
+                thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        uncaught.add(e);
+                    }
+                });
+                return thread;
+            }
+        });
+        final Recording recording = new Recording();
+        final CaptureSession session = new CaptureSession(new ArraySource(script()),
+                new CaptureSession.Listener() {
+                    @Override
+                    public void onVoiceStart(int utterance) {
+                        throw new IllegalStateException("onVoiceStart");
+                    }
+
+                    @Override
+                    public void onVoice(byte[] data, int size) {
+                    }
+
+                    @Override
+                    public void onVoiceEnd() {
+                    }
+                }, recording, new VoiceDetector(300), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "CaptureSessionTest");
+                    }
+                });
+        session.setWorkerPool(workers);
+        session.setLossless(true);
+        try {
+            assertTrue(session.start());
+            session.awaitEnd();
+            session.close();
+        } finally {
+            workers.shutdown();
+        }
+        final Throwable thrown = uncaught.poll(5, TimeUnit.SECONDS);
+        assertNotNull(thrown);
+        assertEquals("onVoiceStart", thrown.getMessage());
+        // The encoder ran to the end, and its task, the last one, finished the recording.
+        assertEquals(1, recording.mFinishes.get());
+        assertEquals(0, workers.getTasks());
+    }
+
+    /**
+     * Replays the script and dismisses an utterance as soon as the second one starts.
+     *
+     * @param late {@code true} to dismiss the first utterance, which is over by then;
+     *             {@code false} to dismiss the second.
+     */
+    private static Events run(final boolean late) throws InterruptedException {
+        final Events events = new Events(late);
+        final CaptureSession session = new CaptureSession(new ArraySource(script()), events, null,
+                new VoiceDetector(300), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "CaptureSessionTest");
+                    }
+                });
+        events.mSession = session;
+        session.setLossless(true);
+        assertTrue(session.start());
+        session.awaitEnd();
+        session.close();
+        assertEquals(events.mStarts.size(), events.mEnds);
+        return events;
+    }
+
+    private static byte[] script() {
+        int total = 0;
+        for (int millis : SCRIPT_MILLIS) {
+            total += millis * BYTES_PER_SECOND / 1000;
+        }
+        final byte[] audio = new byte[total];
+        final Random random = new Random(7);
+        int offset = 0;
+        for (int i = 0; i < SCRIPT_MILLIS.length; i++) {
+            final int samples = SCRIPT_MILLIS[i] * SAMPLE_RATE / 1000;
+            for (int n = 0; n < samples; n++) {
+                final short sample = i % 2 == 1
+                        ? (short) (6000 * Math.sin(2 * Math.PI * 440 * n / SAMPLE_RATE))
+                        : (short) (random.nextInt(101) - 50);
+                audio[offset++] = (byte) sample;
+                audio[offset++] = (byte) (sample >> 8);
+            }
+        }
+        return audio;
+    }
+
+    private static class Events implements CaptureSession.Listener {
+
+        private final boolean mLate;
+
+        private volatile CaptureSession mSession;
+
+        private final List<Integer> mStarts = new ArrayList<>();
+
+        private final List<Integer> mVoiceBytes = new ArrayList<>();
+
+        private int mEnds;
+
+        Events(boolean late) {
+            mLate = late;
+        }
+
+        @Override
+        public void onVoiceStart(int utterance) {
+            mStarts.add(utterance);
+            mVoiceBytes.add(0);
+            if (mStarts.size() == 2) {
+                mSession.dismiss(mLate ? mStarts.get(0) : utterance);
+            }
+        }
+
+        @Override
+        public void onVoice(byte[] data, int size) {
+            final int last = mVoiceBytes.size() - 1;
+            mVoiceBytes.set(last, mVoiceBytes.get(last) + size);
+        }
+
+        @Override
+        public void onVoiceEnd() {
+            mEnds++;
+        }
+
+    }
+
+    /** Counts the files it is asked to finish. */
+    private static class Recording implements CaptureSession.Recording {
+
+        private final AtomicInteger mFinishes = new AtomicInteger();
+
+        @Override
+        public void begin() {
+        }
+
+        @Override
+        public void finish(int utterance) {
+            mFinishes.incrementAndGet();
+        }
+
+        @Override
+        public int writeFrame(ByteBuffer frame, int size) {
+            return 1;
+        }
+
+    }
+
+    /** Serves a byte array, 40 ms at a time and as fast as it is read. */
+    private static class ArraySource implements PcmSource {
+
+        private final byte[] mAudio;
+
+        private int mPosition;
+
+        ArraySource(byte[] audio) {
+            mAudio = audio;
+        }
+
+        @Override
+        public boolean open() {
+            mPosition = 0;
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int getSampleRate() {
+            return SAMPLE_RATE;
+        }
+
+        @Override
+        public int getBufferSize() {
+            return BYTES_PER_SECOND * 40 / 1000;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int size) {
+            final int n = Math.min(size, mAudio.length - mPosition);
+            if (n == 0) {
+                return END_OF_STREAM;
+            }
+            System.arraycopy(mAudio, mPosition, data, offset, n);
+            mPosition += n;
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int size) {
+            final int n = Math.min(Math.min(size, buffer.capacity()), mAudio.length - mPosition);
+            if (n == 0) {
+                return END_OF_STREAM;
+            }
+            for (int i = 0; i < n; i++) {
+                buffer.put(i, mAudio[mPosition + i]);
+            }
+            mPosition += n;
+            return n;
+        }
+
+    }
+
+}
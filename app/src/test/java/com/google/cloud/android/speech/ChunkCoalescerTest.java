@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+public class ChunkCoalescerTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    /** 100 ms at 16 kHz. */
+    private static final int TARGET_BYTES = 3200;
+
+    private ScheduledExecutorService mTimer;
+
+    private RecordingSink mSink;
+
+    @Before
+    public void setUp() {
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mSink = new RecordingSink();
+    }
+
+    @After
+    public void tearDown() {
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void targetIsTheDurationOrTheMaximumSize() {
+        final ChunkCoalescer coalescer = new ChunkCoalescer(mSink, mTimer, 100, 16 * 1024, 200);
+        coalescer.start(SAMPLE_RATE);
+        assertEquals(TARGET_BYTES, coalescer.getTargetBytes());
+        coalescer.start(48000);
+        assertEquals(9600, coalescer.getTargetBytes());
+        coalescer.setTargets(100, 4001, 200);
+        coalescer.start(48000);
+        assertEquals(4000, coalescer.getTargetBytes());
+    }
+
+    @Test
+    public void smallWritesGoOutInWholeChunks() {
+        final ChunkCoalescer coalescer = new ChunkCoalescer(mSink, mTimer, 100, 16 * 1024, 5000);
+        coalescer.start(SAMPLE_RATE);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++) {
+            final byte[] data = bytes(i * 640, 640);
+            coalescer.write(data, data.length);
+            written.write(data, 0, data.length);
+        }
+        assertEquals(Arrays.asList(TARGET_BYTES, TARGET_BYTES, TARGET_BYTES, TARGET_BYTES),
+                mSink.sizes());
+        assertArrayEquals(written.toByteArray(), mSink.bytes());
+        assertEquals(4, coalescer.getMessages());
+        assertEquals(TARGET_BYTES, coalescer.getAveragePayload());
+        assertEquals(0, coalescer.getDeadlineFlushes());
+    }
+
+    @Test
+    public void chunksAreNeverSplit() {
+        final ChunkCoalescer coalescer = new ChunkCoalescer(mSink, mTimer, 100, 16 * 1024, 5000);
+        coalescer.start(SAMPLE_RATE);
+        for (int i = 0; i < 8; i++) {
+            coalescer.write(bytes(i * 1000, 1000), 1000);
+        }
+        // 4000 bytes cross the target; the chunk goes out whole.
+        assertEquals(Arrays.asList(4000, 4000), mSink.sizes());
+    }
+
+    @Test
+    public void writesOfAWholeChunkPassThrough() {
+        final ChunkCoalescer coalescer = new ChunkCoalescer(mSink, mTimer, 100, 16 * 1024, 5000);
+        coalescer.start(SAMPLE_RATE);
+        final byte[] data = bytes(0, TARGET_BYTES + 100);
+        coalescer.write(data, data.length);
+        assertSame(data, mSink.mArrays.get(0));
+        // After a pending chunk, which goes first.
+        coalescer.write(bytes(0, 10), 10);
+        coalescer.write(data, data.length);
+        assertEquals(Arrays.asList(TARGET_BYTES + 100, TARGET_BYTES + 110), mSink.sizes());
+    }
+
+    @Test
+    public void pendingAudioGoesOutOnItsDeadline() throws InterruptedException {
+        final ChunkCoalescer coalescer = new ChunkCoalescer(mSink, mTimer, 100, 16 * 1024, 50);
+        coalescer.start(SAMPLE_RATE);
+        coalescer.write(bytes(0, 640), 640);
+        coalescer.write(bytes(640, 640), 640);
+        assertTrue(mSink.awaitMessages(1, 5000));
+        assertEquals(Arrays.asList(1280), mSink.sizes());
+        assertEquals(1, coalescer.getDeadlineFlushes());
+        // The next pending chunk gets a deadline of its own.
+        coalescer.write(bytes(1280, 320), 320);
+        assertTrue(mSink.awaitMessages(2, 5000));
+        assertEquals(Arrays.asList(1280, 320), mSink.sizes());
+        assertEquals(2, coalescer.getDeadlineFlushes());
+        assertArrayEquals(bytes(0, 1600), mSink.bytes());
+    }
+
+    @Test
+    public void deadlineCountsFromTheFirstPendingByte() throws InterruptedException {
+        final ChunkCoalescer coalescer = new ChunkCoalescer(mSink, mTimer, 100, 16 * 1024, 300);
+        coalescer.start(SAMPLE_RATE);
+        final long started = System.nanoTime();
+        coalescer.write(bytes(0, 640), 640);
+        Thread.sleep(100);
+        coalescer.write(bytes(640, 640), 640);
+        assertTrue(mSink.awaitMessages(1, 5000));
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertTrue("flushed after " + elapsed + " ms", elapsed >= 300 && elapsed < 2000);
+        assertEquals(Arrays.asList(1280), mSink.sizes());
+    }
+
+    @Test
+    public void flushSendsThePendingChunk() {
+        final ChunkCoalescer coalescer = new ChunkCoalescer(mSink, mTimer, 100, 16 * 1024, 5000);
+        coalescer.start(SAMPLE_RATE);
+        coalescer.write(bytes(0, 100), 100);
+        coalescer.flush();
+        coalescer.flush();
+        assertEquals(Arrays.asList(100), mSink.sizes());
+        assertEquals(0, coalescer.getDeadlineFlushes());
+    }
+
+    @Test
+    public void startDropsThePendingChunk() {
+        final ChunkCoalescer coalescer = new ChunkCoalescer(mSink, mTimer, 100, 16 * 1024, 5000);
+        coalescer.start(SAMPLE_RATE);
+        coalescer.write(bytes(0, 100), 100);
+        coalescer.start(SAMPLE_RATE);
+        coalescer.flush();
+        assertEquals(0, mSink.sizes().size());
+        assertEquals(0, coalescer.getMessages());
+    }
+
+    @Test
+    public void audioPassesThroughOnceTheTimerIsShutDown() {
+        final ChunkCoalescer coalescer = new ChunkCoalescer(mSink, mTimer, 100, 16 * 1024, 5000);
+        coalescer.start(SAMPLE_RATE);
+        mTimer.shutdownNow();
+        coalescer.write(bytes(0, 640), 640);
+        coalescer.write(bytes(640, 640), 640);
+        assertEquals(Arrays.asList(640, 640), mSink.sizes());
+        assertArrayEquals(bytes(0, 1280), mSink.bytes());
+    }
+
+    private static byte[] bytes(int start, int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (start + i);
+        }
+        return data;
+    }
+
+    /**
+     * Keeps a copy of every chunk.
+     */
+    private static class RecordingSink implements ChunkCoalescer.Sink {
+
+        final List<byte[]> mArrays = new ArrayList<>();
+
+        private final List<byte[]> mChunks = new ArrayList<>();
+
+        @Override
+        public synchronized void send(byte[] data, int size) {
+            mArrays.add(data);
+            mChunks.add(Arrays.copyOf(data, size));
+            notifyAll();
+        }
+
+        synchronized boolean awaitMessages(int count, long timeoutMillis)
+                throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (mChunks.size() < count) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+
+        synchronized List<Integer> sizes() {
+            final List<Integer> sizes = new ArrayList<>();
+            for (byte[] chunk : mChunks) {
+                sizes.add(chunk.length);
+            }
+            return sizes;
+        }
+
+        synchronized byte[] bytes() {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (byte[] chunk : mChunks) {
+                out.write(chunk, 0, chunk.length);
+            }
+            return out.toByteArray();
+        }
+
+    }
+
+}
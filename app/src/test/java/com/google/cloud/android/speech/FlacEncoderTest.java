@@ -0,0 +1,547 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Decodes what {@link FlacEncoder} sends with a small FLAC decoder of its own, and checks the
+ * samples, the headers and the CRCs.
+ */
+public class FlacEncoderTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+
+    private static final int SUBFRAME_VERBATIM = 1;
+
+    private static final int SUBFRAME_FIXED = 8;
+
+    private List<byte[]> mMessages;
+
+    private FlacEncoder mEncoder;
+
+    @Before
+    public void setUp() {
+        mMessages = new ArrayList<>();
+        mEncoder = new FlacEncoder(new ChunkCoalescer.Sink() {
+            @Override
+            public void send(byte[] data, int size) {
+                mMessages.add(Arrays.copyOf(data, size));
+            }
+        });
+    }
+
+    @Test
+    public void crcsMatchTheirCheckValues() {
+        final byte[] check = "123456789".getBytes(Charset.forName("US-ASCII"));
+        assertEquals(0xF4, Decoder.crc8(check, 0, check.length));
+        assertEquals(0xFEE8, Decoder.crc16(check, 0, check.length));
+    }
+
+    @Test
+    public void firstMessageStartsWithStreamInfo() {
+        mEncoder.start(SAMPLE_RATE);
+        encode(sine(1600, 440, 8000));
+        final Decoder decoder = new Decoder(mMessages.get(0));
+        decoder.readStreamHeader();
+        assertEquals(FlacEncoder.MIN_BLOCK_SIZE, decoder.mMinBlockSize);
+        assertEquals(FlacEncoder.MAX_BLOCK_SIZE, decoder.mMaxBlockSize);
+        assertEquals(SAMPLE_RATE, decoder.mSampleRate);
+        assertEquals(1, decoder.mChannels);
+        assertEquals(16, decoder.mBitsPerSample);
+    }
+
+    @Test
+    public void silenceIsAConstantSubframe() {
+        mEncoder.start(SAMPLE_RATE);
+        final short[] silence = new short[1600];
+        Arrays.fill(silence, (short) -3);
+        encode(silence);
+        final Decoder decoder = decodeAll();
+        assertArrayEquals(silence, decoder.samples());
+        assertEquals(Arrays.asList(SUBFRAME_CONSTANT), decoder.mSubframeTypes);
+    }
+
+    @Test
+    public void smoothAudioIsAFixedPredictor() {
+        mEncoder.start(SAMPLE_RATE);
+        final short[] tone = sine(1600, 300, 12000);
+        encode(tone);
+        final Decoder decoder = decodeAll();
+        assertArrayEquals(tone, decoder.samples());
+        assertEquals(1, decoder.mSubframeTypes.size());
+        final int type = decoder.mSubframeTypes.get(0);
+        assertTrue("type " + type, type >= SUBFRAME_FIXED + 1 && type <= SUBFRAME_FIXED + 4);
+        assertTrue(decoder.mBytes < 1600);
+    }
+
+    @Test
+    public void everyFixedOrderRoundTrips() {
+        mEncoder.start(SAMPLE_RATE);
+        final Random random = new Random(7);
+        final List<short[]> chunks = new ArrayList<>();
+        // From quiet white noise, best left unpredicted, to ever smoother signals.
+        chunks.add(noise(random, 1600, 200));
+        for (int smoothing = 1; smoothing <= 4; smoothing++) {
+            final short[] chunk = noise(random, 1600, 20000);
+            for (int pass = 0; pass < smoothing * 3; pass++) {
+                for (int i = chunk.length - 1; i > 0; i--) {
+                    chunk[i] = (short) ((chunk[i] + chunk[i - 1]) / 2);
+                }
+            }
+            chunks.add(chunk);
+        }
+        for (short[] chunk : chunks) {
+            encode(chunk);
+        }
+        final Decoder decoder = decodeAll();
+        assertArrayEquals(concat(chunks), decoder.samples());
+        assertEquals(Arrays.asList(SUBFRAME_FIXED, SUBFRAME_FIXED + 1, SUBFRAME_FIXED + 2,
+                SUBFRAME_FIXED + 3, SUBFRAME_FIXED + 4), decoder.mSubframeTypes);
+    }
+
+    @Test
+    public void noiseIsVerbatim() {
+        mEncoder.start(SAMPLE_RATE);
+        final short[] noise = noise(new Random(1), 1600, 32767);
+        encode(noise);
+        final Decoder decoder = decodeAll();
+        assertArrayEquals(noise, decoder.samples());
+        assertEquals(Arrays.asList(SUBFRAME_VERBATIM), decoder.mSubframeTypes);
+    }
+
+    @Test
+    public void extremeSamplesRoundTrip() {
+        mEncoder.start(SAMPLE_RATE);
+        final short[] square = new short[1600];
+        for (int i = 0; i < square.length; i++) {
+            square[i] = i / 8 % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        encode(square);
+        assertArrayEquals(square, decodeAll().samples());
+    }
+
+    @Test
+    public void largeChunksAreSplitIntoValidBlocks() {
+        mEncoder.start(SAMPLE_RATE);
+        final short[] speech = sine(2 * FlacEncoder.MAX_BLOCK_SIZE + 5, 200, 9000);
+        encode(speech);
+        assertEquals(1, mMessages.size());
+        final Decoder decoder = decodeAll();
+        assertArrayEquals(speech, decoder.samples());
+        assertEquals(Arrays.asList(FlacEncoder.MAX_BLOCK_SIZE,
+                FlacEncoder.MAX_BLOCK_SIZE - FlacEncoder.MIN_BLOCK_SIZE + 5,
+                FlacEncoder.MIN_BLOCK_SIZE), decoder.mBlockSizes);
+    }
+
+    @Test
+    public void shortChunksArePaddedToTheMinimumBlock() {
+        mEncoder.start(SAMPLE_RATE);
+        final short[] first = sine(1600, 440, 8000);
+        final short[] tail = sine(5, 440, 8000);
+        final short[] next = sine(1000, 440, 8000);
+        encode(first);
+        // Cut short by a flush deadline, mid-stream.
+        encode(tail);
+        encode(next);
+        final Decoder decoder = decodeAll();
+        assertEquals(Arrays.asList(1600, FlacEncoder.MIN_BLOCK_SIZE, 1000), decoder.mBlockSizes);
+        final short[] padded = Arrays.copyOf(tail, FlacEncoder.MIN_BLOCK_SIZE);
+        Arrays.fill(padded, tail.length, padded.length, tail[tail.length - 1]);
+        assertArrayEquals(concat(Arrays.asList(first, padded, next)), decoder.samples());
+        for (int blockSize : decoder.mBlockSizes) {
+            assertTrue(blockSize >= decoder.mMinBlockSize);
+        }
+    }
+
+    @Test
+    public void sampleNumbersCountAcrossMessages() {
+        mEncoder.start(SAMPLE_RATE);
+        final List<short[]> chunks = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            // Past 2^7 and 2^11 samples, where the coded sample number grows a byte.
+            final short[] chunk = sine(100 + i * 37, 100 + i * 50, 10000);
+            chunks.add(chunk);
+            encode(chunk);
+        }
+        final Decoder decoder = decodeAll();
+        assertArrayEquals(concat(chunks), decoder.samples());
+        long expected = 0;
+        for (int i = 0; i < decoder.mSampleNumbers.size(); i++) {
+            assertEquals(expected, (long) decoder.mSampleNumbers.get(i));
+            expected += decoder.mBlockSizes.get(i);
+        }
+    }
+
+    @Test
+    public void everyStreamStartsWithAHeader() {
+        mEncoder.start(SAMPLE_RATE);
+        encode(sine(1600, 440, 8000));
+        mEncoder.start(8000);
+        final short[] second = sine(800, 440, 8000);
+        encode(second);
+        final Decoder decoder = new Decoder(mMessages.get(1));
+        decoder.readStreamHeader();
+        assertEquals(8000, decoder.mSampleRate);
+        decoder.readFrames();
+        assertArrayEquals(second, decoder.samples());
+        assertEquals(Arrays.asList(0L), decoder.mSampleNumbers);
+    }
+
+    @Test
+    public void otherSampleRatesReferToStreamInfo() {
+        mEncoder.start(11025);
+        final short[] tone = sine(1102, 440, 8000);
+        encode(tone);
+        final Decoder decoder = decodeAll();
+        assertEquals(11025, decoder.mSampleRate);
+        assertArrayEquals(tone, decoder.samples());
+    }
+
+    private void encode(short[] samples) {
+        final byte[] data = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            data[2 * i] = (byte) samples[i];
+            data[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        mEncoder.send(data, data.length);
+    }
+
+    /**
+     * Decodes all the messages so far as one stream.
+     */
+    private Decoder decodeAll() {
+        int size = 0;
+        for (byte[] message : mMessages) {
+            size += message.length;
+        }
+        final byte[] stream = new byte[size];
+        int offset = 0;
+        for (byte[] message : mMessages) {
+            System.arraycopy(message, 0, stream, offset, message.length);
+            offset += message.length;
+        }
+        final Decoder decoder = new Decoder(stream);
+        decoder.readStreamHeader();
+        decoder.readFrames();
+        return decoder;
+    }
+
+    private static short[] sine(int count, double frequency, double amplitude) {
+        final short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) Math.round(amplitude
+                    * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    private static short[] noise(Random random, int count, int amplitude) {
+        final short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) (random.nextInt(2 * amplitude + 1) - amplitude);
+        }
+        return samples;
+    }
+
+    private static short[] concat(List<short[]> chunks) {
+        int size = 0;
+        for (short[] chunk : chunks) {
+            size += chunk.length;
+        }
+        final short[] all = new short[size];
+        int offset = 0;
+        for (short[] chunk : chunks) {
+            System.arraycopy(chunk, 0, all, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return all;
+    }
+
+    /**
+     * Decodes the subset of FLAC that a mono 16-bit stream of fixed-predictor frames uses, and
+     * fails on anything it does not expect.
+     */
+    private static class Decoder {
+
+        final byte[] mData;
+
+        final List<Integer> mBlockSizes = new ArrayList<>();
+
+        final List<Long> mSampleNumbers = new ArrayList<>();
+
+        final List<Integer> mSubframeTypes = new ArrayList<>();
+
+        private final List<Short> mSamples = new ArrayList<>();
+
+        int mMinBlockSize;
+
+        int mMaxBlockSize;
+
+        int mSampleRate;
+
+        int mChannels;
+
+        int mBitsPerSample;
+
+        /** The size of the frames, without the stream header. */
+        int mBytes;
+
+        private int mBitPosition;
+
+        Decoder(byte[] data) {
+            mData = data;
+        }
+
+        short[] samples() {
+            final short[] samples = new short[mSamples.size()];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = mSamples.get(i);
+            }
+            return samples;
+        }
+
+        void readStreamHeader() {
+            assertEquals(0x664C6143, readBits(32));
+            // Only STREAMINFO, as the last metadata block.
+            assertEquals(1, readBits(1));
+            assertEquals(0, readBits(7));
+            assertEquals(34, readBits(24));
+            mMinBlockSize = readBits(16);
+            mMaxBlockSize = readBits(16);
+            assertTrue(mMinBlockSize >= 16);
+            assertTrue(mMinBlockSize <= mMaxBlockSize);
+            readBits(24);
+            readBits(24);
+            mSampleRate = readBits(20);
+            mChannels = readBits(3) + 1;
+            mBitsPerSample = readBits(5) + 1;
+            readBits(4);
+            readBits(32);
+            for (int i = 0; i < 4; i++) {
+                readBits(32);
+            }
+        }
+
+        void readFrames() {
+            final int start = mBitPosition / 8;
+            while (mBitPosition / 8 < mData.length) {
+                readFrame();
+            }
+            mBytes = mData.length - start;
+        }
+
+        private void readFrame() {
+            assertEquals(0, mBitPosition % 8);
+            final int start = mBitPosition / 8;
+            // Sync code, reserved, variable block size.
+            assertEquals(0xFFF9, readBits(16));
+            final int blockSizeCode = readBits(4);
+            final int sampleRateCode = readBits(4);
+            assertEquals(0, readBits(4));
+            assertEquals(4, readBits(3));
+            assertEquals(0, readBits(1));
+            mSampleNumbers.add(readUtf8());
+            final int blockSize;
+            if (blockSizeCode == 6) {
+                blockSize = readBits(8) + 1;
+            } else {
+                assertEquals(7, blockSizeCode);
+                blockSize = readBits(16) + 1;
+            }
+            assertTrue(blockSize <= mMaxBlockSize);
+            mBlockSizes.add(blockSize);
+            assertEquals(expectedRateCode(), sampleRateCode);
+            final int headerEnd = mBitPosition / 8;
+            assertEquals("CRC-8", crc8(mData, start, headerEnd), readBits(8));
+            readSubframe(blockSize);
+            if (mBitPosition % 8 != 0) {
+                assertEquals(0, readBits(8 - mBitPosition % 8));
+            }
+            final int frameEnd = mBitPosition / 8;
+            assertEquals("CRC-16", crc16(mData, start, frameEnd), readBits(16));
+        }
+
+        private void readSubframe(int blockSize) {
+            assertEquals(0, readBits(1));
+            final int type = readBits(6);
+            assertEquals(0, readBits(1));
+            mSubframeTypes.add(type);
+            final int[] x = new int[blockSize];
+            if (type == SUBFRAME_CONSTANT) {
+                Arrays.fill(x, readSigned(16));
+            } else if (type == SUBFRAME_VERBATIM) {
+                for (int i = 0; i < blockSize; i++) {
+                    x[i] = readSigned(16);
+                }
+            } else {
+                assertTrue("subframe type " + type,
+                        type >= SUBFRAME_FIXED && type <= SUBFRAME_FIXED + 4);
+                final int order = type - SUBFRAME_FIXED;
+                for (int i = 0; i < order; i++) {
+                    x[i] = readSigned(16);
+                }
+                readResidual(x, order);
+                for (int i = order; i < blockSize; i++) {
+                    x[i] += predict(x, i, order);
+                }
+            }
+            for (int sample : x) {
+                assertEquals(sample, (short) sample);
+                mSamples.add((short) sample);
+            }
+        }
+
+        private void readResidual(int[] x, int order) {
+            assertEquals(0, readBits(2));
+            final int partitionOrder = readBits(4);
+            final int partitions = 1 << partitionOrder;
+            assertEquals(0, x.length % partitions);
+            final int partitionSize = x.length / partitions;
+            int i = order;
+            for (int partition = 0; partition < partitions; partition++) {
+                final int parameter = readBits(4);
+                final int end = (partition + 1) * partitionSize;
+                if (parameter == 15) {
+                    final int bits = readBits(5);
+                    for (; i < end; i++) {
+                        x[i] = bits == 0 ? 0 : readSigned(bits);
+                    }
+                    continue;
+                }
+                for (; i < end; i++) {
+                    int quotient = 0;
+                    while (readBits(1) == 0) {
+                        quotient++;
+                    }
+                    final int folded = quotient << parameter | readBits(parameter);
+                    x[i] = (folded >>> 1) ^ -(folded & 1);
+                }
+            }
+        }
+
+        private static int predict(int[] x, int i, int order) {
+            switch (order) {
+                case 0:
+                    return 0;
+                case 1:
+                    return x[i - 1];
+                case 2:
+                    return 2 * x[i - 1] - x[i - 2];
+                case 3:
+                    return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                default:
+                    return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+            }
+        }
+
+        private int expectedRateCode() {
+            switch (mSampleRate) {
+                case 8000:
+                    return 4;
+                case 16000:
+                    return 5;
+                case 22050:
+                    return 6;
+                case 24000:
+                    return 7;
+                case 32000:
+                    return 8;
+                case 44100:
+                    return 9;
+                case 48000:
+                    return 10;
+                default:
+                    return 0;
+            }
+        }
+
+        private long readUtf8() {
+            final int first = readBits(8);
+            if ((first & 0x80) == 0) {
+                return first;
+            }
+            int bytes = Integer.numberOfLeadingZeros(~first << 24);
+            assertTrue(bytes >= 2 && bytes <= 7);
+            long value = first & (0x7F >> bytes);
+            for (int i = 1; i < bytes; i++) {
+                final int next = readBits(8);
+                assertEquals(0x80, next & 0xC0);
+                value = value << 6 | next & 0x3F;
+            }
+            return value;
+        }
+
+        private int readSigned(int count) {
+            return readBits(count) << (32 - count) >> (32 - count);
+        }
+
+        private int readBits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                final int bit = mData[mBitPosition >> 3] >> (7 - (mBitPosition & 7)) & 1;
+                value = value << 1 | bit;
+                mBitPosition++;
+            }
+            return value;
+        }
+
+        /**
+         * CRC-8 with polynomial x^8 + x^2 + x + 1, bit by bit.
+         */
+        static int crc8(byte[] data, int start, int end) {
+            int crc = 0;
+            for (int i = start; i < end; i++) {
+                crc ^= data[i] & 0xFF;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 0x80) != 0 ? (crc << 1 ^ 0x07) & 0xFF : crc << 1 & 0xFF;
+                }
+            }
+            return crc;
+        }
+
+        /**
+         * CRC-16 with polynomial x^16 + x^15 + x^2 + 1, bit by bit.
+         */
+        static int crc16(byte[] data, int start, int end) {
+            int crc = 0;
+            for (int i = start; i < end; i++) {
+                crc ^= (data[i] & 0xFF) << 8;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 0x8000) != 0 ? (crc << 1 ^ 0x8005) & 0xFFFF : crc << 1 & 0xFFFF;
+                }
+            }
+            return crc;
+        }
+
+    }
+
+}
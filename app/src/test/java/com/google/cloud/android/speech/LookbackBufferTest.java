@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class LookbackBufferTest {
+
+    @Test
+    public void capacityIsWholeSamples() {
+        assertEquals(12800, new LookbackBuffer(16000 * 2 * 400 / 1000).capacity());
+        assertEquals(6, new LookbackBuffer(7).capacity());
+        assertEquals(0, new LookbackBuffer(1).capacity());
+    }
+
+    @Test
+    public void keepsEverythingUntilFull() {
+        final LookbackBuffer buffer = new LookbackBuffer(10);
+        buffer.write(bytes(0, 4), 4);
+        buffer.write(bytes(4, 4), 4);
+        assertEquals(8, buffer.size());
+        final byte[] out = new byte[10];
+        assertEquals(8, buffer.drainTo(out));
+        assertArrayEquals(bytes(0, 8), Arrays.copyOf(out, 8));
+    }
+
+    @Test
+    public void keepsOnlyTheMostRecentAudio() {
+        final LookbackBuffer buffer = new LookbackBuffer(10);
+        buffer.write(bytes(0, 6), 6);
+        buffer.write(bytes(6, 6), 6);
+        buffer.write(bytes(12, 2), 2);
+        assertEquals(10, buffer.size());
+        final byte[] out = new byte[10];
+        assertEquals(10, buffer.drainTo(out));
+        assertArrayEquals(bytes(4, 10), out);
+    }
+
+    @Test
+    public void writeLargerThanCapacityKeepsItsTail() {
+        final LookbackBuffer buffer = new LookbackBuffer(10);
+        buffer.write(bytes(0, 3), 3);
+        buffer.write(bytes(3, 25), 25);
+        final byte[] out = new byte[10];
+        assertEquals(10, buffer.drainTo(out));
+        assertArrayEquals(bytes(18, 10), out);
+    }
+
+    @Test
+    public void wrapsAroundLikeATailOfTheStream() {
+        final Random random = new Random(42);
+        final LookbackBuffer buffer = new LookbackBuffer(1000);
+        final byte[] out = new byte[buffer.capacity()];
+        int position = 0;
+        for (int round = 0; round < 50; round++) {
+            final int writes = 1 + random.nextInt(20);
+            int written = 0;
+            for (int i = 0; i < writes; i++) {
+                final int size = random.nextInt(400);
+                buffer.write(bytes(position, size), size);
+                position += size;
+                written += size;
+            }
+            final int expected = Math.min(written, buffer.capacity());
+            assertEquals(expected, buffer.size());
+            assertEquals(expected, buffer.drainTo(out));
+            assertArrayEquals(bytes(position - expected, expected), Arrays.copyOf(out, expected));
+            assertEquals(0, buffer.size());
+        }
+    }
+
+    @Test
+    public void drainEmptiesTheBuffer() {
+        final LookbackBuffer buffer = new LookbackBuffer(10);
+        buffer.write(bytes(0, 8), 8);
+        final byte[] out = new byte[10];
+        buffer.drainTo(out);
+        assertEquals(0, buffer.drainTo(out));
+        buffer.write(bytes(8, 4), 4);
+        assertEquals(4, buffer.drainTo(out));
+        assertArrayEquals(bytes(8, 4), Arrays.copyOf(out, 4));
+    }
+
+    @Test
+    public void clearForgetsTheAudio() {
+        final LookbackBuffer buffer = new LookbackBuffer(10);
+        buffer.write(bytes(0, 8), 8);
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.drainTo(new byte[10]));
+    }
+
+    @Test
+    public void zeroCapacityKeepsNothing() {
+        final LookbackBuffer buffer = new LookbackBuffer(0);
+        buffer.write(bytes(0, 8), 8);
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.drainTo(new byte[0]));
+    }
+
+    /**
+     * @return {@code size} bytes of a stream whose byte {@code i} is {@code (byte) i}, starting at
+     * {@code start}.
+     */
+    private static byte[] bytes(int start, int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (start + i);
+        }
+        return data;
+    }
+
+}
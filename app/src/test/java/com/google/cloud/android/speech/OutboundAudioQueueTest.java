@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1beta1.StreamingRecognizeRequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.grpc.stub.CallStreamObserver;
+
+
+public class OutboundAudioQueueTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    /** 100 ms at 16 kHz. */
+    private static final int LIMIT_MILLIS = 100;
+
+    @Test
+    public void sendsStraightAwayWhileTheCallIsReady() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall call = new FakeCall(true);
+        queue.start(call, SAMPLE_RATE);
+        assertTrue(queue.send(audio(1, 1000), 1000));
+        assertTrue(queue.send(audio(2, 1000), 1000));
+        assertEquals(Arrays.asList(1, 2), call.firstBytes());
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(0, queue.getMaxQueueDepth());
+    }
+
+    @Test
+    public void queuesACopyWhileTheCallIsNotReady() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall call = new FakeCall(false);
+        queue.start(call, SAMPLE_RATE);
+        final byte[] data = audio(1, 1000);
+        assertTrue(queue.send(data, 1000));
+        // The caller reuses its buffer right away.
+        Arrays.fill(data, (byte) 9);
+        assertTrue(queue.send(audio(2, 500), 500));
+        assertEquals(0, call.mAudio.size());
+        assertEquals(2, queue.getQueueDepth());
+        call.mReady = true;
+        queue.onReady(call);
+        assertEquals(Arrays.asList(1, 2), call.firstBytes());
+        assertArrayEquals(audio(1, 1000), call.mAudio.get(0));
+        assertEquals(500, call.mAudio.get(1).length);
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(2, queue.getMaxQueueDepth());
+    }
+
+    @Test
+    public void queuedAudioGoesFirst() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall call = new FakeCall(false);
+        queue.start(call, SAMPLE_RATE);
+        queue.send(audio(1, 100), 100);
+        call.mReady = true;
+        // Ready, but nobody told the queue yet.
+        queue.send(audio(2, 100), 100);
+        assertEquals(Arrays.asList(1, 2), call.firstBytes());
+    }
+
+    @Test
+    public void dropOldestKeepsTheFirstMessage() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall call = new FakeCall(false);
+        queue.start(call, SAMPLE_RATE);
+        for (int i = 0; i <= 10; i++) {
+            assertTrue(queue.send(audio(i, 1000), 1000));
+        }
+        assertEquals(8, queue.getOverloads());
+        assertEquals(8, queue.getDroppedFrames());
+        assertEquals(3, queue.getQueueDepth());
+        call.mReady = true;
+        queue.onReady(call);
+        // The first message may carry a stream header; the rest is the most recent audio.
+        assertEquals(Arrays.asList(0, 9, 10), call.firstBytes());
+        assertFalse(call.mCompleted);
+    }
+
+    @Test
+    public void dropOldestKeepsAudioOnceTheFirstMessageIsOut() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall call = new FakeCall(true);
+        queue.start(call, SAMPLE_RATE);
+        queue.send(audio(0, 1000), 1000);
+        call.mReady = false;
+        for (int i = 1; i <= 10; i++) {
+            queue.send(audio(i, 1000), 1000);
+        }
+        call.mReady = true;
+        queue.onReady(call);
+        assertEquals(Arrays.asList(0, 8, 9, 10), call.firstBytes());
+        assertEquals(7, queue.getDroppedFrames());
+    }
+
+    @Test
+    public void endUtteranceCompletesTheCallOnOverflow() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.END_UTTERANCE);
+        final FakeCall call = new FakeCall(false);
+        queue.start(call, SAMPLE_RATE);
+        assertTrue(queue.send(audio(0, 1000), 1000));
+        assertTrue(queue.send(audio(1, 1000), 1000));
+        assertTrue(queue.send(audio(2, 1000), 1000));
+        assertFalse(queue.send(audio(3, 1000), 1000));
+        assertEquals(1, queue.getOverloads());
+        // Anything after the overflow is dropped.
+        assertTrue(queue.send(audio(4, 1000), 1000));
+        assertFalse(call.mCompleted);
+        call.mReady = true;
+        queue.onReady(call);
+        assertEquals(Arrays.asList(0, 1, 2), call.firstBytes());
+        assertTrue(call.mCompleted);
+    }
+
+    @Test
+    public void overloadPolicyTakesEffectRightAway() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall call = new FakeCall(false);
+        queue.start(call, SAMPLE_RATE);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.send(audio(i, 1000), 1000));
+        }
+        queue.setOverloadPolicy(OutboundAudioQueue.Overload.END_UTTERANCE);
+        assertFalse(queue.send(audio(4, 1000), 1000));
+    }
+
+    @Test
+    public void completeWithFlushSendsTheQueueFirst() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall call = new FakeCall(false);
+        queue.start(call, SAMPLE_RATE);
+        queue.send(audio(1, 100), 100);
+        queue.complete(true);
+        assertFalse(call.mCompleted);
+        call.mReady = true;
+        queue.onReady(call);
+        assertEquals(Arrays.asList(1), call.firstBytes());
+        assertTrue(call.mCompleted);
+        assertEquals(1, call.mCompletions);
+    }
+
+    @Test
+    public void completeWithoutFlushDropsTheQueue() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall call = new FakeCall(false);
+        queue.start(call, SAMPLE_RATE);
+        queue.send(audio(1, 100), 100);
+        queue.complete(false);
+        assertTrue(call.mCompleted);
+        assertEquals(0, call.mAudio.size());
+        assertEquals(0, queue.getQueueDepth());
+        // Nothing more goes to a completed call.
+        call.mReady = true;
+        queue.send(audio(2, 100), 100);
+        queue.onReady(call);
+        assertEquals(0, call.mAudio.size());
+    }
+
+    @Test
+    public void startMovesOnAndHalfClosesThePreviousCall() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall first = new FakeCall(false);
+        queue.start(first, SAMPLE_RATE);
+        for (int i = 0; i < 6; i++) {
+            queue.send(audio(i, 1000), 1000);
+        }
+        final FakeCall second = new FakeCall(false);
+        queue.start(second, SAMPLE_RATE);
+        assertTrue(first.mCompleted);
+        assertEquals(0, queue.getOverloads());
+        assertEquals(0, queue.getMaxQueueDepth());
+        // A late ready of the previous call is ignored.
+        first.mReady = true;
+        queue.onReady(first);
+        assertEquals(0, first.mAudio.size());
+        // The new call starts with a fresh first message.
+        for (int i = 10; i <= 14; i++) {
+            queue.send(audio(i, 1000), 1000);
+        }
+        second.mReady = true;
+        queue.onReady(second);
+        assertEquals(Arrays.asList(10, 13, 14), second.firstBytes());
+    }
+
+    @Test
+    public void limitScalesWithTheSampleRate() {
+        final OutboundAudioQueue queue = new OutboundAudioQueue(LIMIT_MILLIS,
+                OutboundAudioQueue.Overload.DROP_OLDEST);
+        final FakeCall call = new FakeCall(false);
+        // 100 ms at 48 kHz is 9600 bytes.
+        queue.start(call, 48000);
+        for (int i = 0; i < 9; i++) {
+            queue.send(audio(i, 1000), 1000);
+        }
+        assertEquals(0, queue.getOverloads());
+        queue.send(audio(9, 1000), 1000);
+        assertEquals(1, queue.getOverloads());
+    }
+
+    /**
+     * @return {@code size} bytes of {@code value}.
+     */
+    private static byte[] audio(int value, int size) {
+        final byte[] data = new byte[size];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    /**
+     * The requests of a call whose readiness the test controls.
+     */
+    private static class FakeCall extends CallStreamObserver<StreamingRecognizeRequest> {
+
+        final List<byte[]> mAudio = new ArrayList<>();
+
+        boolean mReady;
+
+        boolean mCompleted;
+
+        int mCompletions;
+
+        FakeCall(boolean ready) {
+            mReady = ready;
+        }
+
+        /**
+         * @return The first byte of each audio message, which the tests use to tell them apart.
+         */
+        List<Integer> firstBytes() {
+            final List<Integer> values = new ArrayList<>();
+            for (byte[] audio : mAudio) {
+                values.add((int) audio[0]);
+            }
+            return values;
+        }
+
+        @Override
+        public boolean isReady() {
+            return mReady;
+        }
+
+        @Override
+        public void onNext(StreamingRecognizeRequest request) {
+            if (mCompleted) {
+                throw new IllegalStateException("Call already half-closed");
+            }
+            // The request may share the sender's buffer, as on the wire it is serialized now.
+            mAudio.add(request.getAudioContent().toByteArray());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+            mCompleted = true;
+            mCompletions++;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+        }
+
+        @Override
+        public void request(int count) {
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+        }
+
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+
+public class PolyphaseResamplerTest {
+
+    private static final int AMPLITUDE = 16000;
+
+    @Test
+    public void outputLengthFollowsTheRatio() {
+        final int[][] rates = {{44100, 16000}, {48000, 16000}, {22050, 16000}, {8000, 16000},
+                {11025, 16000}, {16000, 16000}, {16000, 44100}};
+        for (int[] pair : rates) {
+            final int samples = pair[0];
+            final byte[] output = resample(pair[0], pair[1], tone(pair[0], 440, samples),
+                    new int[]{samples});
+            assertEquals(pair[0] + " -> " + pair[1], expectedOutput(pair[0], pair[1], samples),
+                    output.length / 2);
+        }
+    }
+
+    @Test
+    public void oddBufferSizesMakeTheSameAudio() {
+        final int samples = 44100;
+        final byte[] input = tone(44100, 1000, samples);
+        final byte[] whole = resample(44100, 16000, input, new int[]{samples});
+        final int[][] splits = {{1}, {3}, {7, 1}, {147}, {441}, {1001, 13}, {2, 4411, 5}};
+        for (int[] split : splits) {
+            final byte[] splitOutput = resample(44100, 16000, input, split);
+            assertArrayEquals(Arrays.toString(split), whole, splitOutput);
+        }
+    }
+
+    @Test
+    public void eachCallStaysWithinItsBounds() {
+        final PolyphaseResampler resampler = new PolyphaseResampler(44100, 16000);
+        final byte[] input = tone(44100, 1000, 4410);
+        final byte[] output = new byte[2 * resampler.getMaxOutput(4410)];
+        int offset = 0;
+        int produced = 0;
+        for (int size = 1; offset < 4410; size += 2) {
+            final int samples = Math.min(size, 4410 - offset);
+            final int bytes = resampler.process(input, 2 * offset, 2 * samples, output, 0);
+            assertTrue(bytes / 2 <= resampler.getMaxOutput(samples));
+            offset += samples;
+            produced += bytes / 2;
+        }
+        assertEquals(expectedOutput(44100, 16000, 4410), produced);
+    }
+
+    @Test
+    public void maxInputMakesAtMostTheOutputAskedFor() {
+        final PolyphaseResampler resampler = new PolyphaseResampler(44100, 16000);
+        final byte[] input = tone(44100, 1000, 44100);
+        final byte[] output = new byte[2 * resampler.getMaxOutput(44100)];
+        int offset = 0;
+        for (int wanted = 1; wanted < 300; wanted += 7) {
+            final int samples = resampler.getMaxInput(wanted);
+            final int bytes = resampler.process(input, 2 * offset, 2 * samples, output, 0);
+            assertTrue(wanted + ": " + bytes / 2, bytes / 2 <= wanted);
+            // One more sample would have made one more output.
+            assertTrue(wanted + ": " + bytes / 2, bytes / 2 >= wanted - 1);
+            offset += samples;
+        }
+    }
+
+    @Test
+    public void passbandKeepsItsLevel() {
+        final int[][] rates = {{44100, 16000}, {48000, 16000}, {22050, 16000}, {8000, 16000},
+                {16000, 16000}};
+        final int[] frequencies = {100, 1000, 3000, 6000};
+        for (int[] pair : rates) {
+            for (int frequency : frequencies) {
+                if (frequency > 0.8 * Math.min(pair[0], pair[1]) / 2) {
+                    continue;
+                }
+                final double gain = gain(pair[0], pair[1], frequency);
+                assertEquals(pair[0] + " -> " + pair[1] + " at " + frequency + " Hz",
+                        1.0, gain, 0.02);
+            }
+        }
+    }
+
+    @Test
+    public void stopbandDoesNotAlias() {
+        // Above the output's Nyquist frequency, these would fold back into the speech band.
+        final int[][] cases = {{44100, 12000}, {44100, 20000}, {48000, 9000}, {48000, 15000},
+                {22050, 10000}};
+        for (int[] c : cases) {
+            final byte[] output = resample(c[0], 16000, tone(c[0], c[1], c[0]), new int[]{c[0]});
+            final double level = rms(output) / (AMPLITUDE / Math.sqrt(2));
+            assertTrue(c[0] + " Hz at " + c[1] + " Hz: " + decibels(level) + " dB",
+                    decibels(level) < -60);
+        }
+    }
+
+    @Test
+    public void upsamplingRejectsImages() {
+        // 1 kHz at 8 kHz has images at 7 and 9 kHz, which upsampling must not let through.
+        final byte[] output = resample(8000, 16000, tone(8000, 1000, 8000), new int[]{8000});
+        final double wanted = amplitude(output, 16000, 1000);
+        final double image = Math.max(amplitude(output, 16000, 7000),
+                amplitude(output, 16000, 9000));
+        assertTrue(decibels(image / wanted) + " dB", decibels(image / wanted) < -60);
+    }
+
+    @Test
+    public void resetStartsOver() {
+        final PolyphaseResampler resampler = new PolyphaseResampler(44100, 16000);
+        final byte[] input = tone(44100, 1000, 4410);
+        final byte[] first = new byte[2 * resampler.getMaxOutput(4410)];
+        final int size = resampler.process(input, 0, input.length, first, 0);
+        resampler.process(tone(44100, 300, 777), 0, 2 * 777, new byte[2000], 0);
+        resampler.reset();
+        final byte[] second = new byte[first.length];
+        assertEquals(size, resampler.process(input, 0, input.length, second, 0));
+        assertArrayEquals(first, second);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadRates() {
+        new PolyphaseResampler(0, 16000);
+    }
+
+    /**
+     * @return The number of output samples of {@code samples} input samples: one for each output
+     * time before the end of the input.
+     */
+    private static int expectedOutput(int inputRate, int outputRate, int samples) {
+        final int gcd = gcd(inputRate, outputRate);
+        final long up = outputRate / gcd;
+        final long down = inputRate / gcd;
+        return (int) ((samples * up + down - 1) / down);
+    }
+
+    /**
+     * @return The gain of a tone at {@code frequency} going from {@code inputRate} to
+     * {@code outputRate}.
+     */
+    private static double gain(int inputRate, int outputRate, int frequency) {
+        // One second of it.
+        final byte[] output = resample(inputRate, outputRate,
+                tone(inputRate, frequency, inputRate), new int[]{inputRate});
+        return amplitude(output, outputRate, frequency) / AMPLITUDE;
+    }
+
+    /**
+     * Resamples {@code input} in calls of the given sizes in samples, repeating the last size.
+     */
+    private static byte[] resample(int inputRate, int outputRate, byte[] input, int[] sizes) {
+        final PolyphaseResampler resampler = new PolyphaseResampler(inputRate, outputRate);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int samples = input.length / 2;
+        int offset = 0;
+        for (int i = 0; offset < samples; i++) {
+            final int size = Math.min(sizes[Math.min(i, sizes.length - 1)], samples - offset);
+            final byte[] output = new byte[2 * resampler.getMaxOutput(size)];
+            final int bytes = resampler.process(input, 2 * offset, 2 * size, output, 0);
+            out.write(output, 0, bytes);
+            offset += size;
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] tone(int sampleRate, double frequency, int samples) {
+        final byte[] data = new byte[2 * samples];
+        for (int i = 0; i < samples; i++) {
+            final int sample = (int) Math.round(
+                    AMPLITUDE * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+            data[2 * i] = (byte) sample;
+            data[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return data;
+    }
+
+    /**
+     * @return The amplitude of the component at {@code frequency}, leaving out the filter's
+     * start-up at either end.
+     */
+    private static double amplitude(byte[] audio, int sampleRate, double frequency) {
+        final int samples = audio.length / 2;
+        final int margin = samples / 10;
+        double sin = 0;
+        double cos = 0;
+        for (int i = margin; i < samples - margin; i++) {
+            final double angle = 2 * Math.PI * frequency * i / sampleRate;
+            final int sample = sample(audio, i);
+            sin += sample * Math.sin(angle);
+            cos += sample * Math.cos(angle);
+        }
+        return 2 * Math.sqrt(sin * sin + cos * cos) / (samples - 2 * margin);
+    }
+
+    private static double rms(byte[] audio) {
+        final int samples = audio.length / 2;
+        final int margin = samples / 10;
+        double sum = 0;
+        for (int i = margin; i < samples - margin; i++) {
+            final int sample = sample(audio, i);
+            sum += (double) sample * sample;
+        }
+        return Math.sqrt(sum / (samples - 2 * margin));
+    }
+
+    private static int sample(byte[] audio, int i) {
+        return (short) ((audio[2 * i] & 0xFF) | (audio[2 * i + 1] << 8));
+    }
+
+    private static double decibels(double ratio) {
+        return 20 * Math.log10(ratio);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.speech.v1beta1.SpeechGrpc;
+import com.google.cloud.speech.v1beta1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1beta1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1beta1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1beta1.StreamingRecognizeResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+
+public class StreamingRecognizerTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    /** A whole message of LINEAR16, so that it is sent right away. */
+    private static final byte[] MESSAGE = new byte[SAMPLE_RATE * 2
+            * StreamingCalls.CHUNK_MILLIS / 1000];
+
+    private final BlockingQueue<Stream> mStreams = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<Integer> mStops = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<String> mResults = new LinkedBlockingQueue<>();
+
+    private ScheduledExecutorService mTimer;
+
+    private Server mServer;
+
+    private ManagedChannel mChannel;
+
+    private StreamingRecognizer mRecognizer;
+
+    @Before
+    public void setUp() throws Exception {
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mServer = InProcessServerBuilder.forName("StreamingRecognizerTest")
+                .addService(new SpeechGrpc.SpeechImplBase() {
+                    @Override
+                    public StreamObserver<StreamingRecognizeRequest> streamingRecognize(
+                            StreamObserver<StreamingRecognizeResponse> responses) {
+                        final Stream stream = new Stream(responses);
+                        mStreams.add(stream);
+                        return stream;
+                    }
+                }).build().start();
+        mChannel = InProcessChannelBuilder.forName("StreamingRecognizerTest").build();
+        mRecognizer = new StreamingRecognizer(mTimer, new StreamingRecognizer.Listener() {
+            @Override
+            public void onSpeechRecognized(String text, boolean isFinal, int utterance) {
+                mResults.add(utterance + ":" + text);
+            }
+
+            @Override
+            public void stopVoiceRecorder(int utterance) {
+                mStops.add(utterance);
+            }
+
+            @Override
+            public void onStreamEnded(int utterance, Throwable error) {
+            }
+        }, null);
+        mRecognizer.setChannel(mChannel);
+        mRecognizer.setUpstreamEncoding(UpstreamEncoding.LINEAR16);
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.shutdownNow();
+        mServer.shutdownNow();
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void endOfSpeechHalfClosesTheCurrentStream() throws InterruptedException {
+        assertTrue(mRecognizer.startRecognizing(SAMPLE_RATE, 1));
+        final Stream stream = nextStream();
+        mRecognizer.recognize(MESSAGE, MESSAGE.length);
+        assertTrue(stream.awaitAudio());
+        stream.respond(StreamingRecognizeResponse.EndpointerType.END_OF_SPEECH, "");
+
+        assertEquals(Integer.valueOf(1), mStops.poll(5, TimeUnit.SECONDS));
+        assertTrue(stream.mHalfClosed.await(5, TimeUnit.SECONDS));
+        // The recorder ending the utterance afterwards finds nothing left to finish.
+        assertFalse(mRecognizer.finishRecognizing());
+    }
+
+    @Test
+    public void endOfSpeechOfAnEarlierStreamLeavesTheCurrentOneAlone()
+            throws InterruptedException {
+        assertTrue(mRecognizer.startRecognizing(SAMPLE_RATE, 1));
+        final Stream first = nextStream();
+        mRecognizer.recognize(MESSAGE, MESSAGE.length);
+        assertTrue(first.awaitAudio());
+        assertTrue(mRecognizer.finishRecognizing());
+        assertTrue(mRecognizer.startRecognizing(SAMPLE_RATE, 2));
+        final Stream second = nextStream();
+
+        // The endpointer of the first stream hears the end of its speech only now.
+        first.respond(StreamingRecognizeResponse.EndpointerType.END_OF_SPEECH, "late");
+        assertEquals("1:late", mResults.poll(5, TimeUnit.SECONDS));
+        assertNull(mStops.poll());
+
+        // The second stream is still open, and its utterance goes on.
+        mRecognizer.recognize(MESSAGE, MESSAGE.length);
+        assertTrue(second.awaitAudio());
+        assertEquals(1, second.mHalfClosed.getCount());
+        assertTrue(mRecognizer.finishRecognizing());
+        assertTrue(second.mHalfClosed.await(5, TimeUnit.SECONDS));
+        assertNull(mStops.poll());
+    }
+
+    private Stream nextStream() throws InterruptedException {
+        final Stream stream = mStreams.poll(5, TimeUnit.SECONDS);
+        assertNotNull(stream);
+        return stream;
+    }
+
+    /**
+     * A stream as the server sees it.
+     */
+    private static class Stream implements StreamObserver<StreamingRecognizeRequest> {
+
+        private final StreamObserver<StreamingRecognizeResponse> mResponses;
+
+        private final BlockingQueue<StreamingRecognizeRequest> mAudio
+                = new LinkedBlockingQueue<>();
+
+        final CountDownLatch mHalfClosed = new CountDownLatch(1);
+
+        Stream(StreamObserver<StreamingRecognizeResponse> responses) {
+            mResponses = responses;
+        }
+
+        /**
+         * @return {@code true} if a message of audio came in.
+         */
+        boolean awaitAudio() throws InterruptedException {
+            return mAudio.poll(5, TimeUnit.SECONDS) != null;
+        }
+
+        /**
+         * Sends the client an endpointer event, with an interim result unless {@code text} is
+         * empty.
+         */
+        void respond(StreamingRecognizeResponse.EndpointerType type, String text) {
+            final StreamingRecognizeResponse.Builder response = StreamingRecognizeResponse
+                    .newBuilder()
+                    .setEndpointerType(type);
+            if (!text.isEmpty()) {
+                response.addResults(StreamingRecognitionResult.newBuilder()
+                        .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                                .setTranscript(text)));
+            }
+            mResponses.onNext(response.build());
+        }
+
+        @Override
+        public void onNext(StreamingRecognizeRequest request) {
+            if (request.getStreamingRequestCase()
+                    == StreamingRecognizeRequest.StreamingRequestCase.AUDIO_CONTENT) {
+                mAudio.add(request);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+            mHalfClosed.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.cloud.android.speech;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+
+/**
+ * Fails the build if the steady-state audio path allocates more than its budget.
+ *
+ * <p>Replays a long recording of utterances and pauses, unpaced, through what MainActivity sets
+ * up: an {@link OpusRecorder} at 44.1 kHz, i.e. with the resampler on the path, whose voice goes
+ * to a {@link StreamingRecognizer}, the send path that ApiFragment streams through. That is done
+ * once for every {@link UpstreamController.Level}, and each level runs twice: with threads of the
+ * recorder's own, and as a recorder of a RecorderEngine, where voice detection and the encoder
+ * take turns on the workers of a {@link WorkerPool} that the capture thread schedules. The Opus
+ * encoder and the gRPC channel are stand-ins that allocate nothing. After a warm-up, the bytes
+ * each thread allocates are read from the JVM and compared with the budget for the captured
+ * buffers processed, the requests sent and the streams started meanwhile.</p>
+ *
+ * <p>Escape analysis should be off ({@code -XX:-DoEscapeAnalysis}), as ART does not have it:
+ * otherwise short-lived objects that the device does allocate may not show.</p>
+ *
+ * <pre>
+ *   ./gradlew :benchmark:checkAllocationBudget
+ * </pre>
+ */
+public final class AllocationBudget {
+
+    /** A device that cannot record at 16 kHz, so that the resampler is on the path too. */
+    private static final int DEVICE_RATE = 44100;
+
+    private static final int SAMPLE_RATE = 16000;
+
+    /** Longer than the speech timeout of CaptureSession, so that every utterance ends. */
+    private static final int VOICE_MILLIS = 3000;
+
+    private static final int PAUSE_MILLIS = 2000;
+
+    private static final int REPLAY_SECONDS = 180;
+
+    /** Pools, JIT and per-session buffers settle in this much audio. */
+    private static final int WARM_UP_SECONDS = 40;
+
+    private static final int MEASURE_SECONDS = 120;
+
+    /**
+     * Between the round trips that {@link UpstreamController} takes for a clean and for a
+     * congested uplink, so that it holds the level it starts at.
+     */
+    private static final long PING_MILLIS = 500;
+
+    private static final String CAPTURE_THREAD = "AllocationBudget-capture";
+
+    private static final String VOICE_THREAD = "CaptureSession-voice";
+
+    private static final String ENCODER_THREAD = "CaptureSession-encoder";
+
+    /** The workers of a RecorderEngine, which needs Android itself; its pool is named so. */
+    private static final String ENGINE = "RecorderEngine";
+
+    /** Every worker of the engine, which a session's tasks may land on; ends in a dash. */
+    private static final String WORKER_THREADS = ENGINE + "-worker-";
+
+    /**
+     * The bytes each request of audio may allocate: the request and the ByteString over its
+     * audio, which gRPC holds on to until it is serialized, 72 bytes; see
+     * {@link StreamingRequests.AudioRequests}. A request carries about 100 ms of voice, so that
+     * is some 18 bytes per buffer of voice.
+     */
+    private static final int REQUEST_BYTES = 72;
+
+    /**
+     * The bytes each stream may allocate, once per utterance: the gRPC call and what observes it,
+     * and its first request with the configuration. Some 1100 bytes are measured.
+     */
+    private static final int STREAM_BYTES = 1536;
+
+    /**
+     * The bytes a thread may allocate per captured buffer of 40 ms, on average, besides the
+     * requests and the streams, and whether it sends those.
+     *
+     * <p>The capture and encoder threads must not allocate at all; the JVM itself allocates a few
+     * hundred bytes on them per run, e.g. when it deoptimizes, so they get half a byte per buffer,
+     * which a single object per second exceeds. The voice thread gets the same, and
+     * {@link #REQUEST_BYTES} and {@link #STREAM_BYTES} on top.</p>
+     */
+    private static final Object[][] BUDGETS = {
+            {CAPTURE_THREAD, 0.5, false},
+            {VOICE_THREAD, 0.5, true},
+            {ENCODER_THREAD, 0.5, false},
+    };
+
+    /**
+     * The same, for a recorder of a RecorderEngine. The capture thread also schedules the tasks,
+     * which must not allocate; the workers together get what the voice and encoder threads do.
+     */
+    private static final Object[][] ENGINE_BUDGETS = {
+            {CAPTURE_THREAD, 0.5, false},
+            {WORKER_THREADS, 1.0, true},
+    };
+
+    private AllocationBudget() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final File replay = File.createTempFile("allocation-budget", ".pcm");
+        replay.deleteOnExit();
+        writeReplay(replay);
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        // As RecorderEngine sets it up for a single session.
+        final WorkerPool engine = new WorkerPool(ENGINE,
+                Runtime.getRuntime().availableProcessors(), 2);
+        boolean failed = false;
+        System.out.println("level       mode     thread                      B/buffer  budget");
+        try {
+            // Once through first, so that no level pays for what is allocated only once.
+            measure(threads, replay, timer, UpstreamController.Level.FULL, null, BUDGETS);
+            measure(threads, replay, timer, UpstreamController.Level.FULL, engine,
+                    ENGINE_BUDGETS);
+            for (UpstreamController.Level level : UpstreamController.Level.values()) {
+                failed |= check(level, "threads", BUDGETS,
+                        measure(threads, replay, timer, level, null, BUDGETS));
+                failed |= check(level, "engine", ENGINE_BUDGETS,
+                        measure(threads, replay, timer, level, engine, ENGINE_BUDGETS));
+            }
+        } finally {
+            timer.shutdownNow();
+            engine.shutdown();
+        }
+        if (failed) {
+            System.err.println("The audio path allocates more than its budget.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints what each thread of {@code budgets} allocated at {@code level}, per captured buffer.
+     *
+     * @return {@code true} if any of them is over its budget.
+     */
+    private static boolean check(UpstreamController.Level level, String mode,
+            Object[][] budgets, Run run) {
+        boolean failed = false;
+        for (int i = 0; i < budgets.length; i++) {
+            double budget = (Double) budgets[i][1] * run.mBuffers;
+            if ((Boolean) budgets[i][2]) {
+                budget += (double) REQUEST_BYTES * run.mRequests
+                        + (double) STREAM_BYTES * run.mStreams;
+            }
+            final boolean over = run.mAllocated[i] > budget;
+            failed |= over;
+            System.out.println(String.format(Locale.US, "%-11s %-8s %-26s %9.2f %7.1f%s",
+                    level, mode, budgets[i][0], (double) run.mAllocated[i] / run.mBuffers,
+                    budget / run.mBuffers, over ? "  OVER" : ""));
+        }
+        System.out.println(String.format(Locale.US, "%-11s %-8s %d requests, %d streams",
+                level, mode, run.mRequests, run.mStreams));
+        return failed;
+    }
+
+    /**
+     * Replays the recording once at {@code level}.
+     *
+     * @param workers Runs voice detection and the encoder, or {@code null} for threads of the
+     *                recorder's own.
+     * @return What each thread in {@code budgets} allocated, and for what.
+     */
+    private static Run measure(com.sun.management.ThreadMXBean threads, File replay,
+            ScheduledExecutorService timer, UpstreamController.Level level, WorkerPool workers,
+            Object[][] budgets) throws InterruptedException {
+        final MeteredSource source = new MeteredSource(
+                new FilePcmSource(replay, DEVICE_RATE, 0, 0));
+        final NullChannel channel = new NullChannel(timer);
+        final Client client = new Client(channel, timer, level);
+        final Thread[] capture = new Thread[1];
+        final OpusRecorder recorder = new OpusRecorder("AllocationBudget", client, source,
+                workers, new NullOpusEncoder(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        capture[0] = new Thread(runnable, CAPTURE_THREAD);
+                        return capture[0];
+                    }
+                });
+        recorder.setLossless(true);
+        recorder.setEncoderPolicy(EncoderStage.Policy.BLOCK);
+        client.mRecorder = recorder;
+        recorder.start();
+        final int bytesPerSecond = DEVICE_RATE * 2;
+        try {
+            awaitPosition(source, (long) WARM_UP_SECONDS * bytesPerSecond);
+            final long[] before = allocatedBytes(threads, capture[0], budgets);
+            final long from = source.getPosition();
+            final long requests = channel.mRequests.get();
+            final long streams = channel.mStreams.get();
+            awaitPosition(source, (long) (WARM_UP_SECONDS + MEASURE_SECONDS) * bytesPerSecond);
+            final long[] after = allocatedBytes(threads, capture[0], budgets);
+            final Run run = new Run();
+            run.mBuffers = (source.getPosition() - from) / source.getBufferSize();
+            run.mRequests = channel.mRequests.get() - requests;
+            run.mStreams = channel.mStreams.get() - streams;
+            run.mAllocated = new long[budgets.length];
+            for (int i = 0; i < budgets.length; i++) {
+                run.mAllocated[i] = after[i] - before[i];
+            }
+            return run;
+        } finally {
+            recorder.stop();
+        }
+    }
+
+    private static void awaitPosition(MeteredSource source, long position)
+            throws InterruptedException {
+        while (source.getPosition() < position) {
+            if (source.hasEnded()) {
+                throw new IllegalStateException("The replay ended early");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * @return The bytes allocated so far by each thread in {@code budgets}; a name that ends in
+     * a dash covers every thread it starts, together.
+     */
+    private static long[] allocatedBytes(com.sun.management.ThreadMXBean threads,
+            Thread capture, Object[][] budgets) {
+        final long[] allocated = new long[budgets.length];
+        // Not Thread.getAllStackTraces(): a running thread may walk its own stack for it, and
+        // the stack trace would count against it.
+        final Thread[] all = new Thread[Thread.activeCount() + 8];
+        final int count = Thread.enumerate(all);
+        for (int i = 0; i < budgets.length; i++) {
+            final String name = (String) budgets[i][0];
+            if (name.equals(CAPTURE_THREAD)) {
+                allocated[i] = threads.getThreadAllocatedBytes(capture.getId());
+                continue;
+            }
+            boolean found = false;
+            for (int j = 0; j < count; j++) {
+                final String thread = all[j].getName();
+                if (name.endsWith("-") ? thread.startsWith(name) : thread.equals(name)) {
+                    allocated[i] += threads.getThreadAllocatedBytes(all[j].getId());
+                    found = true;
+                }
+            }
+            if (!found) {
+                throw new IllegalStateException("No thread " + name);
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * Writes raw LINEAR16 at {@link #DEVICE_RATE}: utterances of voice, each followed by a
+     * pause of faint noise.
+     */
+    private static void writeReplay(File file) throws IOException {
+        final int cycleMillis = VOICE_MILLIS + PAUSE_MILLIS;
+        final byte[] voice = Pcm.voice(DEVICE_RATE * 2 * VOICE_MILLIS / 1000, 12000);
+        final byte[] pause = Pcm.noise(DEVICE_RATE * 2 * PAUSE_MILLIS / 1000, 100);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            for (int millis = 0; millis < REPLAY_SECONDS * 1000; millis += cycleMillis) {
+                out.write(voice);
+                out.write(pause);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * What was allocated during one measured replay.
+     */
+    private static class Run {
+
+        /** The captured buffers processed. */
+        long mBuffers;
+
+        long mRequests;
+
+        long mStreams;
+
+        /** The bytes allocated by each thread of the budgets. */
+        long[] mAllocated;
+
+    }
+
+    /**
+     * What MainActivity does with the voice events of the recorder: streams them through a
+     * {@link StreamingRecognizer} at a fixed level, and dismisses an utterance once its stream is
+     * over.
+     */
+    private static class Client extends OpusRecorder.Callback
+            implements StreamingRecognizer.Listener, StreamingRecognizer.Uplink {
+
+        private final StreamingRecognizer mRecognizer;
+
+        volatile OpusRecorder mRecorder;
+
+        Client(Channel channel, ScheduledExecutorService timer, UpstreamController.Level level) {
+            mRecognizer = new StreamingRecognizer(timer, this, this, level);
+            mRecognizer.setChannel(channel);
+        }
+
+        @Override
+        public void onVoiceStart(int utterance) {
+            mRecognizer.startRecognizing(SAMPLE_RATE, utterance);
+        }
+
+        @Override
+        public void onVoice(byte[] data, int size) {
+            mRecognizer.recognize(data, size);
+        }
+
+        @Override
+        public void onVoiceEnd() {
+            mRecognizer.finishRecognizing();
+        }
+
+        @Override
+        public void onSpeechRecognized(String text, boolean isFinal, int utterance) {
+        }
+
+        @Override
+        public void stopVoiceRecorder(int utterance) {
+            mRecorder.dismiss(utterance);
+        }
+
+        @Override
+        public void onStreamEnded(int utterance, Throwable error) {
+        }
+
+        @Override
+        public boolean isMetered() {
+            return false;
+        }
+
+        @Override
+        public long getPingMillis() {
+            return PING_MILLIS;
+        }
+
+    }
+
+    /**
+     * A channel whose calls are always ready, only count what is sent, and complete as soon as
+     * they are half-closed. Calls back on {@code callbacks}, as a channel calls back on its
+     * executor.
+     */
+    private static class NullChannel extends Channel {
+
+        private final Executor mCallbacks;
+
+        final AtomicLong mStreams = new AtomicLong();
+
+        final AtomicLong mRequests = new AtomicLong();
+
+        NullChannel(Executor callbacks) {
+            mCallbacks = callbacks;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
+                MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+            mStreams.incrementAndGet();
+            return new ClientCall<ReqT, RespT>() {
+
+                private Listener<RespT> mListener;
+
+                @Override
+                public void start(final Listener<RespT> listener, Metadata headers) {
+                    mListener = listener;
+                    mCallbacks.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onReady();
+                        }
+                    });
+                }
+
+                @Override
+                public void request(int count) {
+                }
+
+                @Override
+                public void halfClose() {
+                    final Listener<RespT> listener = mListener;
+                    mCallbacks.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onClose(Status.OK, new Metadata());
+                        }
+                    });
+                }
+
+                @Override
+                public void sendMessage(ReqT message) {
+                    mRequests.incrementAndGet();
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+            };
+        }
+
+        @Override
+        public String authority() {
+            return "null";
+        }
+
+    }
+
+}
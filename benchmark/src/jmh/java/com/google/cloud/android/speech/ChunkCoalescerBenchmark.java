@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+
+/**
+ * Measures {@link ChunkCoalescer#write(byte[], int)} for every buffer read from the microphone,
+ * into the 100-millisecond messages that ApiFragment sends. The sink only counts the bytes.
+ */
+@State(Scope.Thread)
+public class ChunkCoalescerBenchmark {
+
+    /** Typical AudioRecord.getMinBufferSize results at 16 kHz, and a buffer above the target. */
+    @Param({"640", "1280", "2048", "3840"})
+    public int bufferSize;
+
+    private ScheduledExecutorService mTimer;
+
+    private ChunkCoalescer mCoalescer;
+
+    private byte[] mBuffer;
+
+    private long mSent;
+
+    @Setup
+    public void setUp() {
+        mBuffer = Pcm.noise(bufferSize, 12000);
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mCoalescer = new ChunkCoalescer(new ChunkCoalescer.Sink() {
+            @Override
+            public void send(byte[] data, int size) {
+                mSent += size;
+            }
+        }, mTimer, 100, 16 * 1024, 200);
+        mCoalescer.start(16000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTimer.shutdownNow();
+    }
+
+    @Benchmark
+    public long write() {
+        mCoalescer.write(mBuffer, bufferSize);
+        return mSent;
+    }
+
+}
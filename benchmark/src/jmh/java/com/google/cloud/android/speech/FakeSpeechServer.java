@@ -0,0 +1,324 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1beta1.RecognitionConfig;
+import com.google.cloud.speech.v1beta1.SpeechGrpc;
+import com.google.cloud.speech.v1beta1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1beta1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1beta1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1beta1.StreamingRecognizeResponse;
+import com.google.cloud.speech.v1beta1.SyncRecognizeRequest;
+import com.google.cloud.speech.v1beta1.SyncRecognizeResponse;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * An in-process stand-in for the Speech API, for driving the client stack without a network.
+ *
+ * <p>Streams get an interim result every few audio messages and a final one after they are
+ * half-closed, each after the response delay. Streams of LINEAR16 also have an endpointer, like
+ * the API's: once {@link #END_OF_SPEECH_MILLIS} of quiet audio follow voice, the stream gets
+ * {@code END_OF_SPEECH}, after the response delay too, so that the client half-closes it without
+ * waiting for its own timeout. Other encodings are not decoded, so they get no endpointer, and
+ * their utterances end on the client's timeout. The uplink can be throttled: the server only asks
+ * for the next request once the last one would have arrived at the given bit rate, so the
+ * client's call stops being ready just as it would on a slow link. {@code syncRecognize} answers
+ * with nothing after the response delay, to time round trips.</p>
+ */
+class FakeSpeechServer extends SpeechGrpc.SpeechImplBase {
+
+    /** The audio messages between interim results. */
+    private static final int MESSAGES_PER_INTERIM = 5;
+
+    /** The RMS level from which a message counts as voice; the floor of OpusRecorder's. */
+    static final int VOICE_RMS = 300;
+
+    /** How much quiet audio after voice is the end of the speech. */
+    static final int END_OF_SPEECH_MILLIS = 250;
+
+    private final String mName;
+
+    private final ScheduledExecutorService mTimer;
+
+    private volatile int mUplinkKbps;
+
+    private volatile long mResponseDelayMillis;
+
+    private volatile String mTranscript = "hello world";
+
+    private final AtomicLong mStreams = new AtomicLong();
+
+    private final AtomicLong mAudioBytes = new AtomicLong();
+
+    private final AtomicLong mAudioMessages = new AtomicLong();
+
+    private final AtomicLong mRequestBytes = new AtomicLong();
+
+    private Server mServer;
+
+    /**
+     * @param name  The name to serve the in-process transport under.
+     * @param timer Runs the delayed responses and the throttle.
+     */
+    FakeSpeechServer(String name, ScheduledExecutorService timer) {
+        mName = name;
+        mTimer = timer;
+    }
+
+    FakeSpeechServer start() throws IOException {
+        mServer = InProcessServerBuilder.forName(mName).addService(this).build().start();
+        return this;
+    }
+
+    void shutdown() {
+        mServer.shutdownNow();
+    }
+
+    /**
+     * @return A new channel to this server.
+     */
+    ManagedChannel newChannel() {
+        return InProcessChannelBuilder.forName(mName).build();
+    }
+
+    /**
+     * Throttles the uplink of the streams to {@code kbps}, or not at all with 0.
+     */
+    void setUplinkKbps(int kbps) {
+        mUplinkKbps = kbps;
+    }
+
+    /**
+     * Delays every response by {@code millis}.
+     */
+    void setResponseDelayMillis(long millis) {
+        mResponseDelayMillis = millis;
+    }
+
+    /**
+     * Sets the transcript of the final results. Interim results show its words so far.
+     */
+    void setTranscript(String transcript) {
+        mTranscript = transcript;
+    }
+
+    long getStreams() {
+        return mStreams.get();
+    }
+
+    long getAudioBytes() {
+        return mAudioBytes.get();
+    }
+
+    long getAudioMessages() {
+        return mAudioMessages.get();
+    }
+
+    /**
+     * @return The serialized size of all the requests of the streams, configuration included; what
+     * the client puts on the wire before framing.
+     */
+    long getRequestBytes() {
+        return mRequestBytes.get();
+    }
+
+    @Override
+    public void syncRecognize(SyncRecognizeRequest request,
+            final StreamObserver<SyncRecognizeResponse> responseObserver) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                responseObserver.onNext(SyncRecognizeResponse.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+        }, mResponseDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public StreamObserver<StreamingRecognizeRequest> streamingRecognize(
+            StreamObserver<StreamingRecognizeResponse> responseObserver) {
+        mStreams.incrementAndGet();
+        final ServerCallStreamObserver<StreamingRecognizeResponse> responses
+                = (ServerCallStreamObserver<StreamingRecognizeResponse>) responseObserver;
+        // Then the first request has to be asked for as well.
+        responses.disableAutoInboundFlowControl();
+        responses.request(1);
+        return new Stream(responses);
+    }
+
+    /**
+     * One streaming call.
+     */
+    private class Stream implements StreamObserver<StreamingRecognizeRequest> {
+
+        private final ServerCallStreamObserver<StreamingRecognizeResponse> mResponses;
+
+        private final Runnable mRequestNext = new Runnable() {
+            @Override
+            public void run() {
+                mResponses.request(1);
+            }
+        };
+
+        private int mMessages;
+
+        /** The sample rate of LINEAR16 audio, or 0 if the stream has no endpointer. */
+        private int mEndpointerRate;
+
+        /** The audio of the last message, decoded for the endpointer. */
+        private byte[] mAudio = new byte[0];
+
+        private boolean mHeardVoice;
+
+        /** The quiet audio since the last voice, in samples. */
+        private long mQuietSamples;
+
+        private boolean mEndOfSpeech;
+
+        /** Whether the responses are over; guarded by the stream. */
+        private boolean mCompleted;
+
+        Stream(ServerCallStreamObserver<StreamingRecognizeResponse> responses) {
+            mResponses = responses;
+        }
+
+        @Override
+        public void onNext(StreamingRecognizeRequest request) {
+            mRequestBytes.addAndGet(request.getSerializedSize());
+            if (request.getStreamingRequestCase()
+                    == StreamingRecognizeRequest.StreamingRequestCase.STREAMING_CONFIG) {
+                final RecognitionConfig config = request.getStreamingConfig().getConfig();
+                if (config.getEncoding() == RecognitionConfig.AudioEncoding.LINEAR16) {
+                    mEndpointerRate = config.getSampleRate();
+                }
+            }
+            final int size = request.getAudioContent().size();
+            if (size > 0) {
+                mAudioBytes.addAndGet(size);
+                mAudioMessages.incrementAndGet();
+                mMessages++;
+                if (mMessages % MESSAGES_PER_INTERIM == 0) {
+                    respond(false, mMessages / MESSAGES_PER_INTERIM, false);
+                }
+                if (mEndpointerRate > 0 && !mEndOfSpeech) {
+                    endpoint(request);
+                }
+            }
+            final int kbps = mUplinkKbps;
+            if (kbps > 0 && size > 0) {
+                // bits / (kbit/s) = milliseconds, kept in microseconds for small messages
+                mTimer.schedule(mRequestNext, (long) size * 8 * 1000 / kbps,
+                        TimeUnit.MICROSECONDS);
+            } else {
+                mResponses.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+            respond(true, Integer.MAX_VALUE, true);
+        }
+
+        /**
+         * Sends {@code END_OF_SPEECH} once the audio has been quiet for long enough after voice.
+         */
+        private void endpoint(StreamingRecognizeRequest request) {
+            final int size = request.getAudioContent().size();
+            if (mAudio.length < size) {
+                mAudio = new byte[size];
+            }
+            request.getAudioContent().copyTo(mAudio, 0);
+            if (Pcm.rms(mAudio, size) >= VOICE_RMS) {
+                mHeardVoice = true;
+                mQuietSamples = 0;
+                return;
+            }
+            mQuietSamples += size / 2;
+            if (!mHeardVoice || mQuietSamples * 1000 < END_OF_SPEECH_MILLIS * mEndpointerRate) {
+                return;
+            }
+            mEndOfSpeech = true;
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Stream.this) {
+                        if (mCompleted || mResponses.isCancelled()) {
+                            return;
+                        }
+                        mResponses.onNext(StreamingRecognizeResponse.newBuilder()
+                                .setEndpointerType(StreamingRecognizeResponse.EndpointerType
+                                        .END_OF_SPEECH)
+                                .build());
+                    }
+                }
+            }, mResponseDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void respond(final boolean isFinal, final int words, final boolean complete) {
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Stream.this) {
+                        if (mCompleted || mResponses.isCancelled()) {
+                            return;
+                        }
+                        mResponses.onNext(StreamingRecognizeResponse.newBuilder()
+                                .addResults(StreamingRecognitionResult.newBuilder()
+                                        .setIsFinal(isFinal)
+                                        .addAlternatives(SpeechRecognitionAlternative.newBuilder()
+                                                .setTranscript(firstWords(words))))
+                                .build());
+                        if (complete) {
+                            mCompleted = true;
+                            mResponses.onCompleted();
+                        }
+                    }
+                }
+            }, mResponseDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    private String firstWords(int count) {
+        final String transcript = mTranscript;
+        int end = -1;
+        for (int i = 0; i < count; i++) {
+            end = transcript.indexOf(' ', end + 1);
+            if (end < 0) {
+                return transcript;
+            }
+        }
+        return transcript.substring(0, end);
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+
+
+/**
+ * Runs more and more concurrent streaming sessions over one channel to a {@link FakeSpeechServer},
+ * and prints how the client stack copes as their number grows.
+ *
+ * <p>Every session is a {@link StreamingClient}, which streams through the
+ * {@link StreamingRecognizer} of ApiFragment, fed with 40 ms buffers of voice in real time: utterances of three seconds,
+ * each followed by a pause of one. The sessions start staggered over one utterance, and share the
+ * channel, the timer and a pool of feeding threads. For each number of sessions it reports:</p>
+ * <ul>
+ * <li>the throughput: audio messages, request bytes and final results per second;</li>
+ * <li>percentiles of the time from the last voice of an utterance to its final result;</li>
+ * <li>the heap per session, measured at the end after a full collection; with few sessions it is
+ * within the noise of a few hundred kilobytes;</li>
+ * <li>the CPU time of the process per second, and how late the feeding fell behind real time at
+ * worst.</li>
+ * </ul>
+ *
+ * <pre>
+ *   ./gradlew :benchmark:loadTest [-Pstreams=1,4,16,64] [-Pseconds=12] [-Pspeed=1]
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    private static final int BUFFER_MILLIS = 40;
+
+    private static final int VOICE_MILLIS = 3000;
+
+    private static final int PAUSE_MILLIS = 1000;
+
+    private static final String USAGE = "Usage: LoadGenerator [--streams n,n,...] [--seconds s]"
+            + " [--speed x] [--response-delay millis] [--encoding LINEAR16|FLAC|MULAW]";
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] streams = {1, 4, 16, 64, 256};
+        int seconds = 12;
+        float speed = 1;
+        long responseDelayMillis = 100;
+        UpstreamEncoding encoding = UpstreamEncoding.LINEAR16;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            final String value = args[i + 1];
+            if ("--streams".equals(args[i])) {
+                final String[] counts = value.split(",");
+                streams = new int[counts.length];
+                for (int j = 0; j < counts.length; j++) {
+                    streams[j] = Integer.parseInt(counts[j].trim());
+                }
+            } else if ("--seconds".equals(args[i])) {
+                seconds = Integer.parseInt(value);
+            } else if ("--speed".equals(args[i])) {
+                speed = Float.parseFloat(value);
+            } else if ("--response-delay".equals(args[i])) {
+                responseDelayMillis = Long.parseLong(value);
+            } else if ("--encoding".equals(args[i])) {
+                encoding = UpstreamEncoding.valueOf(value);
+            } else {
+                throw new IllegalArgumentException(USAGE);
+            }
+        }
+
+        final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2,
+                daemonThreads("LoadGenerator-timer"));
+        final ScheduledExecutorService feeders = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors(), daemonThreads("LoadGenerator-feed"));
+        final FakeSpeechServer server = new FakeSpeechServer("load-generator", timer).start();
+        server.setResponseDelayMillis(responseDelayMillis);
+        final ManagedChannel channel = server.newChannel();
+        final byte[] voice = Pcm.voice(SAMPLE_RATE * 2 * BUFFER_MILLIS / 1000, 12000);
+        System.out.println(String.format(Locale.US, "%s, %.1fx real time, %d s per step,"
+                + " response delay %d ms", encoding, speed, seconds, responseDelayMillis));
+        System.out.println("streams   msgs/s     kB/s  finals/s  p50 ms  p90 ms  p99 ms  max ms"
+                + "  kB/stream  cpu ms/s  lag ms");
+        try {
+            // JIT and the transport settle on a short step first.
+            run(4, 4, speed, encoding, channel, timer, feeders, server, voice);
+            for (int count : streams) {
+                System.out.println(run(count, seconds, speed, encoding, channel, timer,
+                        feeders, server, voice));
+            }
+        } finally {
+            channel.shutdownNow();
+            server.shutdown();
+            feeders.shutdownNow();
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs {@code count} sessions for {@code seconds}, and waits for their last results.
+     *
+     * @return A line of the report.
+     */
+    private static String run(int count, int seconds, float speed, UpstreamEncoding encoding,
+            ManagedChannel channel, ScheduledExecutorService timer,
+            ScheduledExecutorService feeders, FakeSpeechServer server, byte[] voice)
+            throws InterruptedException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final com.sun.management.OperatingSystemMXBean os
+                = (com.sun.management.OperatingSystemMXBean)
+                ManagementFactory.getOperatingSystemMXBean();
+        final long periodNanos = (long) (TimeUnit.MILLISECONDS.toNanos(BUFFER_MILLIS) / speed);
+        final long cycleNanos = periodNanos * ((VOICE_MILLIS + PAUSE_MILLIS) / BUFFER_MILLIS);
+        final long heapBefore = usedHeap(memory);
+        final long messagesBefore = server.getAudioMessages();
+        final long bytesBefore = server.getRequestBytes();
+        final long cpuBefore = os.getProcessCpuTime();
+        final long started = System.nanoTime();
+        final Session[] sessions = new Session[count];
+        final ScheduledFuture<?>[] feeding = new ScheduledFuture<?>[count];
+        for (int i = 0; i < count; i++) {
+            final long offsetNanos = cycleNanos * i / count;
+            sessions[i] = new Session(new StreamingClient(channel, timer, encoding, SAMPLE_RATE),
+                    voice, started + offsetNanos, periodNanos);
+            feeding[i] = feeders.scheduleAtFixedRate(sessions[i], offsetNanos, periodNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        final double elapsedSeconds = (System.nanoTime() - started) / 1e9;
+        final long cpuNanos = os.getProcessCpuTime() - cpuBefore;
+        final long messages = server.getAudioMessages() - messagesBefore;
+        final long bytes = server.getRequestBytes() - bytesBefore;
+        long maxLagNanos = 0;
+        for (Session session : sessions) {
+            maxLagNanos = Math.max(maxLagNanos, session.getMaxLagNanos());
+        }
+        // Last, as the collection stalls the feeding.
+        final long heapDuring = usedHeap(memory);
+        for (int i = 0; i < count; i++) {
+            feeding[i].cancel(false);
+            sessions[i].stop();
+        }
+        long finals = 0;
+        long errors = 0;
+        long[] latencies = new long[0];
+        for (Session session : sessions) {
+            if (!session.mClient.awaitCalls(TimeUnit.SECONDS.toMillis(30))) {
+                throw new IllegalStateException("Calls still open after " + count + " streams");
+            }
+            finals += session.mClient.getFinals();
+            errors += session.mClient.getErrors();
+            final long[] more = session.mClient.getVoiceToFinalNanos();
+            latencies = Arrays.copyOf(latencies, latencies.length + more.length);
+            System.arraycopy(more, 0, latencies, latencies.length - more.length, more.length);
+        }
+        Arrays.sort(latencies);
+        return String.format(Locale.US,
+                "%7d %8.0f %8.0f %9.1f %7.1f %7.1f %7.1f %7.1f %10.1f %9.0f %7.1f%s",
+                count, messages / elapsedSeconds, bytes / 1024.0 / elapsedSeconds,
+                finals / elapsedSeconds, millisAt(latencies, 0.5), millisAt(latencies, 0.9),
+                millisAt(latencies, 0.99), millisAt(latencies, 1),
+                (heapDuring - heapBefore) / 1024.0 / count, cpuNanos / 1e6 / elapsedSeconds,
+                maxLagNanos / 1e6, errors > 0 ? "  " + errors + " errors" : "");
+    }
+
+    /**
+     * @return The heap in use after a full collection, in bytes.
+     */
+    private static long usedHeap(MemoryMXBean memory) {
+        memory.gc();
+        memory.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @param sorted   Durations in nanoseconds, in ascending order.
+     * @param quantile The quantile, from 0 to 1.
+     * @return The nearest-rank value at {@code quantile}, in milliseconds.
+     */
+    private static double millisAt(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * One device: feeds a {@link StreamingClient} one buffer per tick, the way the voice thread of
+     * CaptureSession would.
+     */
+    private static class Session implements Runnable {
+
+        final StreamingClient mClient;
+
+        private final byte[] mVoice;
+
+        private final long mStartedNanos;
+
+        private final long mPeriodNanos;
+
+        private final int mVoiceTicks = VOICE_MILLIS / BUFFER_MILLIS;
+
+        private final int mCycleTicks = (VOICE_MILLIS + PAUSE_MILLIS) / BUFFER_MILLIS;
+
+        private long mTicks;
+
+        private boolean mSpeaking;
+
+        private boolean mStopped;
+
+        private long mMaxLagNanos;
+
+        Session(StreamingClient client, byte[] voice, long startedNanos, long periodNanos) {
+            mClient = client;
+            mVoice = voice;
+            mStartedNanos = startedNanos;
+            mPeriodNanos = periodNanos;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (mStopped) {
+                return;
+            }
+            final long lag = System.nanoTime() - (mStartedNanos + mTicks * mPeriodNanos);
+            mMaxLagNanos = Math.max(mMaxLagNanos, lag);
+            final boolean voice = mTicks % mCycleTicks < mVoiceTicks;
+            mTicks++;
+            if (voice) {
+                if (!mSpeaking) {
+                    mSpeaking = true;
+                    // Numbered as CaptureSession numbers them, so that they are all different.
+                    mClient.onVoiceStart(UtteranceTracer.get().beginUtterance());
+                }
+                // Shared by all the sessions; nothing downstream writes to it.
+                mClient.onVoice(mVoice, mVoice.length);
+            } else if (mSpeaking) {
+                mSpeaking = false;
+                mClient.onVoiceEnd();
+            }
+        }
+
+        /**
+         * Stops feeding, and ends the utterance if one is going on.
+         */
+        synchronized void stop() {
+            mStopped = true;
+            if (mSpeaking) {
+                mSpeaking = false;
+                mClient.onVoiceEnd();
+            }
+        }
+
+        synchronized long getMaxLagNanos() {
+            return mMaxLagNanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Counts the audio read from a {@link PcmSource}, e.g. to follow a replay from another thread,
+ * and can end it early.
+ */
+class MeteredSource implements PcmSource {
+
+    private final PcmSource mSource;
+
+    /** The bytes after which the source ends. */
+    private final long mLimit;
+
+    private volatile long mPosition;
+
+    private volatile boolean mEnded;
+
+    MeteredSource(PcmSource source) {
+        this(source, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param limit The bytes after which the source ends, even if {@code source} goes on.
+     */
+    MeteredSource(PcmSource source, long limit) {
+        mSource = source;
+        mLimit = limit;
+    }
+
+    /**
+     * @return The bytes read since the source was opened.
+     */
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return Whether the source has run out.
+     */
+    boolean hasEnded() {
+        return mEnded;
+    }
+
+    @Override
+    public boolean open() {
+        mPosition = 0;
+        mEnded = false;
+        return mSource.open();
+    }
+
+    @Override
+    public void close() {
+        mSource.close();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSource.getSampleRate();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return mSource.getBufferSize();
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int size) {
+        if (mPosition >= mLimit) {
+            return count(END_OF_STREAM);
+        }
+        return count(mSource.read(data, offset, (int) Math.min(size, mLimit - mPosition)));
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        if (mPosition >= mLimit) {
+            return count(END_OF_STREAM);
+        }
+        return count(mSource.read(buffer, (int) Math.min(size, mLimit - mPosition)));
+    }
+
+    private int count(int size) {
+        if (size == END_OF_STREAM) {
+            mEnded = true;
+        } else if (size > 0) {
+            mPosition += size;
+        }
+        return size;
+    }
+
+}
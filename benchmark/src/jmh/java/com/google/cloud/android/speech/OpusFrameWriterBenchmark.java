@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Measures the encoder stage's work per captured buffer, i.e.
+ * {@link OpusFrameWriter#write(ByteBuffer, int, int)}, with a stand-in for the native encoder so
+ * that only the Java side is timed.
+ */
+@State(Scope.Thread)
+public class OpusFrameWriterBenchmark {
+
+    /** The 1920-byte Opus frame and typical AudioRecord.getMinBufferSize results at 16 kHz. */
+    @Param({"640", "1280", "1920", "2048", "3584", "3840"})
+    public int bufferSize;
+
+    private final CountingEncoder mEncoder = new CountingEncoder();
+
+    private final OpusFrameWriter mWriter = new OpusFrameWriter(mEncoder);
+
+    private ByteBuffer mBuffer;
+
+    @Setup
+    public void setUp() {
+        mBuffer = ByteBuffer.allocateDirect(bufferSize);
+        mBuffer.put(Pcm.noise(bufferSize, 12000));
+    }
+
+    @Benchmark
+    public int write() {
+        mWriter.write(mBuffer, 0, bufferSize);
+        return mEncoder.mFrames;
+    }
+
+    /**
+     * Touches every frame it is given, like the native encoder would, and accepts it.
+     */
+    private static class CountingEncoder implements FrameEncoder {
+
+        int mFrames;
+
+        @Override
+        public int writeFrame(ByteBuffer frame, int size) {
+            mFrames += frame.get(size - 1);
+            return 1;
+        }
+
+    }
+
+}
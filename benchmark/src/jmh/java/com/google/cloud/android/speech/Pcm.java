@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import java.util.Random;
+
+
+/**
+ * Synthetic LINEAR16 audio for the benchmarks.
+ */
+final class Pcm {
+
+    private Pcm() {
+    }
+
+    /**
+     * @param size      The size in bytes.
+     * @param amplitude The peak sample amplitude.
+     * @return Little endian LINEAR16 uniform noise, always from the same seed.
+     */
+    static byte[] noise(int size, int amplitude) {
+        final Random random = new Random(42);
+        final byte[] buffer = new byte[size];
+        for (int i = 0; i < size - 1; i += 2) {
+            final int sample = random.nextInt(2 * amplitude + 1) - amplitude;
+            buffer[i] = (byte) sample;
+            buffer[i + 1] = (byte) (sample >> 8);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return The RMS level of the little endian LINEAR16 in the first {@code size} bytes of
+     * {@code data}, or 0 if there is none.
+     */
+    static double rms(byte[] data, int size) {
+        final int samples = size / 2;
+        if (samples == 0) {
+            return 0;
+        }
+        long energy = 0;
+        for (int i = 0; i < samples * 2; i += 2) {
+            final int sample = (data[i] & 0xff) | (data[i + 1] << 8);
+            energy += sample * sample;
+        }
+        return Math.sqrt((double) energy / samples);
+    }
+
+    /**
+     * @param size      The size in bytes.
+     * @param amplitude The peak sample amplitude.
+     * @return Little endian LINEAR16 of a voiced sound at 16 kHz: a 150 Hz tone with a few
+     * harmonics, a slow envelope and a little noise, always from the same seed.
+     */
+    static byte[] voice(int size, int amplitude) {
+        final Random random = new Random(42);
+        final byte[] buffer = new byte[size];
+        for (int i = 0; i < size - 1; i += 2) {
+            final double t = i / 2 / 16000.0;
+            final double envelope = 0.6 + 0.4 * Math.sin(2 * Math.PI * 3 * t);
+            double tone = 0;
+            for (int harmonic = 1; harmonic <= 4; harmonic++) {
+                tone += Math.sin(2 * Math.PI * 150 * harmonic * t) / harmonic;
+            }
+            final int sample = (int) (amplitude * 0.45 * envelope * tone
+                    + random.nextGaussian() * amplitude / 200);
+            buffer[i] = (byte) sample;
+            buffer[i + 1] = (byte) (sample >> 8);
+        }
+        return buffer;
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.cloud.android.speech;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+
+/**
+ * Measures what {@link PipelineMetrics} adds to the code it instruments: a histogram timing and a
+ * counter increment, alone and contended by the capture, voice and encoder threads at once.
+ */
+@State(Scope.Benchmark)
+public class PipelineMetricsBenchmark {
+
+    private final PipelineMetrics.Histogram mHistogram = new PipelineMetrics.Histogram("read",
+            TimeUnit.MICROSECONDS);
+
+    private final PipelineMetrics.Counter mCounter = new PipelineMetrics.Counter("bytes");
+
+    @Benchmark
+    public void recordSince() {
+        mHistogram.recordSince(System.nanoTime() - 40000000L);
+    }
+
+    @Benchmark
+    @Threads(3)
+    public void recordSinceContended() {
+        mHistogram.recordSince(System.nanoTime() - 40000000L);
+    }
+
+    @Benchmark
+    public void add() {
+        mCounter.add(3200);
+    }
+
+    @Benchmark
+    public PipelineMetrics.Snapshot snapshot() {
+        return PipelineMetrics.snapshot();
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.cloud.android.speech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Measures {@link PolyphaseResampler} converting one capture buffer of device audio to 16 kHz,
+ * as ResamplingPcmSource does on every read.
+ */
+@State(Scope.Thread)
+public class PolyphaseResamplerBenchmark {
+
+    /** Device rates that are common when 16 kHz is not available. */
+    @Param({"48000", "44100", "22050", "11025"})
+    public int inputRate;
+
+    /** 40 ms of audio at the input rate. */
+    private byte[] mInput;
+
+    private byte[] mOutput;
+
+    private PolyphaseResampler mResampler;
+
+    @Setup
+    public void setUp() {
+        mResampler = new PolyphaseResampler(inputRate, 16000);
+        mInput = Pcm.voice(inputRate / 25 * 2, 12000);
+        mOutput = new byte[mResampler.getMaxOutput(mInput.length / 2) * 2];
+    }
+
+    @Benchmark
+    public int process() {
+        return mResampler.process(mInput, 0, mInput.length, mOutput, 0);
+    }
+
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+
+
+/**
+ * Replays a corpus of recordings, unpaced, through the capture and streaming paths against a
+ * {@link FakeSpeechServer}, and compares how fast and how cheaply that goes with a stored
+ * baseline.
+ *
+ * <p>Every file is recorded by an {@link OpusRecorder}, with its resampling to 16 kHz and its
+ * voice and encoder threads, and every utterance is streamed on its own call through a
+ * {@link StreamingRecognizer} by a {@link StreamingClient}, as MainActivity and ApiFragment would.
+ * Only the Opus encoder is a stand-in. After a warm-up pass, it reports:</p>
+ * <ul>
+ * <li>the real-time factor: the time to capture, detect, encode and send the audio, over its
+ * duration;</li>
+ * <li>the CPU time of the process per second of audio, the fake server included;</li>
+ * <li>the bytes of requests per second of audio.</li>
+ * </ul>
+ *
+ * <p>Then the whole corpus is replayed at once, each file in a session of its own on a shared
+ * {@link WorkerPool}, as a RecorderEngine runs a batch of files, and it reports the real-time
+ * factor and the CPU time per second of audio of that too.</p>
+ *
+ * <p>Last, the first {@link #PACED_MILLIS} of every file are replayed at once again, but paced
+ * like a microphone, for percentiles of the time from the last voice of an utterance to its final
+ * result. Unpaced, the session runs through its own speech timeout long before the server
+ * answers, so that would only measure the response delay. Paced, it is what a user waits for: the
+ * server's endpointer hearing the end of the speech, its {@code END_OF_SPEECH} and the half-close
+ * it leads to, and the final result, each after the response delay.</p>
+ *
+ * <p>The results are written to the report file and compared with the baseline file, which
+ * {@code --update-baseline} overwrites with them. The baseline in the tree was taken on a
+ * developer machine, so the time and CPU figures compare best on similar hardware.</p>
+ *
+ * <pre>
+ *   ./gradlew :benchmark:rtfBenchmark [-Pcorpus=dir] [-PupdateBaseline]
+ * </pre>
+ *
+ * <p>A corpus is a directory of 16-bit mono WAV files, and of raw LINEAR16 files at 16 kHz named
+ * *.raw or *.pcm. Without one, a synthetic corpus of utterances and pauses at common device
+ * rates is used.</p>
+ */
+public final class RealTimeFactorBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    private static final int WARM_UP_PASSES = 3;
+
+    private static final int MEASURED_PASSES = 10;
+
+    /** How much worse than the baseline a result may be before it is flagged. */
+    private static final double TOLERANCE = 0.15;
+
+    /** The device rates of the synthetic corpus, one file each. */
+    private static final int[] SYNTHETIC_RATES = {16000, 44100, 48000};
+
+    /** The utterances of each synthetic file, in milliseconds; each is followed by a pause. */
+    private static final int[] SYNTHETIC_UTTERANCES = {1500, 3000, 800, 5000, 2200, 4000};
+
+    /** Longer than the speech timeout of CaptureSession, so that every utterance ends. */
+    private static final int SYNTHETIC_PAUSE_MILLIS = 2000;
+
+    private static final int SYNTHETIC_REPEATS = 3;
+
+    /** How much of each file is replayed paced; one repeat of the synthetic corpus. */
+    private static final int PACED_MILLIS = 28500;
+
+    private static final String REAL_TIME_FACTOR = "realTimeFactor";
+    private static final String CPU_PER_AUDIO_SECOND = "cpuMillisPerAudioSecond";
+    private static final String WIRE_BYTES_PER_AUDIO_SECOND = "wireBytesPerAudioSecond";
+    private static final String VOICE_TO_FINAL_P50 = "voiceToFinal.p50Millis";
+    private static final String VOICE_TO_FINAL_P90 = "voiceToFinal.p90Millis";
+    private static final String VOICE_TO_FINAL_P99 = "voiceToFinal.p99Millis";
+    private static final String ENGINE_REAL_TIME_FACTOR = "engine.realTimeFactor";
+    private static final String ENGINE_CPU_PER_AUDIO_SECOND = "engine.cpuMillisPerAudioSecond";
+
+    /** The results, in the order they are reported. Lower is better for all of them. */
+    private static final String[] RESULTS = {
+            REAL_TIME_FACTOR,
+            CPU_PER_AUDIO_SECOND,
+            WIRE_BYTES_PER_AUDIO_SECOND,
+            VOICE_TO_FINAL_P50,
+            VOICE_TO_FINAL_P90,
+            VOICE_TO_FINAL_P99,
+            ENGINE_REAL_TIME_FACTOR,
+            ENGINE_CPU_PER_AUDIO_SECOND,
+    };
+
+    private static final String USAGE = "Usage: RealTimeFactorBenchmark [--corpus dir]"
+            + " [--response-delay millis] [--encoding LINEAR16|FLAC|MULAW]"
+            + " [--baseline file] [--report file] [--update-baseline]";
+
+    private RealTimeFactorBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File corpusDir = null;
+        long responseDelayMillis = 150;
+        UpstreamEncoding encoding = UpstreamEncoding.LINEAR16;
+        File baseline = null;
+        File report = null;
+        boolean updateBaseline = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("--update-baseline".equals(args[i])) {
+                updateBaseline = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            final String value = args[++i];
+            if ("--corpus".equals(args[i - 1])) {
+                corpusDir = new File(value);
+            } else if ("--response-delay".equals(args[i - 1])) {
+                responseDelayMillis = Long.parseLong(value);
+            } else if ("--encoding".equals(args[i - 1])) {
+                encoding = UpstreamEncoding.valueOf(value);
+            } else if ("--baseline".equals(args[i - 1])) {
+                baseline = new File(value);
+            } else if ("--report".equals(args[i - 1])) {
+                report = new File(value);
+            } else {
+                throw new IllegalArgumentException(USAGE);
+            }
+        }
+
+        final List<CorpusFile> corpus = corpusDir != null ? readCorpus(corpusDir)
+                : writeSyntheticCorpus();
+        final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "RealTimeFactor-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final FakeSpeechServer server = new FakeSpeechServer("rtf-benchmark", timer).start();
+        server.setResponseDelayMillis(responseDelayMillis);
+        final ManagedChannel channel = server.newChannel();
+        final com.sun.management.OperatingSystemMXBean os
+                = (com.sun.management.OperatingSystemMXBean)
+                ManagementFactory.getOperatingSystemMXBean();
+        final WorkerPool workers = new WorkerPool("RecorderEngine",
+                Runtime.getRuntime().availableProcessors(), corpus.size() * 2);
+        final Properties results = new Properties();
+        final Pass total = new Pass();
+        final Pass engine = new Pass();
+        Pass paced = new Pass();
+        try {
+            // JIT, pools and the transport settle in the first passes.
+            for (int i = 0; i < WARM_UP_PASSES; i++) {
+                replay(corpus, channel, timer, encoding);
+            }
+            final long requestBytes = server.getRequestBytes();
+            final long cpuNanos = os.getProcessCpuTime();
+            for (int i = 0; i < MEASURED_PASSES; i++) {
+                total.add(replay(corpus, channel, timer, encoding));
+            }
+            final double audioSeconds = total.mAudioBytes / (SAMPLE_RATE * 2.0);
+            results.setProperty(REAL_TIME_FACTOR, format("%.5f",
+                    total.mReplayNanos / 1e9 / audioSeconds));
+            results.setProperty(CPU_PER_AUDIO_SECOND, format("%.1f",
+                    (os.getProcessCpuTime() - cpuNanos) / 1e6 / audioSeconds));
+            results.setProperty(WIRE_BYTES_PER_AUDIO_SECOND, format("%.0f",
+                    (server.getRequestBytes() - requestBytes) / audioSeconds));
+            System.out.println(format("corpus: %d files, %.1f s of audio, %d utterances,"
+                            + " %d final results, %d errors, %s, response delay %d ms",
+                    corpus.size(), audioSeconds / MEASURED_PASSES,
+                    total.mUtterances / MEASURED_PASSES, total.mFinals / MEASURED_PASSES,
+                    total.mErrors, encoding, responseDelayMillis));
+
+            for (int i = 0; i < WARM_UP_PASSES; i++) {
+                replayAtOnce(corpus, channel, timer, encoding, workers, 0, Long.MAX_VALUE);
+            }
+            final long engineCpuNanos = os.getProcessCpuTime();
+            for (int i = 0; i < MEASURED_PASSES; i++) {
+                engine.add(replayAtOnce(corpus, channel, timer, encoding, workers, 0,
+                        Long.MAX_VALUE));
+            }
+            final double engineAudioSeconds = engine.mAudioBytes / (SAMPLE_RATE * 2.0);
+            results.setProperty(ENGINE_REAL_TIME_FACTOR, format("%.5f",
+                    engine.mReplayNanos / 1e9 / engineAudioSeconds));
+            results.setProperty(ENGINE_CPU_PER_AUDIO_SECOND, format("%.1f",
+                    (os.getProcessCpuTime() - engineCpuNanos) / 1e6 / engineAudioSeconds));
+            System.out.println(format("engine: %d workers, %d utterances, %d final results,"
+                            + " %d errors", Runtime.getRuntime().availableProcessors(),
+                    engine.mUtterances / MEASURED_PASSES, engine.mFinals / MEASURED_PASSES,
+                    engine.mErrors));
+
+            paced = replayAtOnce(corpus, channel, timer, encoding, workers, 1,
+                    (long) SAMPLE_RATE * 2 * PACED_MILLIS / 1000);
+            final long[] latencies = paced.getVoiceToFinalNanos();
+            Arrays.sort(latencies);
+            results.setProperty(VOICE_TO_FINAL_P50, millisAt(latencies, 0.5));
+            results.setProperty(VOICE_TO_FINAL_P90, millisAt(latencies, 0.9));
+            results.setProperty(VOICE_TO_FINAL_P99, millisAt(latencies, 0.99));
+            System.out.println(format("paced: %.1f s of audio, %d utterances, %d final results,"
+                            + " %d errors", paced.mAudioBytes / (SAMPLE_RATE * 2.0),
+                    paced.mUtterances, paced.mFinals, paced.mErrors));
+        } finally {
+            workers.shutdown();
+            channel.shutdownNow();
+            server.shutdown();
+            timer.shutdownNow();
+        }
+
+        final Properties previous = baseline != null && baseline.isFile() ? load(baseline) : null;
+        System.out.println("result                            baseline     current   change");
+        for (String key : RESULTS) {
+            final double current = Double.parseDouble(results.getProperty(key));
+            final String stored = previous == null ? null : previous.getProperty(key);
+            if (stored == null) {
+                System.out.println(format("%-30s %12s %11s", key, "-",
+                        results.getProperty(key)));
+                continue;
+            }
+            final double before = Double.parseDouble(stored);
+            final double change = before == 0 ? 0 : (current - before) / before;
+            System.out.println(format("%-30s %12s %11s %+7.1f%%%s", key, stored,
+                    results.getProperty(key), change * 100,
+                    change > TOLERANCE ? "  REGRESSED" : ""));
+        }
+        if (report != null) {
+            store(results, report);
+        }
+        if (updateBaseline && baseline != null) {
+            store(results, baseline);
+            System.out.println("Updated " + baseline);
+        }
+        if (total.mErrors + engine.mErrors + paced.mErrors > 0
+                || total.mFinals < total.mUtterances || engine.mFinals < engine.mUtterances
+                || paced.mFinals < paced.mUtterances) {
+            System.err.println("Some utterances did not get a final result.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Replays every recording of {@code corpus} in turn.
+     */
+    private static Pass replay(List<CorpusFile> corpus, ManagedChannel channel,
+            ScheduledExecutorService timer, UpstreamEncoding encoding)
+            throws InterruptedException {
+        final Pass pass = new Pass();
+        for (CorpusFile corpusFile : corpus) {
+            final MeteredSource source = open(corpusFile, 0, Long.MAX_VALUE);
+            final StreamingClient client = new StreamingClient(channel, timer, encoding,
+                    SAMPLE_RATE);
+            final OpusRecorder recorder = newRecorder(source, client, null);
+            final long started = System.nanoTime();
+            recorder.start();
+            try {
+                recorder.awaitEnd();
+            } finally {
+                recorder.stop();
+            }
+            pass.mReplayNanos += System.nanoTime() - started;
+            pass.mAudioBytes += source.getPosition();
+            collect(pass, client, corpusFile);
+        }
+        return pass;
+    }
+
+    /**
+     * Replays every recording of {@code corpus} at once, each in a session of its own on
+     * {@code workers}.
+     *
+     * @param speed The speed of the replay; 1 for real time, 0 for as fast as possible.
+     * @param limit The bytes of each recording to replay at most.
+     */
+    private static Pass replayAtOnce(List<CorpusFile> corpus, ManagedChannel channel,
+            ScheduledExecutorService timer, UpstreamEncoding encoding, WorkerPool workers,
+            float speed, long limit) throws InterruptedException {
+        final Pass pass = new Pass();
+        final int count = corpus.size();
+        final MeteredSource[] sources = new MeteredSource[count];
+        final StreamingClient[] clients = new StreamingClient[count];
+        final OpusRecorder[] recorders = new OpusRecorder[count];
+        for (int i = 0; i < count; i++) {
+            sources[i] = open(corpus.get(i), speed, limit);
+            clients[i] = new StreamingClient(channel, timer, encoding, SAMPLE_RATE);
+            recorders[i] = newRecorder(sources[i], clients[i], workers);
+        }
+        final long started = System.nanoTime();
+        try {
+            for (OpusRecorder recorder : recorders) {
+                recorder.start();
+            }
+            for (OpusRecorder recorder : recorders) {
+                recorder.awaitEnd();
+            }
+        } finally {
+            for (OpusRecorder recorder : recorders) {
+                recorder.stop();
+            }
+        }
+        pass.mReplayNanos = System.nanoTime() - started;
+        for (int i = 0; i < count; i++) {
+            pass.mAudioBytes += sources[i].getPosition();
+            collect(pass, clients[i], corpus.get(i));
+        }
+        return pass;
+    }
+
+    /**
+     * @param speed The speed of the replay; 1 for real time, 0 for as fast as possible.
+     * @param limit The bytes to replay at most.
+     * @return The audio of {@code corpusFile} at 16 kHz, which OpusRecorder passes through.
+     */
+    private static MeteredSource open(CorpusFile corpusFile, float speed, long limit) {
+        return new MeteredSource(new ResamplingPcmSource(
+                new FilePcmSource(corpusFile.mFile, corpusFile.mRawSampleRate, speed, 0),
+                SAMPLE_RATE), limit);
+    }
+
+    /**
+     * @param workers Runs voice detection and encoding, as for a session of a RecorderEngine, or
+     *                {@code null} for threads of the recorder's own.
+     * @return A recorder that replays {@code source} for {@code client} without losing any of it.
+     */
+    private static OpusRecorder newRecorder(MeteredSource source, StreamingClient client,
+            WorkerPool workers) {
+        final OpusRecorder recorder = new OpusRecorder("rtf", client, source, workers,
+                new NullOpusEncoder(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "RealTimeFactor-capture");
+                    }
+                });
+        recorder.setLossless(true);
+        recorder.setEncoderPolicy(EncoderStage.Policy.BLOCK);
+        client.setRecorder(recorder);
+        return recorder;
+    }
+
+    /**
+     * Adds the calls of {@code client} to {@code pass} once they are all closed.
+     */
+    private static void collect(Pass pass, StreamingClient client, CorpusFile corpusFile)
+            throws InterruptedException {
+        // The final results come after the response delay, outside of the replay time.
+        if (!client.awaitCalls(TimeUnit.SECONDS.toMillis(30))) {
+            throw new IllegalStateException("Calls still open after " + corpusFile.mFile);
+        }
+        pass.mUtterances += client.getUtterances();
+        pass.mFinals += client.getFinals();
+        pass.mErrors += client.getErrors();
+        pass.mVoiceToFinalNanos.add(client.getVoiceToFinalNanos());
+    }
+
+    private static List<CorpusFile> readCorpus(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+        final List<CorpusFile> corpus = new ArrayList<>();
+        for (File file : files) {
+            final String name = file.getName().toLowerCase(Locale.US);
+            if (name.endsWith(".wav")) {
+                corpus.add(new CorpusFile(file, 0));
+            } else if (name.endsWith(".raw") || name.endsWith(".pcm")) {
+                corpus.add(new CorpusFile(file, SAMPLE_RATE));
+            }
+        }
+        if (corpus.isEmpty()) {
+            throw new IllegalArgumentException("No recordings in " + dir);
+        }
+        return corpus;
+    }
+
+    /**
+     * Writes a WAV file at each of {@link #SYNTHETIC_RATES}, of utterances of voice of varied
+     * length, each followed by a pause of faint noise.
+     */
+    private static List<CorpusFile> writeSyntheticCorpus() throws IOException {
+        final List<CorpusFile> corpus = new ArrayList<>();
+        for (int rate : SYNTHETIC_RATES) {
+            final File file = File.createTempFile("rtf-" + rate + "-", ".wav");
+            file.deleteOnExit();
+            final byte[] pause = Pcm.noise(rate * 2 * SYNTHETIC_PAUSE_MILLIS / 1000, 100);
+            int size = 0;
+            for (int millis : SYNTHETIC_UTTERANCES) {
+                size += rate * 2 * millis / 1000 + pause.length;
+            }
+            size *= SYNTHETIC_REPEATS;
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(waveHeader(rate, size));
+                for (int i = 0; i < SYNTHETIC_REPEATS; i++) {
+                    for (int millis : SYNTHETIC_UTTERANCES) {
+                        out.write(Pcm.voice(rate * 2 * millis / 1000, 12000));
+                        out.write(pause);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            corpus.add(new CorpusFile(file, 0));
+        }
+        return corpus;
+    }
+
+    /**
+     * @return The header of a 16-bit mono PCM WAV file with {@code dataSize} bytes of audio.
+     */
+    private static byte[] waveHeader(int sampleRate, int dataSize) {
+        final ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952); // RIFF
+        header.putInt(36 + dataSize);
+        header.putInt(0x45564157); // WAVE
+        header.putInt(0x20746d66); // fmt
+        header.putInt(16);
+        header.putShort((short) 1); // PCM
+        header.putShort((short) 1); // mono
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * 2);
+        header.putShort((short) 2);
+        header.putShort((short) 16);
+        header.putInt(0x61746164); // data
+        header.putInt(dataSize);
+        return header.array();
+    }
+
+    /**
+     * @param sorted   Durations in nanoseconds, in ascending order.
+     * @param quantile The quantile, from 0 to 1.
+     * @return The nearest-rank value at {@code quantile}, in milliseconds.
+     */
+    private static String millisAt(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return "0";
+        }
+        final int rank = (int) Math.ceil(quantile * sorted.length);
+        return format("%.1f", sorted[Math.max(rank, 1) - 1] / 1e6);
+    }
+
+    private static Properties load(File file) throws IOException {
+        final Properties properties = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /**
+     * Writes the results in the order of {@link #RESULTS}, without the date that
+     * {@link Properties#store} adds, so that the baseline only changes with them.
+     */
+    private static void store(Properties results, File file) throws IOException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("# Written by RealTimeFactorBenchmark; lower is better for all of them.\n");
+            for (String key : RESULTS) {
+                out.write(key + "=" + results.getProperty(key) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.US, format, args);
+    }
+
+    /**
+     * A file of the corpus.
+     */
+    private static class CorpusFile {
+
+        final File mFile;
+
+        /** The sample rate of a raw file, or 0 for a WAV file. */
+        final int mRawSampleRate;
+
+        CorpusFile(File file, int rawSampleRate) {
+            mFile = file;
+            mRawSampleRate = rawSampleRate;
+        }
+
+    }
+
+    /**
+     * What replaying the corpus came to.
+     */
+    private static class Pass {
+
+        long mReplayNanos;
+
+        long mAudioBytes;
+
+        long mUtterances;
+
+        long mFinals;
+
+        long mErrors;
+
+        final List<long[]> mVoiceToFinalNanos = new ArrayList<>();
+
+        void add(Pass pass) {
+            mReplayNanos += pass.mReplayNanos;
+            mAudioBytes += pass.mAudioBytes;
+            mUtterances += pass.mUtterances;
+            mFinals += pass.mFinals;
+            mErrors += pass.mErrors;
+            mVoiceToFinalNanos.addAll(pass.mVoiceToFinalNanos);
+        }
+
+        long[] getVoiceToFinalNanos() {
+            int count = 0;
+            for (long[] nanos : mVoiceToFinalNanos) {
+                count += nanos.length;
+            }
+            final long[] all = new long[count];
+            int offset = 0;
+            for (long[] nanos : mVoiceToFinalNanos) {
+                System.arraycopy(nanos, 0, all, offset, nanos.length);
+                offset += nanos.length;
+            }
+            return all;
+        }
+
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Channel;
+
+
+/**
+ * What MainActivity does with the voice events of an {@link OpusRecorder}, on the host: the voice
+ * of every utterance goes to a {@link StreamingRecognizer}, which ApiFragment streams through too,
+ * over {@code channel} and with the encoding pinned as with ApiFragment#setUpstreamEncoding. A
+ * final result, or the API ending the stream, dismisses the utterance on the recorder.
+ *
+ * <p>Times each utterance from its last buffer of voice, i.e. from when the speaker stops, to its
+ * final result. That covers the endpointer of the {@link FakeSpeechServer} hearing the end of the
+ * speech, the half-close and the response delays, so it only means something when the audio is
+ * paced like a microphone.</p>
+ */
+class StreamingClient extends OpusRecorder.Callback implements StreamingRecognizer.Listener {
+
+    private final StreamingRecognizer mRecognizer;
+
+    private final int mSampleRate;
+
+    private volatile OpusRecorder mRecorder;
+
+    /** Guards what is below, and is notified whenever a stream ends. */
+    private final Object mLock = new Object();
+
+    /** The utterances whose streams have not ended yet, by number. */
+    private final Map<Integer, Utterance> mOpen = new HashMap<>();
+
+    /** The utterance under way; only touched by the thread of the voice events. */
+    private Utterance mCurrent;
+
+    /** The time from the last voice of each utterance to its final result. */
+    private final List<Long> mVoiceToFinalNanos = new ArrayList<>();
+
+    private long mUtterances;
+
+    private long mFinals;
+
+    private long mErrors;
+
+    /**
+     * @param channel    The channel to the API.
+     * @param timer      Runs the flush deadlines of the coalescer.
+     * @param encoding   The encoding of the streams.
+     * @param sampleRate The sample rate of the captured audio, and of the streams.
+     */
+    StreamingClient(Channel channel, ScheduledExecutorService timer, UpstreamEncoding encoding,
+            int sampleRate) {
+        mRecognizer = new StreamingRecognizer(timer, this, null);
+        mRecognizer.setChannel(channel);
+        mRecognizer.setUpstreamEncoding(encoding);
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Sets the recorder whose utterances are dismissed when the API is done with them, if any.
+     */
+    void setRecorder(OpusRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    @Override
+    public void onVoiceStart(int utterance) {
+        final Utterance current = new Utterance();
+        synchronized (mLock) {
+            mOpen.put(utterance, current);
+            mUtterances++;
+        }
+        mCurrent = current;
+        mRecognizer.startRecognizing(mSampleRate, utterance);
+    }
+
+    @Override
+    public void onVoice(byte[] data, int size) {
+        if (Pcm.rms(data, size) >= FakeSpeechServer.VOICE_RMS) {
+            mCurrent.mLastVoiceNanos = System.nanoTime();
+        }
+        mRecognizer.recognize(data, size);
+    }
+
+    @Override
+    public void onVoiceEnd() {
+        mRecognizer.finishRecognizing();
+    }
+
+    @Override
+    public void onSpeechRecognized(String text, boolean isFinal, int utterance) {
+        if (!isFinal) {
+            return;
+        }
+        final long now = System.nanoTime();
+        synchronized (mLock) {
+            final Utterance finished = mOpen.get(utterance);
+            if (finished == null || finished.mHadFinal) {
+                return;
+            }
+            finished.mHadFinal = true;
+            mFinals++;
+            if (finished.mLastVoiceNanos != 0) {
+                mVoiceToFinalNanos.add(now - finished.mLastVoiceNanos);
+            }
+        }
+        dismiss(utterance);
+    }
+
+    @Override
+    public void stopVoiceRecorder(int utterance) {
+        dismiss(utterance);
+    }
+
+    @Override
+    public void onStreamEnded(int utterance, Throwable error) {
+        synchronized (mLock) {
+            mOpen.remove(utterance);
+            if (error != null) {
+                mErrors++;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the streams of all the utterances so far to end.
+     *
+     * @return {@code false} if some are still open after {@code timeoutMillis}.
+     */
+    boolean awaitCalls(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (mLock) {
+            while (!mOpen.isEmpty()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return The recognizer that the utterances are streamed through.
+     */
+    StreamingRecognizer getRecognizer() {
+        return mRecognizer;
+    }
+
+    /**
+     * @return The number of utterances streamed.
+     */
+    long getUtterances() {
+        synchronized (mLock) {
+            return mUtterances;
+        }
+    }
+
+    /**
+     * @return The number of utterances that got a final result.
+     */
+    long getFinals() {
+        synchronized (mLock) {
+            return mFinals;
+        }
+    }
+
+    /**
+     * @return The time from the last voice of each utterance to its final result so far, in
+     * nanoseconds.
+     */
+    long[] getVoiceToFinalNanos() {
+        synchronized (mLock) {
+            final long[] nanos = new long[mVoiceToFinalNanos.size()];
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] = mVoiceToFinalNanos.get(i);
+            }
+            return nanos;
+        }
+    }
+
+    /**
+     * @return The number of streams that failed.
+     */
+    long getErrors() {
+        synchronized (mLock) {
+            return mErrors;
+        }
+    }
+
+    private void dismiss(int utterance) {
+        final OpusRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.dismiss(utterance);
+        }
+    }
+
+    /**
+     * What happened to one utterance.
+     */
+    private static class Utterance {
+
+        /** When its last buffer of voice was streamed, or 0 if none was. */
+        volatile long mLastVoiceNanos;
+
+        /** Guarded by {@link #mLock}. */
+        boolean mHadFinal;
+
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1beta1.StreamingRecognizeRequest;
+import com.google.protobuf.CodedOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+
+/**
+ * Measures building the {@link StreamingRecognizeRequest} that ApiFragment.recognize sends for
+ * every buffer, with and without a copy of the audio, and with what OutboundAudioQueue reuses,
+ * and serializing it the way gRPC does.
+ */
+@State(Scope.Thread)
+public class StreamingRequestsBenchmark {
+
+    /** The 1920-byte Opus frame and typical AudioRecord.getMinBufferSize results at 16 kHz. */
+    @Param({"640", "1280", "1920", "2048", "3584", "3840"})
+    public int bufferSize;
+
+    private byte[] mBuffer;
+
+    private final StreamingRequests.AudioRequests mAudioRequests
+            = new StreamingRequests.AudioRequests();
+
+    /** Stands in for the transport's write buffer. */
+    private byte[] mWire;
+
+    @Setup
+    public void setUp() {
+        mBuffer = Pcm.noise(bufferSize, 12000);
+        mWire = new byte[bufferSize + 16];
+    }
+
+    @Benchmark
+    public StreamingRecognizeRequest audio() {
+        return StreamingRequests.audio(mBuffer, bufferSize);
+    }
+
+    @Benchmark
+    public StreamingRecognizeRequest wrapAudio() {
+        return StreamingRequests.wrapAudio(mBuffer, bufferSize);
+    }
+
+    @Benchmark
+    public StreamingRecognizeRequest reusedWrapAudio() {
+        return mAudioRequests.wrap(mBuffer, bufferSize);
+    }
+
+    @Benchmark
+    public int sendAudio() throws IOException {
+        return serialize(StreamingRequests.audio(mBuffer, bufferSize));
+    }
+
+    @Benchmark
+    public int sendWrappedAudio() throws IOException {
+        return serialize(StreamingRequests.wrapAudio(mBuffer, bufferSize));
+    }
+
+    private int serialize(StreamingRecognizeRequest request) throws IOException {
+        final CodedOutputStream out = CodedOutputStream.newInstance(mWire);
+        request.writeTo(out);
+        return out.spaceLeft();
+    }
+
+}
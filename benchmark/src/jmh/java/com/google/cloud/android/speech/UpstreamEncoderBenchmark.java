@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Measures {@link UpstreamEncoder#send(byte[], int)} for one 100-millisecond message at 16 kHz,
+ * as ApiFragment encodes it on the audio thread. The sink only counts the bytes, so the ratio of
+ * the encoded size is {@code sent / (operations * 3200)}.
+ */
+@State(Scope.Thread)
+public class UpstreamEncoderBenchmark {
+
+    private static final int MESSAGE_SIZE = 3200;
+
+    @Param({"LINEAR16", "FLAC", "MULAW"})
+    public UpstreamEncoding encoding;
+
+    /** Voiced sound, and noise as the worst case for FLAC. */
+    @Param({"voice", "noise"})
+    public String signal;
+
+    private UpstreamEncoder mEncoder;
+
+    private byte[] mBuffer;
+
+    private long mSent;
+
+    @Setup
+    public void setUp() {
+        mBuffer = "noise".equals(signal)
+                ? Pcm.noise(MESSAGE_SIZE, 12000) : Pcm.voice(MESSAGE_SIZE, 12000);
+        mEncoder = UpstreamEncoder.create(encoding, new ChunkCoalescer.Sink() {
+            @Override
+            public void send(byte[] data, int size) {
+                mSent += size;
+            }
+        });
+        mEncoder.start(16000);
+    }
+
+    @Benchmark
+    public long send() {
+        mEncoder.send(mBuffer, MESSAGE_SIZE);
+        return mSent;
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.android.speech;
+
+import com.google.cloud.speech.v1beta1.SpeechGrpc;
+import com.google.cloud.speech.v1beta1.SyncRecognizeRequest;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Channel;
+import io.grpc.ManagedChannel;
+
+
+/**
+ * Drives {@link UpstreamController} through a scripted series of links against a throttled
+ * {@link FakeSpeechServer}, and prints the level it picks for each utterance.
+ *
+ * <p>Every utterance streams 1.5 seconds of voiced audio in real time through the
+ * {@link StreamingRecognizer} of ApiFragment, which picks the level of each stream itself. The
+ * round trip time comes from a {@code syncRecognize} call after each utterance, as ApiFragment
+ * gets it from its warm-up pings.</p>
+ *
+ * <pre>
+ *   ./gradlew :benchmark:simulateUpstream
+ * </pre>
+ */
+public final class UpstreamSimulation {
+
+    private static final int CAPTURE_RATE = 16000;
+
+    private static final int CHUNK_MILLIS = 100;
+
+    private static final int UTTERANCE_CHUNKS = 15;
+
+    /**
+     * A link the utterances go over.
+     */
+    private static final class Link {
+
+        final String mName;
+
+        final int mUplinkKbps;
+
+        final long mRttMillis;
+
+        final int mUtterances;
+
+        Link(String name, int uplinkKbps, long rttMillis, int utterances) {
+            mName = name;
+            mUplinkKbps = uplinkKbps;
+            mRttMillis = rttMillis;
+            mUtterances = utterances;
+        }
+
+    }
+
+    private static final Link[] LINKS = {
+            new Link("wifi", 0, 30, 3),
+            new Link("3g", 180, 150, 8),
+            new Link("edge", 80, 400, 4),
+            new Link("wifi", 0, 30, 10),
+    };
+
+    private UpstreamSimulation() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2);
+        final FakeSpeechServer server = new FakeSpeechServer("upstream-simulation", timer)
+                .start();
+        final ManagedChannel channel = server.newChannel();
+        final Client client = new Client();
+        final StreamingRecognizer recognizer = new StreamingRecognizer(timer, client, client);
+        recognizer.setChannel(channel);
+        final byte[] chunk = Pcm.voice(CAPTURE_RATE * 2 * CHUNK_MILLIS / 1000, 12000);
+        System.out.println("link  uplink  rtt  level       rate   kbps  notReady  dropped");
+        try {
+            int utterance = 0;
+            for (Link link : LINKS) {
+                server.setUplinkKbps(link.mUplinkKbps);
+                server.setResponseDelayMillis(link.mRttMillis);
+                for (int i = 0; i < link.mUtterances; i++) {
+                    utterance(recognizer, ++utterance, chunk, client);
+                    client.mPingMillis = ping(channel);
+                    // Stays put until the next stream tells the controller how this one went.
+                    final UpstreamController.Level level = recognizer.getController().getLevel();
+                    final UpstreamEncoder encoder = recognizer.getEncoder();
+                    final OutboundAudioQueue outbound = recognizer.getOutbound();
+                    System.out.println(String.format(Locale.US,
+                            "%-5s %6s %4d  %-10s %5d %6d %9d %8d",
+                            link.mName, link.mUplinkKbps == 0 ? "-" : link.mUplinkKbps,
+                            client.mPingMillis, level, level.getSampleRate(CAPTURE_RATE),
+                            Math.round(encoder.getKilobitsPerSecond()),
+                            outbound.getNotReadyMillis(), outbound.getDroppedFrames()));
+                }
+            }
+            System.out.println(recognizer.getController());
+        } finally {
+            channel.shutdownNow();
+            server.shutdown();
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Streams one utterance, and waits for its stream to end.
+     */
+    private static void utterance(StreamingRecognizer recognizer, int utterance, byte[] chunk,
+            Client client) throws InterruptedException {
+        recognizer.startRecognizing(CAPTURE_RATE, utterance);
+        final long started = System.nanoTime();
+        for (int i = 0; i < UTTERANCE_CHUNKS; i++) {
+            recognizer.recognize(chunk, chunk.length);
+            // Paced like the microphone.
+            final long next = started + TimeUnit.MILLISECONDS.toNanos((i + 1) * CHUNK_MILLIS);
+            TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+        }
+        recognizer.finishRecognizing();
+        client.mEnded.tryAcquire(30, TimeUnit.SECONDS);
+    }
+
+    private static long ping(Channel channel) {
+        final long started = System.nanoTime();
+        SpeechGrpc.newBlockingStub(channel).syncRecognize(SyncRecognizeRequest.getDefaultInstance());
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    /**
+     * An unmetered uplink as far away as the last ping, that lets the simulation know when each
+     * stream has ended.
+     */
+    private static class Client implements StreamingRecognizer.Listener,
+            StreamingRecognizer.Uplink {
+
+        volatile long mPingMillis;
+
+        final Semaphore mEnded = new Semaphore(0);
+
+        @Override
+        public void onSpeechRecognized(String text, boolean isFinal, int utterance) {
+        }
+
+        @Override
+        public void stopVoiceRecorder(int utterance) {
+        }
+
+        @Override
+        public void onStreamEnded(int utterance, Throwable error) {
+            if (error != null) {
+                error.printStackTrace();
+            }
+            mEnded.release();
+        }
+
+        @Override
+        public boolean isMetered() {
+            return false;
+        }
+
+        @Override
+        public long getPingMillis() {
+            return mPingMillis;
+        }
+
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.cloud.android.speech;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+
+/**
+ * Measures {@link VoiceDetector} on every buffer read from the microphone: in place on a view of
+ * the capture ring as CaptureSession calls it, and on a byte array.
+ */
+@State(Scope.Thread)
+public class VoiceDetectorBenchmark {
+
+    /** The 1920-byte Opus frame and typical AudioRecord.getMinBufferSize results at 16 kHz. */
+    @Param({"640", "1280", "1920", "2048", "3584", "3840"})
+    public int bufferSize;
+
+    /** The peak sample amplitude: background noise, and voice. */
+    @Param({"200", "12000"})
+    public int amplitude;
+
+    private final VoiceDetector mDetector = new VoiceDetector(300);
+
+    private byte[] mBuffer;
+
+    private ShortBuffer mSamples;
+
+    @Setup
+    public void setUp() {
+        mBuffer = Pcm.noise(bufferSize, amplitude);
+        final ByteBuffer ring = ByteBuffer.allocateDirect(bufferSize);
+        ring.put(mBuffer).clear();
+        mSamples = ring.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        mDetector.reset(16000);
+    }
+
+    @Benchmark
+    public boolean isHearingVoice() {
+        return mDetector.isHearingVoice(mBuffer, bufferSize);
+    }
+
+    @Benchmark
+    public boolean isHearingVoiceInPlace() {
+        return mDetector.isHearingVoice(mSamples, 0, bufferSize / 2);
+    }
+
+}